@@ -0,0 +1,271 @@
+/*
+ *
+ * Copyright (c) 2016 SERENA Software, Inc. All Rights Reserved.
+ *
+ * This software is proprietary information of SERENA Software, Inc.
+ * Use is subject to license terms.
+ *
+ * @author Kevin Lee
+ */
+package com.microfocus.sync.servicenow.benchmark;
+
+import com.microfocus.sync.servicenow.client.ApprovalLatencyModel;
+import com.microfocus.sync.servicenow.client.ApprovalScheduler;
+import com.microfocus.sync.servicenow.client.ApprovalWaiter;
+import com.microfocus.sync.servicenow.client.RlcCallbackDispatcher;
+import com.microfocus.sync.servicenow.client.ServiceNowClient;
+import com.microfocus.sync.servicenow.domain.ChangeRequest;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a large number of simulated approvals through ApprovalScheduler and ApprovalWaiter in
+ * virtual time, without a network and without sleeping.
+ * ServiceNow is an in-memory fake that approves (or rejects) each change request at a time drawn
+ * from an approval time distribution; RLC is a dispatcher recording when each callback arrives. The
+ * scheduler runs on a VirtualScheduledExecutor, so hours of approvals take seconds and every run
+ * with the same parameters gives the same result.
+ * The report gives the threads used, polls and ServiceNow requests, the latency from approval to
+ * RLC callback and the heap held by the pending approvals.
+ * Not a JMH benchmark, run it on its own with optional key=value parameters:
+ *     java -cp benchmarks/target/benchmarks.jar com.microfocus.sync.servicenow.benchmark.ApprovalSimulation approvals=100000 distribution=lognormal
+ * Parameters (defaults in brackets): approvals [100000], arrival ms over which approvals start [3600000],
+ * distribution exponential, lognormal or uniform [lognormal], mean approval time ms [1800000], sigma of
+ * lognormal [1.0], rejected share [0.1], pollTime ms [60000], maxPolls [1440], batchSize [100],
+ * batchWindow ms [250], safetyNet ms [0], model true to adapt polls to observed latency [false], seed [42].
+ * @author klee@serena.com
+ */
+public class ApprovalSimulation {
+
+    private static final String CALLBACK_URL = "http://rlc.simulation/callback/";
+    private static final String ID_PREFIX = "sim";
+
+    public static void main(String[] args) {
+        Properties parameters = new Properties();
+        for (String arg : args) {
+            int split = arg.indexOf('=');
+            if (split <= 0) {
+                throw new IllegalArgumentException("Expected key=value, got " + arg);
+            }
+            parameters.setProperty(arg.substring(0, split), arg.substring(split + 1));
+        }
+        int approvals = Integer.parseInt(parameters.getProperty("approvals", "100000"));
+        long arrival = Long.parseLong(parameters.getProperty("arrival", "3600000"));
+        String distribution = parameters.getProperty("distribution", "lognormal");
+        long mean = Long.parseLong(parameters.getProperty("mean", "1800000"));
+        double sigma = Double.parseDouble(parameters.getProperty("sigma", "1.0"));
+        double rejected = Double.parseDouble(parameters.getProperty("rejected", "0.1"));
+        long pollTime = Long.parseLong(parameters.getProperty("pollTime", "60000"));
+        long maxPolls = Long.parseLong(parameters.getProperty("maxPolls", "1440"));
+        int batchSize = Integer.parseInt(parameters.getProperty("batchSize", "100"));
+        long batchWindow = Long.parseLong(parameters.getProperty("batchWindow", "250"));
+        long safetyNet = Long.parseLong(parameters.getProperty("safetyNet", "0"));
+        boolean model = Boolean.parseBoolean(parameters.getProperty("model", "false"));
+        long seed = Long.parseLong(parameters.getProperty("seed", "42"));
+
+        System.out.printf("approvals=%d arrival=%d ms distribution=%s mean=%d ms sigma=%.2f rejected=%.2f%n",
+                approvals, arrival, distribution, mean, sigma, rejected);
+        System.out.printf("pollTime=%d ms maxPolls=%d batchSize=%d batchWindow=%d ms safetyNet=%d ms model=%s seed=%d%n",
+                pollTime, maxPolls, batchSize, batchWindow, safetyNet, model, seed);
+
+        // the approvals: when each starts, when ServiceNow decides it and how
+        Random random = new Random(seed);
+        long[] startAt = new long[approvals];
+        long[] decidedAt = new long[approvals];
+        boolean[] rejects = new boolean[approvals];
+        for (int i = 0; i < approvals; i++) {
+            startAt[i] = (long) (random.nextDouble() * arrival);
+            decidedAt[i] = startAt[i] + approvalTime(distribution, mean, sigma, random);
+            rejects[i] = random.nextDouble() < rejected;
+        }
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        threads.resetPeakThreadCount();
+        int threadsBefore = threads.getThreadCount();
+        long heapBefore = usedHeap();
+        long wallStart = System.nanoTime();
+
+        final VirtualClock clock = new VirtualClock(0);
+        final VirtualScheduledExecutor executor = new VirtualScheduledExecutor(clock);
+        final SimulatedServiceNow snow = new SimulatedServiceNow(clock, decidedAt, rejects);
+        final RecordingDispatcher rlc = new RecordingDispatcher(clock, decidedAt, rejects);
+        final ApprovalScheduler scheduler = new ApprovalScheduler(executor, clock, batchSize, batchWindow);
+        scheduler.setCallbackDispatcher(rlc);
+        scheduler.setSafetyNetInterval(safetyNet);
+        if (model) {
+            scheduler.setLatencyModel(new ApprovalLatencyModel(Math.max(1000L, pollTime / 10), pollTime * 10));
+        }
+
+        for (int i = 0; i < approvals; i++) {
+            final String executionId = ID_PREFIX + i;
+            executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    scheduler.schedule(new ApprovalWaiter(snow, CALLBACK_URL, "rlc", "rlc", "change_request", executionId,
+                            Long.toString(pollTime), Long.toString(maxPolls)));
+                }
+            }, startAt[i], TimeUnit.MILLISECONDS);
+        }
+
+        // all approvals have started by the end of the arrival window, most are still pending
+        executor.runUntil(arrival);
+        int pendingAtPeak = scheduler.getPendingCount();
+        long heapAtPeak = usedHeap();
+        executor.run();
+        long wallMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - wallStart);
+        scheduler.close();
+
+        long[] latencies = Arrays.copyOf(rlc.latencies, rlc.decidedCount);
+        Arrays.sort(latencies);
+        System.out.println();
+        System.out.printf("simulated %s in %d ms wall clock, %d tasks%n", duration(clock.millis()), wallMillis, executor.getExecutedCount());
+        System.out.printf("threads: %d before, %d peak%n", threadsBefore, threads.getPeakThreadCount());
+        System.out.printf("callbacks: %d approved, %d rejected, %d expired, %d duplicate%n",
+                rlc.approvedCount, rlc.rejectedCount, rlc.expiredCount, rlc.duplicateCount);
+        System.out.printf("polls: %d (%.1f per approval), ServiceNow requests: %d (%.2f per approval), records read: %d%n",
+                scheduler.getPollCount(), scheduler.getPollCount() / (double) approvals,
+                snow.requestCount, snow.requestCount / (double) approvals, snow.recordCount);
+        System.out.printf("notification latency: p50=%s p90=%s p99=%s max=%s%n", percentile(latencies, 0.5),
+                percentile(latencies, 0.9), percentile(latencies, 0.99), percentile(latencies, 1.0));
+        System.out.printf("heap: %d MB with %d approvals pending, %d bytes per pending approval%n",
+                heapAtPeak >> 20, pendingAtPeak, pendingAtPeak == 0 ? 0 : Math.max(0, heapAtPeak - heapBefore) / pendingAtPeak);
+    }
+
+    private static long approvalTime(String distribution, long mean, double sigma, Random random) {
+        if ("exponential".equals(distribution)) {
+            return (long) (-mean * Math.log(1 - random.nextDouble()));
+        } else if ("uniform".equals(distribution)) {
+            return (long) (random.nextDouble() * 2 * mean);
+        } else if ("lognormal".equals(distribution)) {
+            double mu = Math.log(mean) - sigma * sigma / 2;
+            return (long) Math.exp(mu + sigma * random.nextGaussian());
+        }
+        throw new IllegalArgumentException("Unknown distribution " + distribution);
+    }
+
+    private static String percentile(long[] sorted, double quantile) {
+        if (sorted.length == 0) {
+            return "-";
+        }
+        int index = (int) Math.min(sorted.length - 1, Math.max(0, Math.ceil(quantile * sorted.length) - 1));
+        return duration(sorted[index]);
+    }
+
+    private static String duration(long millis) {
+        if (millis < 60000) {
+            return String.format("%.1fs", millis / 1000.0);
+        }
+        return String.format("%.1fmin", millis / 60000.0);
+    }
+
+    private static long usedHeap() {
+        System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static int index(String executionId) {
+        return Integer.parseInt(executionId.substring(ID_PREFIX.length()));
+    }
+
+    /**
+     * ServiceNow answering approval polls from the decision times of the simulation.
+     */
+    private static class SimulatedServiceNow extends ServiceNowClient {
+        private final VirtualClock clock;
+        private final long[] decidedAt;
+        private final boolean[] rejects;
+        long requestCount;
+        long recordCount;
+
+        SimulatedServiceNow(VirtualClock clock, long[] decidedAt, boolean[] rejects) {
+            this.clock = clock;
+            this.decidedAt = decidedAt;
+            this.rejects = rejects;
+        }
+
+        @Override
+        public Map<String, String> getApprovalStatuses(String table, Collection<String> sysIds) {
+            requestCount++;
+            recordCount += sysIds.size();
+            Map<String, String> statuses = new HashMap<>();
+            for (String sysId : sysIds) {
+                statuses.put(sysId, approval(index(sysId)));
+            }
+            return statuses;
+        }
+
+        @Override
+        public ChangeRequest getChangeRequestById(String crId) {
+            requestCount++;
+            recordCount++;
+            ChangeRequest cr = new ChangeRequest();
+            cr.setId(crId);
+            cr.setApproval(approval(index(crId)));
+            return cr;
+        }
+
+        private String approval(int index) {
+            if (clock.millis() < decidedAt[index]) {
+                return "Requested";
+            }
+            return rejects[index] ? "Rejected" : "Approved";
+        }
+    }
+
+    /**
+     * RLC, recording the callbacks instead of sending them.
+     */
+    private static class RecordingDispatcher extends RlcCallbackDispatcher {
+        private final VirtualClock clock;
+        private final long[] decidedAt;
+        private final boolean[] rejects;
+        private final boolean[] notified;
+        final long[] latencies;
+        int decidedCount;
+        long approvedCount;
+        long rejectedCount;
+        long expiredCount;
+        long duplicateCount;
+
+        RecordingDispatcher(VirtualClock clock, long[] decidedAt, boolean[] rejects) {
+            super(null);
+            this.clock = clock;
+            this.decidedAt = decidedAt;
+            this.rejects = rejects;
+            this.notified = new boolean[decidedAt.length];
+            this.latencies = new long[decidedAt.length];
+        }
+
+        @Override
+        public CompletableFuture<Integer> dispatch(String uri, String username, String password) {
+            String[] parts = uri.substring(CALLBACK_URL.length()).split("/");
+            int index = index(parts[0]);
+            if (notified[index]) {
+                duplicateCount++;
+            }
+            notified[index] = true;
+            long now = clock.millis();
+            if (now < decidedAt[index]) {
+                expiredCount++;
+            } else {
+                if (rejects[index]) {
+                    rejectedCount++;
+                } else {
+                    approvedCount++;
+                }
+                latencies[decidedCount++] = now - decidedAt[index];
+            }
+            return CompletableFuture.completedFuture(200);
+        }
+    }
+}
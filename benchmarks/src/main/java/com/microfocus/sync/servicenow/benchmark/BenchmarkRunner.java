@@ -0,0 +1,34 @@
+/*
+ *
+ * Copyright (c) 2016 SERENA Software, Inc. All Rights Reserved.
+ *
+ * This software is proprietary information of SERENA Software, Inc.
+ * Use is subject to license terms.
+ *
+ * @author Kevin Lee
+ */
+package com.microfocus.sync.servicenow.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Entry point of benchmarks.jar. Accepts the usual JMH command line options and always adds the
+ * GC profiler, so every result carries its allocation rate (gc.alloc.rate.norm is bytes per operation).
+ * @author klee@serena.com
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        Options options = new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ *
+ * Copyright (c) 2016 SERENA Software, Inc. All Rights Reserved.
+ *
+ * This software is proprietary information of SERENA Software, Inc.
+ * Use is subject to license terms.
+ *
+ * @author Kevin Lee
+ */
+package com.microfocus.sync.servicenow.benchmark;
+
+import com.microfocus.sync.servicenow.domain.ChangeRequest;
+import com.microfocus.sync.servicenow.domain.ChangeTask;
+import com.microfocus.sync.servicenow.domain.Incident;
+import com.microfocus.sync.servicenow.domain.ServiceNowObjectReader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.StringReader;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of turning Table API response bodies into domain objects, per response of "records" records.
+ * Compares the buffered parsers (parse/parseSingle) with the streaming ServiceNowObjectReader.
+ * @author klee@serena.com
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class DomainParserBenchmark {
+
+    @Param({"1", "100", "10000", "100000"})
+    public int records;
+
+    private String changeRequests;
+    private String changeTasks;
+    private String incidents;
+    private String singleChangeRequest;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        changeRequests = SyntheticPayloads.listResponse("change_request", records, 1L);
+        changeTasks = SyntheticPayloads.listResponse("change_task", records, 2L);
+        incidents = SyntheticPayloads.listResponse("incident", records, 3L);
+        singleChangeRequest = SyntheticPayloads.singleResponse("change_request", 4L);
+    }
+
+    @Benchmark
+    public List<ChangeRequest> changeRequestParse() {
+        return ChangeRequest.parse(changeRequests);
+    }
+
+    @Benchmark
+    public int changeRequestReader(Blackhole blackhole) throws Exception {
+        int count = 0;
+        try (ServiceNowObjectReader<ChangeRequest> reader = ChangeRequest.reader(new StringReader(changeRequests))) {
+            ChangeRequest cr;
+            while ((cr = reader.read()) != null) {
+                blackhole.consume(cr);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Benchmark
+    public ChangeRequest changeRequestParseSingle() {
+        return ChangeRequest.parseSingle(singleChangeRequest);
+    }
+
+    @Benchmark
+    public List<ChangeTask> changeTaskParse() {
+        return ChangeTask.parse(changeTasks);
+    }
+
+    @Benchmark
+    public List<Incident> incidentParse() {
+        return Incident.parse(incidents);
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ *
+ * Copyright (c) 2016 SERENA Software, Inc. All Rights Reserved.
+ *
+ * This software is proprietary information of SERENA Software, Inc.
+ * Use is subject to license terms.
+ *
+ * @author Kevin Lee
+ */
+package com.microfocus.sync.servicenow.benchmark;
+
+import com.microfocus.sync.servicenow.domain.ServiceNowObject;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of ServiceNowObject.getJSONValue on a parsed record, for a present and a missing field.
+ * @author klee@serena.com
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JSONValueBenchmark {
+
+    private JSONObject record;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        JSONObject response = (JSONObject) new JSONParser().parse(SyntheticPayloads.listResponse("change_request", 1, 1L));
+        record = (JSONObject) ((JSONArray) response.get("result")).get(0);
+    }
+
+    @Benchmark
+    public Object presentField() {
+        return ServiceNowObject.getJSONValue(record, "sys_updated_on");
+    }
+
+    @Benchmark
+    public Object missingField() {
+        // SyntheticPayloads never emits this field
+        return ServiceNowObject.getJSONValue(record, "u_missing_field");
+    }
+}
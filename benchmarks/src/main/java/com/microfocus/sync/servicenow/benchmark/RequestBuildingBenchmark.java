@@ -0,0 +1,86 @@
+/*
+ *
+ * Copyright (c) 2016 SERENA Software, Inc. All Rights Reserved.
+ *
+ * This software is proprietary information of SERENA Software, Inc.
+ * Use is subject to license terms.
+ *
+ * @author Kevin Lee
+ */
+package com.microfocus.sync.servicenow.benchmark;
+
+import com.microfocus.sync.servicenow.client.ServiceNowClient;
+import com.microfocus.sync.servicenow.domain.ChangeRequest;
+import com.microfocus.sync.servicenow.domain.ServiceNowObject;
+import com.microfocus.sync.servicenow.exception.ServiceNowClientException;
+import org.json.simple.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Cost of building request URLs: createUrl on its own, and the complete table query path
+ * (query encoding, sysparm parameters and createUrl) without sending anything.
+ * @author klee@serena.com
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestBuildingBenchmark {
+
+    private static final String QUERY = "active=true^approval=requested^ORDERBYDESCsys_updated_on";
+    private static final String PARAMETERS = "?sysparm_limit=100&sysparm_display_value=true&sysparm_query=active%3Dtrue";
+
+    private UrlCapturingClient client;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        client = new UrlCapturingClient();
+        client.createConnection("https://benchmark.service-now.com", "v1", "admin", "admin");
+    }
+
+    @Benchmark
+    public String createUrl() throws ServiceNowClientException {
+        return client.createUrl("/table/change_request", PARAMETERS);
+    }
+
+    @Benchmark
+    public String tableQueryUrl() throws ServiceNowClientException {
+        client.forEachChangeRequest(QUERY, "-3", 100, cr -> { });
+        return client.lastUrl;
+    }
+
+    /**
+     * Client that stops at the point a GET would be sent and keeps the URL instead.
+     */
+    private static class UrlCapturingClient extends ServiceNowClient {
+        String lastUrl;
+
+        @Override
+        public String createUrl(String path, String parameters) throws ServiceNowClientException {
+            return super.createUrl(path, parameters);
+        }
+
+        @Override
+        protected <T extends ServiceNowObject> int processGet(String path, String parameters, Function<JSONObject, T> mapper,
+                                                              Consumer<? super T> consumer) throws ServiceNowClientException {
+            lastUrl = createUrl(path, parameters);
+            return 0;
+        }
+    }
+}
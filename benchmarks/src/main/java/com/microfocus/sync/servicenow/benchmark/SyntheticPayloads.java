@@ -0,0 +1,95 @@
+/*
+ *
+ * Copyright (c) 2016 SERENA Software, Inc. All Rights Reserved.
+ *
+ * This software is proprietary information of SERENA Software, Inc.
+ * Use is subject to license terms.
+ *
+ * @author Kevin Lee
+ */
+package com.microfocus.sync.servicenow.benchmark;
+
+import java.util.Random;
+
+/**
+ * Generates Table API response bodies shaped like the ones the client receives, i.e. the
+ * SNOW_FIELDS of each record as display values wrapped in {"result": [...]}.
+ * The output only depends on the record count and the seed, so runs are comparable.
+ * @author klee@serena.com
+ */
+public final class SyntheticPayloads {
+
+    private static final String[] STATES = {"New", "Assess", "Authorize", "Scheduled", "Implement", "Review", "Closed"};
+    private static final String[] APPROVALS = {"Not Yet Requested", "Requested", "Approved", "Rejected"};
+    private static final String[] LEVELS = {"1 - High", "2 - Medium", "3 - Low"};
+
+    private SyntheticPayloads() {
+    }
+
+    /**
+     * Create a list response.
+     *
+     * @param table  the table the records belong to, e.g. change_request
+     * @param records  the number of records in the response
+     * @param seed  the random seed
+     * @return the response body
+     */
+    public static String listResponse(String table, int records, long seed) {
+        Random random = new Random(seed);
+        StringBuilder sb = new StringBuilder(records * 700 + 16);
+        sb.append("{\"result\":[");
+        for (int i = 0; i < records; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            appendRecord(sb, table, i, random);
+        }
+        sb.append("]}");
+        return sb.toString();
+    }
+
+    /**
+     * Create a single record response, as returned by a GET, PUT or POST of one record.
+     *
+     * @param table  the table the record belongs to
+     * @param seed  the random seed
+     * @return the response body
+     */
+    public static String singleResponse(String table, long seed) {
+        StringBuilder sb = new StringBuilder(768);
+        sb.append("{\"result\":");
+        appendRecord(sb, table, 0, new Random(seed));
+        sb.append('}');
+        return sb.toString();
+    }
+
+    private static void appendRecord(StringBuilder sb, String table, int index, Random random) {
+        String prefix = "change_request".equals(table) ? "CHG" : "change_task".equals(table) ? "CTASK" : "INC";
+        sb.append('{');
+        field(sb, "sys_id", String.format("%032x", (random.nextLong() & Long.MAX_VALUE) ^ index)).append(',');
+        field(sb, "type", "Normal").append(',');
+        field(sb, "impact", pick(LEVELS, random)).append(',');
+        field(sb, "urgency", pick(LEVELS, random)).append(',');
+        field(sb, "priority", (1 + random.nextInt(5)) + " - Planning").append(',');
+        field(sb, "description", "Synthetic " + table + " record " + index + " used to measure parsing of the ServiceNow Table API responses").append(',');
+        field(sb, "number", String.format("%s%07d", prefix, index)).append(',');
+        field(sb, "short_description", "Deploy release " + index).append(',');
+        field(sb, "state", pick(STATES, random)).append(',');
+        field(sb, "approval", pick(APPROVALS, random)).append(',');
+        field(sb, "category", "Software").append(',');
+        field(sb, "risk", pick(LEVELS, random)).append(',');
+        field(sb, "sys_created_by", "admin").append(',');
+        field(sb, "sys_created_on", String.format("2016-%02d-%02d 10:%02d:00", 1 + random.nextInt(12), 1 + random.nextInt(28), random.nextInt(60))).append(',');
+        field(sb, "sys_updated_on", String.format("2016-%02d-%02d 11:%02d:00", 1 + random.nextInt(12), 1 + random.nextInt(28), random.nextInt(60))).append(',');
+        field(sb, "sys_updated_by", "admin");
+        sb.append('}');
+    }
+
+    private static StringBuilder field(StringBuilder sb, String name, String value) {
+        return sb.append('"').append(name).append("\":\"").append(value).append('"');
+    }
+
+    private static String pick(String[] values, Random random) {
+        return values[random.nextInt(values.length)];
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ *
+ * Copyright (c) 2016 SERENA Software, Inc. All Rights Reserved.
+ *
+ * This software is proprietary information of SERENA Software, Inc.
+ * Use is subject to license terms.
+ *
+ * @author Kevin Lee
+ */
+package com.microfocus.sync.servicenow.benchmark;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+
+/**
+ * A clock that only moves when it is told to, driven by VirtualScheduledExecutor.
+ * @author klee@serena.com
+ */
+public class VirtualClock extends Clock {
+
+    private volatile long millis;
+
+    public VirtualClock(long millis) {
+        this.millis = millis;
+    }
+
+    /**
+     * Move the clock forward.
+     *
+     * @param millis  the new time in milliseconds since the epoch, earlier times are ignored
+     */
+    public void advanceTo(long millis) {
+        if (millis > this.millis) {
+            this.millis = millis;
+        }
+    }
+
+    @Override
+    public long millis() {
+        return millis;
+    }
+
+    @Override
+    public Instant instant() {
+        return Instant.ofEpochMilli(millis);
+    }
+
+    @Override
+    public ZoneId getZone() {
+        return ZoneOffset.UTC;
+    }
+
+    @Override
+    public Clock withZone(ZoneId zone) {
+        throw new UnsupportedOperationException("VirtualClock is always UTC");
+    }
+}
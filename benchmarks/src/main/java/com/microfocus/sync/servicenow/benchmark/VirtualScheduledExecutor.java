@@ -0,0 +1,252 @@
+/*
+ *
+ * Copyright (c) 2016 SERENA Software, Inc. All Rights Reserved.
+ *
+ * This software is proprietary information of SERENA Software, Inc.
+ * Use is subject to license terms.
+ *
+ * @author Kevin Lee
+ */
+package com.microfocus.sync.servicenow.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A ScheduledExecutorService running its tasks in virtual time on the thread calling run().
+ * Tasks run in order of their due time, tasks due at the same time in order of submission, and
+ * the VirtualClock jumps to each task's due time before it runs. Nothing runs concurrently and
+ * nothing sleeps, so a simulation is deterministic and takes as long as its tasks compute.
+ * @author klee@serena.com
+ */
+public class VirtualScheduledExecutor extends AbstractExecutorService implements ScheduledExecutorService {
+
+    private final VirtualClock clock;
+    private final PriorityQueue<VirtualTask<?>> queue = new PriorityQueue<>();
+    private long sequence;
+    private long executedCount;
+    private boolean shutdown;
+
+    public VirtualScheduledExecutor(VirtualClock clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * Run tasks until none is left or the next one is due after a time, then set the clock to that time.
+     *
+     * @param until  the time to run to, in milliseconds since the epoch
+     */
+    public void runUntil(long until) {
+        VirtualTask<?> task;
+        while ((task = queue.peek()) != null && task.dueAt <= until) {
+            runNext();
+        }
+        clock.advanceTo(until);
+    }
+
+    /**
+     * Run tasks until none is left.
+     */
+    public void run() {
+        while (!queue.isEmpty()) {
+            runNext();
+        }
+    }
+
+    public int getQueuedCount() {
+        return queue.size();
+    }
+
+    public long getExecutedCount() {
+        return executedCount;
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+        return enqueue(new VirtualTask<>(command, null, unit.toMillis(delay), 0));
+    }
+
+    @Override
+    public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+        return enqueue(new VirtualTask<>(null, callable, unit.toMillis(delay), 0));
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period, TimeUnit unit) {
+        return enqueue(new VirtualTask<>(command, null, unit.toMillis(initialDelay), unit.toMillis(period)));
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay, TimeUnit unit) {
+        // tasks take no virtual time, so fixed delay and fixed rate are the same
+        return scheduleAtFixedRate(command, initialDelay, delay, unit);
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        schedule(command, 0, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void shutdown() {
+        shutdown = true;
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        shutdown = true;
+        List<Runnable> pending = new ArrayList<>(queue.size());
+        for (VirtualTask<?> task : queue) {
+            pending.add(task.command);
+        }
+        queue.clear();
+        return pending;
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return shutdown && queue.isEmpty();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) {
+        return isTerminated();
+    }
+
+    private <V> VirtualTask<V> enqueue(VirtualTask<V> task) {
+        if (shutdown) {
+            throw new RejectedExecutionException("VirtualScheduledExecutor has been shut down");
+        }
+        task.queued = true;
+        queue.add(task);
+        return task;
+    }
+
+    private void runNext() {
+        VirtualTask<?> task = queue.poll();
+        task.queued = false;
+        clock.advanceTo(task.dueAt);
+        executedCount++;
+        task.run();
+    }
+
+    private class VirtualTask<V> implements ScheduledFuture<V>, Runnable {
+        private final Runnable command;
+        private final Callable<V> callable;
+        private final long period;
+        private long dueAt;
+        private long order;
+        private boolean queued;
+        private boolean cancelled;
+        private boolean done;
+        private V result;
+        private Throwable failure;
+
+        VirtualTask(Runnable command, Callable<V> callable, long delay, long period) {
+            this.command = command;
+            this.callable = callable;
+            this.period = period;
+            this.dueAt = clock.millis() + Math.max(0, delay);
+            this.order = sequence++;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (callable != null) {
+                    result = callable.call();
+                } else {
+                    command.run();
+                }
+            } catch (Exception ex) {
+                failure = ex;
+                done = true;
+                return;
+            }
+            if (period > 0 && !cancelled && !shutdown) {
+                dueAt += period;
+                order = sequence++;
+                queued = true;
+                queue.add(this);
+            } else {
+                done = true;
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            if (done || cancelled) {
+                return false;
+            }
+            cancelled = true;
+            // a running task is not queued, removing it would scan the whole queue for nothing
+            if (queued) {
+                queue.remove(this);
+                queued = false;
+            }
+            return true;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public boolean isDone() {
+            return done || cancelled;
+        }
+
+        @Override
+        public V get() throws ExecutionException {
+            if (cancelled) {
+                throw new CancellationException();
+            }
+            if (!done) {
+                throw new IllegalStateException("Task not run yet, the simulation runs tasks only from run()");
+            }
+            if (failure != null) {
+                throw new ExecutionException(failure);
+            }
+            return result;
+        }
+
+        @Override
+        public V get(long timeout, TimeUnit unit) throws ExecutionException, TimeoutException {
+            if (!isDone()) {
+                throw new TimeoutException();
+            }
+            return get();
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(dueAt - clock.millis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            VirtualTask<?> task = (VirtualTask<?>) other;
+            if (dueAt != task.dueAt) {
+                return dueAt < task.dueAt ? -1 : 1;
+            }
+            return Long.compare(order, task.order);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ *
+ * Copyright (c) 2016 SERENA Software, Inc. All Rights Reserved.
+ *
+ * This software is proprietary information of SERENA Software, Inc.
+ * Use is subject to license terms.
+ *
+ * @author Kevin Lee
+ */
+package com.microfocus.sync.servicenow.benchmark;
+
+import com.microfocus.sync.servicenow.client.ApprovalWaiter;
+import com.microfocus.sync.servicenow.client.ServiceNowClient;
+import com.microfocus.sync.servicenow.client.WaitExecutors;
+import com.microfocus.sync.servicenow.exception.ServiceNowClientException;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * How many concurrent blocking approval waits one JVM sustains, with one platform thread or one
+ * virtual thread per ApprovalWaiter.run().
+ * Waits are started in steps up to a maximum; each polls a simulated ServiceNow that answers after a
+ * fixed latency and never approves. After each step the waits are held for a while and the step is
+ * sustained if all of them were started and kept polling at their poll time. Finally the executor
+ * is shut down and the time until all waits have stopped shows that waiting is interruptible.
+ * Not a JMH benchmark, run it on its own:
+ *     java -cp benchmarks/target/benchmarks.jar com.microfocus.sync.servicenow.benchmark.WaitCapacityBenchmark [mode] [maxWaits] [step]
+ * with mode platform (default) or virtual (Java 21 or later), e.g. -Xss256k to vary the platform thread stack.
+ * @author klee@serena.com
+ */
+public class WaitCapacityBenchmark {
+
+    private static final long POLL_TIME = 1000L;
+    private static final long LATENCY = 50L;
+    private static final long HOLD_TIME = 3000L;
+
+    public static void main(String[] args) throws Exception {
+        WaitExecutors.Mode mode = args.length > 0 ? WaitExecutors.Mode.valueOf(args[0].toUpperCase()) : WaitExecutors.Mode.PLATFORM;
+        int maxWaits = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+        int step = args.length > 2 ? Integer.parseInt(args[2]) : 10000;
+        if (mode == WaitExecutors.Mode.VIRTUAL && !WaitExecutors.isVirtualThreadSupported()) {
+            System.out.println("Virtual threads need Java 21 or later, running on " + System.getProperty("java.version"));
+            return;
+        }
+
+        SimulatedClient client = new SimulatedClient();
+        client.createConnection("https://benchmark.service-now.com", "v1", "admin", "admin");
+        ExecutorService executor = WaitExecutors.newWaitExecutor("wait-capacity", mode);
+        System.out.printf("mode=%s java=%s maxWaits=%d step=%d pollTime=%d ms latency=%d ms%n", mode,
+                System.getProperty("java.version"), maxWaits, step, POLL_TIME, LATENCY);
+        System.out.printf("%10s %10s %12s %12s %10s %12s%n", "waits", "startMs", "polls/s", "expected/s", "threads", "heapMB");
+
+        int started = 0;
+        int sustained = 0;
+        try {
+            while (started < maxWaits) {
+                int target = Math.min(maxWaits, started + step);
+                long start = System.nanoTime();
+                try {
+                    for (; started < target; started++) {
+                        executor.execute(new ApprovalWaiter(client, "http://localhost/rlc", "admin", "admin", "change_request",
+                                "wait" + started, Long.toString(POLL_TIME), Long.toString(Integer.MAX_VALUE)));
+                    }
+                } catch (OutOfMemoryError | RuntimeException ex) {
+                    System.out.printf("%10d could not start more waits: %s%n", started, ex);
+                    break;
+                }
+                long startMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+                // let the new waits reach their first poll before measuring
+                Thread.sleep(POLL_TIME + LATENCY);
+                long polls = client.polls.get();
+                long hold = System.nanoTime();
+                Thread.sleep(HOLD_TIME);
+                double rate = (client.polls.get() - polls) * 1e9 / (System.nanoTime() - hold);
+                double expected = started * 1000.0 / (POLL_TIME + LATENCY);
+                System.out.printf("%10d %10d %12.0f %12.0f %10d %12d%n", started, startMillis, rate, expected,
+                        ManagementFactory.getThreadMXBean().getThreadCount(), usedHeap() >> 20);
+                if (rate < expected * 0.9) {
+                    System.out.printf("%10d waits no longer poll at their poll time%n", started);
+                    break;
+                }
+                sustained = started;
+            }
+        } finally {
+            long stop = System.nanoTime();
+            executor.shutdownNow();
+            boolean stopped = executor.awaitTermination(60, TimeUnit.SECONDS);
+            System.out.printf("sustained=%d waits, shutdown %s in %d ms%n", sustained, stopped ? "completed" : "timed out",
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - stop));
+        }
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Client answering every GET with the same change request after a fixed latency, never approved.
+     */
+    private static class SimulatedClient extends ServiceNowClient {
+        private final String response = SyntheticPayloads.singleResponse("change_request", 42L)
+                .replaceAll("\"approval\":\"[^\"]*\"", "\"approval\":\"Requested\"");
+        final AtomicLong polls = new AtomicLong();
+
+        @Override
+        protected String processGet(String path, String parameters) throws ServiceNowClientException {
+            try {
+                Thread.sleep(LATENCY);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new ServiceNowClientException("Interrupted", ex);
+            }
+            polls.incrementAndGet();
+            return response;
+        }
+    }
+}
@@ -0,0 +1,477 @@
+/*
+ *
+ * Copyright (c) 2016 SERENA Software, Inc. All Rights Reserved.
+ *
+ * This software is proprietary information of SERENA Software, Inc.
+ * Use is subject to license terms.
+ *
+ * @author Kevin Lee
+ */
+package com.microfocus.sync.dimcm;
+
+import merant.adm.dimensions.cmds.helper.RangeInfo;
+import merant.adm.dimensions.objects.collections.FilterCriterion;
+import merant.adm.dimensions.objects.core.AdmAttrNames;
+import merant.adm.dimensions.objects.core.AdmObject;
+import merant.adm.dimensions.objects.userattrs.FilterImpl;
+import merant.adm.exception.AdmException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.format.ResolverStyle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A local copy of the recent deployment history, indexed by entity, job name and area.
+ * Event dates are parsed once, when an event is read, into epoch milliseconds. refresh() only reads
+ * the events at or after the latest event already held, in pages, and events older than the
+ * retention time are dropped. The latest N events are selected with a bounded heap instead of
+ * sorting all candidates. A refresh reads the server without holding the index, so lookups are not
+ * blocked by it, and merges what it read afterwards; refreshes run one at a time.
+ * DimCMClient serves deployment lookups and watches from the index when setUseHistoryIndex(true) is set.
+ * @author klee@serena.com
+ */
+public class DeploymentHistoryIndex {
+    private static final Logger logger = LoggerFactory.getLogger(DeploymentHistoryIndex.class);
+
+    public static int DEFAULT_PAGE_SIZE = 500;
+    public static long DEFAULT_RETENTION = TimeUnit.DAYS.toMillis(7);
+
+    // dates look like 2016-01-31T23:59:59.999Z; parseEventDate also takes the hour 24 of a clock-hour (kk) date
+    private static final DateTimeFormatter EVENT_DATE_FORMAT = DateTimeFormatter.ofPattern("uuuu-MM-dd'T'HH:mm:ss.SSS'Z'")
+            .withZone(ZoneOffset.UTC).withResolverStyle(ResolverStyle.STRICT);
+
+    private static final List<String> EVENT_ATTRIBUTES = Collections.unmodifiableList(Arrays.asList(
+            AdmAttrNames.ID,
+            AdmAttrNames.JOB_NAME,
+            AdmAttrNames.AREA_ID,
+            AdmAttrNames.HISTORY_EVENT_TYPE,
+            AdmAttrNames.HISTORY_EVENT_RESULT,
+            AdmAttrNames.HISTORY_EVENT_DATE,
+            AdmAttrNames.COMMENT));
+
+    private final DimCMClient client;
+    private final Object refreshLock = new Object();
+    private final Map<String, List<HistoryEvent>> byEntity = new HashMap<>();
+    private final Map<String, List<HistoryEvent>> byJob = new HashMap<>();
+    private final Map<String, List<HistoryEvent>> byArea = new HashMap<>();
+    private final List<HistoryEvent> events = new ArrayList<>();
+    // events read at the latest event time, the next refresh reads that time again
+    private final Set<String> keysAtLatest = new HashSet<>();
+    private long latestEventTime = Long.MIN_VALUE;
+    private long sequence;
+
+    private int pageSize = DEFAULT_PAGE_SIZE;
+    private long retention = DEFAULT_RETENTION;
+
+    private final LongAdder refreshCount = new LongAdder();
+    private final LongAdder queryCount = new LongAdder();
+    private final LongAdder readCount = new LongAdder();
+    private final LongAdder addedCount = new LongAdder();
+
+    /**
+     * @param  client  the client whose connection reads the deployment history
+     */
+    public DeploymentHistoryIndex(DimCMClient client) {
+        this.client = client;
+    }
+
+    /**
+     * Read the events since the latest event in the index, or within the retention time on the first
+     * refresh, and drop the events older than the retention time.
+     *
+     * @return the number of new events
+     */
+    public int refresh() throws AdmException {
+        synchronized (refreshLock) {
+            refreshCount.increment();
+            long now = System.currentTimeMillis();
+            long since;
+            int size;
+            synchronized (this) {
+                since = latestEventTime != Long.MIN_VALUE ? latestEventTime : now - retention;
+                size = pageSize;
+            }
+
+            FilterImpl filter = new FilterImpl();
+            filter.criteria().add(new FilterCriterion(AdmAttrNames.HISTORY_EVENT_DATE, formatEventDate(since),
+                    FilterCriterion.GREATER_EQUAL));
+
+            List<HistoryEvent> read = new ArrayList<>();
+            for (int from = 0; ; from += size) {
+                queryCount.increment();
+                List<AdmObject> objects = client.queryDeploymentHistory(filter, new RangeInfo(from, from + size - 1),
+                        EVENT_ATTRIBUTES);
+                if (objects == null || objects.isEmpty()) {
+                    break;
+                }
+                for (AdmObject obj : objects) {
+                    read.add(toEvent(obj));
+                }
+                if (objects.size() < size) {
+                    break;
+                }
+            }
+            readCount.add(read.size());
+            Collections.sort(read);
+            return merge(read, now);
+        }
+    }
+
+    private synchronized int merge(List<HistoryEvent> read, long now) {
+        int added = 0;
+        for (HistoryEvent event : read) {
+            if (event.time < latestEventTime || (event.time == latestEventTime && !keysAtLatest.add(event.key()))) {
+                continue;
+            }
+            if (event.time > latestEventTime) {
+                latestEventTime = event.time;
+                keysAtLatest.clear();
+                keysAtLatest.add(event.key());
+            }
+            event.sequence = sequence++;
+            events.add(event);
+            index(byEntity, event.entityName, event);
+            index(byJob, event.jobName, event);
+            index(byArea, event.areaId, event);
+            added++;
+        }
+        addedCount.add(added);
+        expire(now - retention);
+        logger.debug("Deployment history refreshed, {} events read, {} new, {} held", read.size(), added, events.size());
+        return added;
+    }
+
+    /**
+     * @return the events of an entity (baseline, project or stream), oldest first
+     */
+    public synchronized List<HistoryEvent> getByEntity(String entityName) {
+        return copy(byEntity.get(entityName));
+    }
+
+    /**
+     * @return the events of a deployment job, oldest first
+     */
+    public synchronized List<HistoryEvent> getByJob(String jobName) {
+        return copy(byJob.get(jobName));
+    }
+
+    /**
+     * @return the events of a deployment area, oldest first
+     */
+    public synchronized List<HistoryEvent> getByArea(String areaId) {
+        return copy(byArea.get(areaId));
+    }
+
+    /**
+     * @return the latest event of a deployment job, null if the index holds none
+     */
+    public synchronized HistoryEvent latestForJob(String jobName) {
+        List<HistoryEvent> candidates = byJob.get(jobName);
+        return candidates != null ? top(candidates, 1).get(0) : null;
+    }
+
+    /**
+     * @return the latest n events of all entities, latest first
+     */
+    public synchronized List<HistoryEvent> latest(int n) {
+        return top(events, n);
+    }
+
+    /**
+     * @return the latest n events of an entity, latest first
+     */
+    public synchronized List<HistoryEvent> latestForEntity(String entityName, int n) {
+        List<HistoryEvent> candidates = byEntity.get(entityName);
+        return candidates != null ? top(candidates, n) : Collections.<HistoryEvent>emptyList();
+    }
+
+    /**
+     * @return the latest n events of a deployment area, latest first
+     */
+    public synchronized List<HistoryEvent> latestForArea(String areaId, int n) {
+        List<HistoryEvent> candidates = byArea.get(areaId);
+        return candidates != null ? top(candidates, n) : Collections.<HistoryEvent>emptyList();
+    }
+
+    public synchronized int size() {
+        return events.size();
+    }
+
+    /**
+     * @return the time of the latest event in the index in epoch milliseconds, Long.MIN_VALUE if it is empty
+     */
+    public synchronized long getLatestEventTime() {
+        return latestEventTime;
+    }
+
+    public synchronized void setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    public synchronized void setRetention(long retention) {
+        this.retention = retention;
+    }
+
+    public long getRefreshCount() {
+        return refreshCount.sum();
+    }
+
+    public long getQueryCount() {
+        return queryCount.sum();
+    }
+
+    public long getReadCount() {
+        return readCount.sum();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "DeploymentHistoryIndex{" + "events=" + events.size() +
+                ", entities=" + byEntity.size() +
+                ", jobs=" + byJob.size() +
+                ", areas=" + byArea.size() +
+                ", refreshes=" + refreshCount.sum() +
+                ", queries=" + queryCount.sum() +
+                ", read=" + readCount.sum() +
+                ", added=" + addedCount.sum() +
+        '}';
+    }
+
+    /**
+     * Parse a HISTORY_EVENT_DATE value. Safe to call from any thread.
+     *
+     * @param  date  the date as returned by Dimensions CM, e.g. 2016-01-31T23:59:59.999Z
+     * @return the date in epoch milliseconds, Long.MIN_VALUE if it is missing or cannot be parsed
+     */
+    public static long parseEventDate(Object date) {
+        if (date == null) {
+            return Long.MIN_VALUE;
+        }
+        String text = date.toString();
+        int hour = text.indexOf('T') + 1;
+        if (hour > 0 && text.startsWith("24", hour)) {
+            // a clock-hour (kk) date writes the first hour of a day as 24, it is the same day
+            text = text.substring(0, hour) + "00" + text.substring(hour + 2);
+        }
+        try {
+            return Instant.from(EVENT_DATE_FORMAT.parse(text)).toEpochMilli();
+        } catch (DateTimeParseException e) {
+            logger.warn("Unexpected deployment event date {}", date);
+            return Long.MIN_VALUE;
+        }
+    }
+
+    /**
+     * @return the date in the HISTORY_EVENT_DATE format, for filter criteria
+     */
+    public static String formatEventDate(long epochMillis) {
+        return EVENT_DATE_FORMAT.format(Instant.ofEpochMilli(epochMillis));
+    }
+
+    /**
+     * Sort deployment history records latest first, parsing each date once.
+     *
+     * @param  objects  the records, with HISTORY_EVENT_DATE
+     * @return a new list of the records, latest first
+     */
+    static List<AdmObject> latestFirst(Collection<AdmObject> objects) throws AdmException {
+        List<Object[]> keyed = new ArrayList<>(objects.size());
+        for (AdmObject obj : objects) {
+            keyed.add(new Object[]{parseEventDate(obj.getAttrValue(AdmAttrNames.HISTORY_EVENT_DATE)), obj});
+        }
+        Collections.sort(keyed, (a, b) -> Long.compare((Long) b[0], (Long) a[0]));
+        List<AdmObject> sorted = new ArrayList<>(keyed.size());
+        for (Object[] entry : keyed) {
+            sorted.add((AdmObject) entry[1]);
+        }
+        return sorted;
+    }
+
+    private static HistoryEvent toEvent(AdmObject obj) throws AdmException {
+        Object date = obj.getAttrValue(AdmAttrNames.HISTORY_EVENT_DATE);
+        return new HistoryEvent(
+                string(obj.getAttrValue(AdmAttrNames.ID)),
+                string(obj.getAttrValue(AdmAttrNames.JOB_NAME)),
+                string(obj.getAttrValue(AdmAttrNames.AREA_ID)),
+                string(obj.getAttrValue(AdmAttrNames.HISTORY_EVENT_TYPE)),
+                string(obj.getAttrValue(AdmAttrNames.HISTORY_EVENT_RESULT)),
+                string(obj.getAttrValue(AdmAttrNames.COMMENT)),
+                string(date),
+                parseEventDate(date));
+    }
+
+    private static String string(Object value) {
+        return value != null ? value.toString() : null;
+    }
+
+    private static void index(Map<String, List<HistoryEvent>> index, String key, HistoryEvent event) {
+        if (key == null) {
+            return;
+        }
+        List<HistoryEvent> list = index.get(key);
+        if (list == null) {
+            list = new ArrayList<>();
+            index.put(key, list);
+        }
+        list.add(event);
+    }
+
+    private void expire(long before) {
+        if (events.isEmpty() || events.get(0).time >= before) {
+            return;
+        }
+        events.removeIf(event -> event.time < before);
+        expire(byEntity, before);
+        expire(byJob, before);
+        expire(byArea, before);
+    }
+
+    private static void expire(Map<String, List<HistoryEvent>> index, long before) {
+        for (Iterator<List<HistoryEvent>> i = index.values().iterator(); i.hasNext(); ) {
+            List<HistoryEvent> list = i.next();
+            list.removeIf(event -> event.time < before);
+            if (list.isEmpty()) {
+                i.remove();
+            }
+        }
+    }
+
+    private static List<HistoryEvent> copy(List<HistoryEvent> list) {
+        return list != null ? new ArrayList<>(list) : Collections.<HistoryEvent>emptyList();
+    }
+
+    /**
+     * The n latest events, with a heap of at most n events instead of a sort of all candidates.
+     */
+    private static List<HistoryEvent> top(List<HistoryEvent> candidates, int n) {
+        if (n <= 0) {
+            return Collections.emptyList();
+        }
+        PriorityQueue<HistoryEvent> heap = new PriorityQueue<>(Math.min(n, candidates.size()) + 1);
+        for (HistoryEvent event : candidates) {
+            if (heap.size() < n) {
+                heap.add(event);
+            } else if (event.compareTo(heap.peek()) > 0) {
+                heap.poll();
+                heap.add(event);
+            }
+        }
+        List<HistoryEvent> latest = new ArrayList<>(heap.size());
+        while (!heap.isEmpty()) {
+            latest.add(heap.poll());
+        }
+        Collections.reverse(latest);
+        return latest;
+    }
+
+    /**
+     * One deployment history event.
+     */
+    public static class HistoryEvent implements Comparable<HistoryEvent> {
+        private final String entityName;
+        private final String jobName;
+        private final String areaId;
+        private final String type;
+        private final String result;
+        private final String comment;
+        private final String date;
+        private final long time;
+        private long sequence;
+
+        HistoryEvent(String entityName, String jobName, String areaId, String type, String result, String comment,
+                     String date, long time) {
+            this.entityName = entityName;
+            this.jobName = jobName;
+            this.areaId = areaId;
+            this.type = type;
+            this.result = result;
+            this.comment = comment;
+            this.date = date;
+            this.time = time;
+        }
+
+        public String getEntityName() {
+            return entityName;
+        }
+
+        public String getJobName() {
+            return jobName;
+        }
+
+        public String getAreaId() {
+            return areaId;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        /**
+         * @return 0 submitted, 1 executing, 2 succeeded or 3 failed
+         */
+        public String getResult() {
+            return result;
+        }
+
+        public String getComment() {
+            return comment;
+        }
+
+        /**
+         * @return the date as returned by Dimensions CM
+         */
+        public String getDate() {
+            return date;
+        }
+
+        /**
+         * @return the date in epoch milliseconds
+         */
+        public long getTime() {
+            return time;
+        }
+
+        /**
+         * Order by time, events of the same time in the order they were read.
+         */
+        @Override
+        public int compareTo(HistoryEvent other) {
+            if (time != other.time) {
+                return time < other.time ? -1 : 1;
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+
+        String key() {
+            return entityName + '|' + jobName + '|' + areaId + '|' + type + '|' + result + '|' + date;
+        }
+
+        @Override
+        public String toString() {
+            return "HistoryEvent{" + "entity=" + entityName +
+                    ", job=" + jobName +
+                    ", area=" + areaId +
+                    ", type=" + type +
+                    ", result=" + result +
+                    ", date=" + date +
+            '}';
+        }
+    }
+}
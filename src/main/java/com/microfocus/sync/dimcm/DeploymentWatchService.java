@@ -0,0 +1,388 @@
+/*
+ *
+ * Copyright (c) 2016 SERENA Software, Inc. All Rights Reserved.
+ *
+ * This software is proprietary information of SERENA Software, Inc.
+ * Use is subject to license terms.
+ *
+ * @author Kevin Lee
+ */
+package com.microfocus.sync.dimcm;
+
+import com.microfocus.sync.servicenow.client.DaemonThreadFactory;
+import merant.adm.dimensions.cmds.helper.RangeInfo;
+import merant.adm.dimensions.objects.collections.FilterCriterion;
+import merant.adm.dimensions.objects.core.AdmAttrNames;
+import merant.adm.dimensions.objects.core.AdmObject;
+import merant.adm.dimensions.objects.userattrs.FilterImpl;
+import merant.adm.exception.AdmException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Watches submitted deployment jobs until they finish, for any number of callers at once.
+ * All outstanding jobs are polled together, with one deployment history query per group of jobs
+ * filtered on their job names, instead of one query loop per waiting caller. The poll interval
+ * starts short when a job is added or a status changes and doubles while nothing changes, up to
+ * the maximum interval. Callers waiting on the same job share its watch; a watch is dropped when
+ * its job finishes, when it is older than the maximum watch time or when all its callers cancelled.
+ * With a DeploymentHistoryIndex a poll refreshes the index once, which only reads the events since
+ * its previous refresh, and takes the status of the jobs from it; only jobs the index has no event
+ * for are queried by job name.
+ * @author klee@serena.com
+ */
+public class DeploymentWatchService implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(DeploymentWatchService.class);
+
+    public static long DEFAULT_MIN_INTERVAL = 1000L;
+    public static long DEFAULT_MAX_INTERVAL = 30000L;
+    public static long DEFAULT_MAX_WATCH_TIME = TimeUnit.DAYS.toMillis(1);
+    public static int DEFAULT_JOBS_PER_QUERY = 50;
+    public static int DEFAULT_PAGE_SIZE = 500;
+
+    private final DimCMClient client;
+    private final DeploymentHistoryIndex index;
+    private final ScheduledExecutorService scheduler;
+    private final Map<String, Watch> watches = new ConcurrentHashMap<>();
+    private ScheduledFuture<?> nextPoll;
+    private long interval;
+
+    private long minInterval = DEFAULT_MIN_INTERVAL;
+    private long maxInterval = DEFAULT_MAX_INTERVAL;
+    private long maxWatchTime = DEFAULT_MAX_WATCH_TIME;
+    private int jobsPerQuery = DEFAULT_JOBS_PER_QUERY;
+    private int pageSize = DEFAULT_PAGE_SIZE;
+
+    private final LongAdder watchCount = new LongAdder();
+    private final LongAdder sharedCount = new LongAdder();
+    private final LongAdder pollCount = new LongAdder();
+    private final LongAdder queryCount = new LongAdder();
+    private final LongAdder finishedCount = new LongAdder();
+    private final LongAdder timedOutCount = new LongAdder();
+
+    /**
+     * @param  client  the client whose connection runs the deployment history queries
+     */
+    public DeploymentWatchService(DimCMClient client) {
+        this(client, null);
+    }
+
+    /**
+     * @param  client  the client whose connection runs the deployment history queries
+     * @param  index  the index the job statuses are read from, null to query them by job name
+     */
+    public DeploymentWatchService(DimCMClient client, DeploymentHistoryIndex index) {
+        this.client = client;
+        this.index = index;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("dimcm-deployment-watch"));
+    }
+
+    /**
+     * Watch a deployment job until it finishes.
+     *
+     * @param  entityName  the baseline, project or stream the job deploys, for logging
+     * @param  jobName  the JOB_NAME of the deployment job
+     * @param  statusListener  called with each new status of the job, may be null
+     * @return a future completed with the final status (2 succeeded, 3 failed) of the job, or with a
+     *         TimeoutException if the job has not finished within the maximum watch time. Cancelling it
+     *         stops the watch unless other callers wait for the same job.
+     */
+    public CompletableFuture<String> watch(String entityName, String jobName, Consumer<String> statusListener) {
+        Watch watch;
+        boolean added = false;
+        synchronized (this) {
+            watch = watches.get(jobName);
+            if (watch == null) {
+                watch = new Watch(entityName, jobName, System.currentTimeMillis());
+                watches.put(jobName, watch);
+                watchCount.increment();
+                added = true;
+            } else {
+                sharedCount.increment();
+            }
+            watch.callers.incrementAndGet();
+            if (statusListener != null) {
+                watch.listeners.add(statusListener);
+            }
+        }
+        if (added) {
+            pollSoon();
+        } else if (statusListener != null && watch.status != null) {
+            statusListener.accept(watch.status);
+        }
+
+        // each caller gets its own future, so one caller cancelling does not cancel the others
+        final Watch shared = watch;
+        CompletableFuture<String> result = shared.future.thenApply(status -> status);
+        result.whenComplete((status, ex) -> {
+            if (!result.isCancelled()) {
+                return;
+            }
+            if (statusListener != null) {
+                shared.listeners.remove(statusListener);
+            }
+            if (shared.callers.decrementAndGet() == 0) {
+                synchronized (this) {
+                    if (shared.callers.get() == 0 && watches.remove(shared.jobName, shared)) {
+                        logger.debug("Stopped watching deployment job {}, no caller left", shared.jobName);
+                    }
+                }
+            }
+        });
+        return result;
+    }
+
+    public int getWatchedCount() {
+        return watches.size();
+    }
+
+    public long getMinInterval() {
+        return minInterval;
+    }
+
+    public void setMinInterval(long minInterval) {
+        this.minInterval = minInterval;
+    }
+
+    public long getMaxInterval() {
+        return maxInterval;
+    }
+
+    public void setMaxInterval(long maxInterval) {
+        this.maxInterval = maxInterval;
+    }
+
+    public long getMaxWatchTime() {
+        return maxWatchTime;
+    }
+
+    public void setMaxWatchTime(long maxWatchTime) {
+        this.maxWatchTime = maxWatchTime;
+    }
+
+    public int getJobsPerQuery() {
+        return jobsPerQuery;
+    }
+
+    public void setJobsPerQuery(int jobsPerQuery) {
+        this.jobsPerQuery = jobsPerQuery;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    public void setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    public long getWatchCount() {
+        return watchCount.sum();
+    }
+
+    public long getSharedCount() {
+        return sharedCount.sum();
+    }
+
+    public long getPollCount() {
+        return pollCount.sum();
+    }
+
+    public long getQueryCount() {
+        return queryCount.sum();
+    }
+
+    /**
+     * Stop polling. Jobs still watched complete with a CancellationException.
+     */
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+        for (Watch watch : watches.values()) {
+            watch.future.cancel(false);
+        }
+        watches.clear();
+    }
+
+    @Override
+    public String toString() {
+        return "DeploymentWatchService{" + "watched=" + watches.size() +
+                ", watches=" + watchCount.sum() +
+                ", shared=" + sharedCount.sum() +
+                ", polls=" + pollCount.sum() +
+                ", queries=" + queryCount.sum() +
+                ", finished=" + finishedCount.sum() +
+                ", timedOut=" + timedOutCount.sum() +
+                ", interval=" + interval +
+        '}';
+    }
+
+    /**
+     * 0 = Submitted, 1 = Executing, 2 = Succeeded, 3 = Failed; a status of 2 or more is final.
+     */
+    static boolean isFinished(String status) {
+        try {
+            return status != null && Integer.parseInt(status) >= 2;
+        } catch (NumberFormatException e) {
+            logger.warn("Unexpected deployment status {}", status);
+            return false;
+        }
+    }
+
+    private synchronized void pollSoon() {
+        interval = minInterval;
+        if (nextPoll == null || nextPoll.getDelay(TimeUnit.MILLISECONDS) > minInterval) {
+            if (nextPoll != null) {
+                nextPoll.cancel(false);
+            }
+            nextPoll = scheduler.schedule(this::poll, minInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void poll() {
+        pollCount.increment();
+        boolean changed = false;
+        List<Watch> watched = new ArrayList<>(watches.values());
+        List<Watch> unindexed = watched;
+        if (index != null) {
+            try {
+                index.refresh();
+                Map<String, String> statuses = new HashMap<>();
+                unindexed = new ArrayList<>();
+                for (Watch watch : watched) {
+                    DeploymentHistoryIndex.HistoryEvent latest = index.latestForJob(watch.jobName);
+                    if (latest != null) {
+                        statuses.put(watch.jobName, latest.getResult());
+                    } else {
+                        unindexed.add(watch);
+                    }
+                }
+                changed = update(watched, statuses);
+            } catch (AdmException | RuntimeException e) {
+                logger.warn("Error refreshing the deployment history index: {}", e.getMessage());
+                unindexed = watched;
+            }
+        }
+        for (int from = 0; from < unindexed.size(); from += jobsPerQuery) {
+            List<Watch> group = unindexed.subList(from, Math.min(unindexed.size(), from + jobsPerQuery));
+            try {
+                changed |= update(group, queryStatuses(group));
+            } catch (AdmException | RuntimeException e) {
+                logger.warn("Error polling {} deployment jobs: {}", group.size(), e.getMessage());
+            }
+        }
+
+        long now = System.currentTimeMillis();
+        for (Watch watch : watched) {
+            if (!watch.future.isDone() && now - watch.startedAt > maxWatchTime) {
+                timedOutCount.increment();
+                watches.remove(watch.jobName, watch);
+                watch.future.completeExceptionally(new TimeoutException("Deployment job " + watch.jobName
+                        + " of " + watch.entityName + " has not finished within " + maxWatchTime + " ms"));
+            }
+        }
+
+        synchronized (this) {
+            interval = changed ? minInterval : Math.min(maxInterval, Math.max(minInterval, interval * 2));
+            nextPoll = watches.isEmpty() || scheduler.isShutdown()
+                    ? null : scheduler.schedule(this::poll, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * @return the latest status of each job found in the deployment history, by job name
+     */
+    private Map<String, String> queryStatuses(List<Watch> group) throws AdmException {
+        FilterImpl filter = new FilterImpl();
+        filter.criteria().add(FilterCriterion.START_OR);
+        for (Watch watch : group) {
+            filter.criteria().add(new FilterCriterion(AdmAttrNames.JOB_NAME, watch.jobName, FilterCriterion.EQUALS));
+        }
+        filter.criteria().add(FilterCriterion.END_OR);
+
+        Map<String, String> statuses = new HashMap<>();
+        Map<String, Long> eventDates = new HashMap<>();
+        for (int from = 0; ; from += pageSize) {
+            queryCount.increment();
+            List<AdmObject> objects = client.queryDeploymentHistory(filter, new RangeInfo(from, from + pageSize - 1));
+            if (objects == null || objects.isEmpty()) {
+                break;
+            }
+            for (AdmObject obj : objects) {
+                String jobName = (String) obj.getAttrValue(AdmAttrNames.JOB_NAME);
+                if (jobName == null) {
+                    continue;
+                }
+                // the rows are not sorted by date, keep the latest event of each job; on a tie the first row
+                long eventDate = DeploymentHistoryIndex.parseEventDate(obj.getAttrValue(AdmAttrNames.HISTORY_EVENT_DATE));
+                Long latest = eventDates.get(jobName);
+                if (latest == null || eventDate > latest) {
+                    eventDates.put(jobName, eventDate);
+                    statuses.put(jobName, (String) obj.getAttrValue(AdmAttrNames.HISTORY_EVENT_RESULT));
+                }
+            }
+            if (objects.size() < pageSize) {
+                break;
+            }
+        }
+        return statuses;
+    }
+
+    private boolean update(List<Watch> group, Map<String, String> statuses) {
+        boolean changed = false;
+        for (Watch watch : group) {
+            String status = statuses.get(watch.jobName);
+            if (status == null || status.equals(watch.status)) {
+                continue;
+            }
+            changed = true;
+            watch.status = status;
+            for (Consumer<String> listener : watch.listeners) {
+                try {
+                    listener.accept(status);
+                } catch (RuntimeException e) {
+                    logger.warn("Deployment status listener failed", e);
+                }
+            }
+            if (isFinished(status)) {
+                finishedCount.increment();
+                watches.remove(watch.jobName, watch);
+                watch.future.complete(status);
+            }
+        }
+        return changed;
+    }
+
+    private static class Watch {
+        final String entityName;
+        final String jobName;
+        final long startedAt;
+        final CompletableFuture<String> future = new CompletableFuture<>();
+        final List<Consumer<String>> listeners = new CopyOnWriteArrayList<>();
+        final AtomicInteger callers = new AtomicInteger();
+        volatile String status;
+
+        Watch(String entityName, String jobName, long startedAt) {
+            this.entityName = entityName;
+            this.jobName = jobName;
+            this.startedAt = startedAt;
+        }
+    }
+}
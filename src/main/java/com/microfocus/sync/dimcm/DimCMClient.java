@@ -1,9 +1,14 @@
 package com.microfocus.sync.dimcm;
 
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import merant.adm.dimensions.cmds.AdmCmd;
 import merant.adm.dimensions.cmds.helper.IDeploymentViewConstants;
@@ -18,7 +23,6 @@ import merant.adm.dimensions.objects.core.AdmAttrNames;
 import merant.adm.dimensions.objects.core.AdmObject;
 import merant.adm.dimensions.objects.userattrs.FilterImpl;
 import merant.adm.exception.AdmException;
-import merant.adm.exception.AdmObjectException;
 import merant.adm.framework.Cmd;
 
 import com.serena.dmclient.api.Baseline;
@@ -39,9 +43,6 @@ import com.serena.dmclient.api.Filter.Criterion;
 import com.serena.dmclient.api.LoginFailedException;
 import com.serena.dmclient.api.Project;
 import com.serena.dmclient.api.SystemAttributes;
-import com.serena.dmclient.collections.BuildStages;
-import com.serena.dmclient.objects.Lifecycle;
-import com.serena.dmclient.objects.Product;
 
 public class DimCMClient {
     public static final String OUT_PROP_NAME = "OUTPUT_DATA";
@@ -61,25 +62,11 @@ public class DimCMClient {
 
     private static final int MILISECONDS_IN_24_HOURS = 24 * 60 * 60 * 1000;
 
-    private static final SimpleDateFormat DIMCM_DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd'T'kk:mm:ss.SSS'Z'");
-
-    private static final Comparator<AdmObject> AMD_OBJ_BY_DATE_COMPARATOR = new Comparator<AdmObject>() {
-        @Override
-        public int compare(AdmObject o1, AdmObject o2) {
-            try {
-                String dateStr1 = o1.getAttrValue(AdmAttrNames.HISTORY_EVENT_DATE).toString();
-                String dateStr2 = o2.getAttrValue(AdmAttrNames.HISTORY_EVENT_DATE).toString();
-                Date d1 = DIMCM_DATE_FORMAT.parse(dateStr1);
-                Date d2 = DIMCM_DATE_FORMAT.parse(dateStr2);
-                return d2.compareTo(d1); // INVERSED ORDER! - we need latest date first
-            } catch (AdmObjectException e) {
-                e.printStackTrace();
-            } catch (ParseException e) {
-                e.printStackTrace();
-            }
-            return 0;
-        }
-    };
+    public static int DEFAULT_HISTORY_PAGE_SIZE = 50;
+    public static int DEFAULT_FULL_HISTORY_PAGE_SIZE = 10000;
+    public static long DEFAULT_HISTORY_WINDOW = MILISECONDS_IN_24_HOURS;
+    public static int DEFAULT_JOB_NAME_CACHE_SIZE = 1000;
+    public static boolean DEFAULT_USE_HISTORY_INDEX = false;
 
     static {
         DEPLOYMENT_ATTRIBUTES_DEBUG.add(AdmAttrNames.ID);// Name
@@ -142,7 +129,21 @@ public class DimCMClient {
         }
     }
 
-    private DimensionsConnection connection;
+    private volatile DimensionsConnection connection;
+    private DimensionsConnectionPool connectionPool;
+    private DeploymentWatchService deploymentWatchService;
+    private DeploymentHistoryIndex deploymentHistoryIndex;
+    private int historyPageSize = DEFAULT_HISTORY_PAGE_SIZE;
+    private int fullHistoryPageSize = DEFAULT_FULL_HISTORY_PAGE_SIZE;
+    private long historyWindow = DEFAULT_HISTORY_WINDOW;
+    private volatile boolean useHistoryIndex = DEFAULT_USE_HISTORY_INDEX;
+    private final Map<String, String> jobNamesByRequest = new LinkedHashMap<String, String>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > DEFAULT_JOB_NAME_CACHE_SIZE;
+        }
+    };
+    private DimensionsMetadataCache metadataCache = new DimensionsMetadataCache(DIMCM_DEFAULT_LIFECYCLE, DimensionsMetadataCache.DEFAULT_TTL);
 
     public DimensionsOperations() {
     }
@@ -168,6 +169,9 @@ public class DimCMClient {
             throw new RuntimeException(e);
         }
 
+        // give up a connection held already, including one of a pool, before opening a direct one
+        disconnect();
+        connectionPool = null;
         try {
             DimensionsConnectionDetails details = new DimensionsConnectionDetails();
             details.setUsername(username);
@@ -193,16 +197,95 @@ public class DimCMClient {
         System.out.println("Connection established");
     }
 
-    public List<String> getProducts() {
-        DimensionsObjectFactory factory = connection.getObjectFactory();
-        @SuppressWarnings("unchecked")
-        List<Product> products = factory.getBaseDatabase().getProducts();
+    /**
+     * Use connections from a pool. The client holds one connection of the pool for calls made on
+     * ordinary threads until disconnect(); calls made on a worker thread of the pool use that worker's
+     * connection, so independent operations submitted to newWorkerExecutor() run in parallel.
+     */
+    public void connect(DimensionsConnectionPool pool) {
+        disconnect();
+        connectionPool = pool;
+        connection = pool.borrow();
+        System.out.println("Connection established");
+    }
 
-        List<String> res = new ArrayList<String>();
-        for (Product p : products) {
-            res.add(p.getName());
+    /**
+     * Give up the connection of the client and stop the deployment watch service: a connection of a
+     * pool is given back to the pool, a connection of its own is closed. Calls on ordinary threads
+     * fail until the client connects again, calls on pool worker threads keep working.
+     */
+    public synchronized void disconnect() {
+        if (deploymentWatchService != null) {
+            deploymentWatchService.close();
+            deploymentWatchService = null;
         }
-        return res;
+        DimensionsConnection own = connection;
+        if (own == null) {
+            return;
+        }
+        connection = null;
+        if (connectionPool != null) {
+            connectionPool.release(own);
+        } else {
+            own.close();
+        }
+    }
+
+    public DimensionsConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+
+    /**
+     * Create a worker executor on the pool of the client (see DimensionsConnectionPool.newWorkerExecutor).
+     * While the client holds a connection of the pool the executor gets at most one thread less than
+     * the pool size, since a further worker would wait for a connection that is not given back.
+     *
+     * @param  threads  the number of worker threads wanted
+     * @param  namePrefix  the prefix of the worker thread names
+     * @return the executor
+     */
+    public ExecutorService newWorkerExecutor(int threads, String namePrefix) {
+        DimensionsConnectionPool pool = connectionPool;
+        if (pool == null) {
+            throw new IllegalStateException("Not connected to a Dimensions connection pool");
+        }
+        int available = pool.getMaxSize() - (connection != null ? 1 : 0);
+        if (available < 1) {
+            throw new IllegalStateException("No connection of the pool of " + pool.getMaxSize()
+                    + " is left for workers, the client holds one until disconnect()");
+        }
+        return pool.newWorkerExecutor(Math.min(threads, available), namePrefix);
+    }
+
+    public DimensionsMetadataCache getMetadataCache() {
+        return metadataCache;
+    }
+
+    /**
+     * Share a metadata cache between clients connected to the same database.
+     */
+    public void setMetadataCache(DimensionsMetadataCache metadataCache) {
+        this.metadataCache = metadataCache;
+    }
+
+    /**
+     * The connection of the current pool worker thread if there is one, else the client's own.
+     */
+    private DimensionsConnection connection() {
+        DimensionsConnection bound = DimensionsConnectionPool.getThreadConnection();
+        if (bound != null) {
+            return bound;
+        }
+        DimensionsConnection own = connection;
+        if (own == null) {
+            throw new IllegalStateException("Not connected to Dimensions CM");
+        }
+        return own;
+    }
+
+    public List<String> getProducts() {
+        DimensionsObjectFactory factory = connection().getObjectFactory();
+        return new ArrayList<String>(metadataCache.getProducts(factory));
     }
 
     public List<String> getProjectsStreams(String productName) {
@@ -212,7 +295,7 @@ public class DimCMClient {
     @SuppressWarnings("unchecked")
     public List<String> getProjectsStreams(String productName, GetOptions opts) {
         productName = prepareDimCMParam(productName);
-        DimensionsObjectFactory factory = connection.getObjectFactory();
+        DimensionsObjectFactory factory = connection().getObjectFactory();
         productShouldExist(factory, productName);
 
         Filter filter = new Filter();
@@ -241,7 +324,7 @@ public class DimCMClient {
     @SuppressWarnings("unchecked")
     public List<String> getBaselines(String productName) {
         productName = prepareDimCMParam(productName);
-        DimensionsObjectFactory factory = connection.getObjectFactory();
+        DimensionsObjectFactory factory = connection().getObjectFactory();
         productShouldExist(factory, productName);
 
         Filter filter = new Filter();
@@ -257,16 +340,9 @@ public class DimCMClient {
         return res;
     }
 
-    @SuppressWarnings("unchecked")
     public List<String> getStages() {
-        DimensionsObjectFactory factory = connection.getObjectFactory();
-        BuildStages bs = factory.getBaseDatabaseAdmin().getBuildStages();
-
-        List<String> res = new ArrayList<String>();
-        for (Iterator<String> i = bs.iterator(); i.hasNext();) {
-            res.add(i.next());
-        }
-        return res;
+        DimensionsObjectFactory factory = connection().getObjectFactory();
+        return new ArrayList<String>(metadataCache.getStages(factory));
     }
 
     @SuppressWarnings("unchecked")
@@ -274,7 +350,7 @@ public class DimCMClient {
             String projectFilter,
             String stageFilter,
             AreaType... types) {
-        DimensionsObjectFactory factory = connection.getObjectFactory();
+        DimensionsObjectFactory factory = connection().getObjectFactory();
         projectFilter = prepareDimCMParam(projectFilter);
         stageFilter = prepareDimCMParam(stageFilter);
 
@@ -327,7 +403,7 @@ public class DimCMClient {
         product = prepareDimCMParam(product);
         projectName = prepareDimCMParam(projectName);
         baselineName = prepareDimCMParam(baselineName);
-        DimensionsObjectFactory factory = connection.getObjectFactory();
+        DimensionsObjectFactory factory = connection().getObjectFactory();
 
         BaselineDetails bd = new BaselineDetails(product, baselineName);
         bd.setTypeName(baselineType);
@@ -337,7 +413,7 @@ public class DimCMClient {
             String[] attributePairs = attributeNames.split("\n");
             for (String pair : attributePairs) {
                 String[] attributeArray = pair.split("=");
-                bd.setAttribute(factory.getAttributeNumber(attributeArray[0], Baseline.class), attributeArray[1]);
+                bd.setAttribute(metadataCache.getAttributeNumber(factory, attributeArray[0], Baseline.class), attributeArray[1]);
             }
         }
 
@@ -357,7 +433,7 @@ public class DimCMClient {
         baseline = prepareDimCMParam(baseline);
         stage = prepareDimCMParam(stage);
 
-        DimensionsObjectFactory factory = connection.getObjectFactory();
+        DimensionsObjectFactory factory = connection().getObjectFactory();
 
         System.out.println(String.format("Promoting baseline %s to stage %s", baseline, stage));
 
@@ -402,7 +478,7 @@ public class DimCMClient {
         baseline = prepareDimCMParam(baseline);
         stage = prepareDimCMParam(stage);
 
-        DimensionsObjectFactory factory = connection.getObjectFactory();
+        DimensionsObjectFactory factory = connection().getObjectFactory();
 
         System.out.println(String.format("Demoting baseline %s to stage %s", baseline, stage));
 
@@ -444,7 +520,7 @@ public class DimCMClient {
         productName = prepareDimCMParam(productName);
         objectName = prepareDimCMParam(objectName);
 
-        DimensionsObjectFactory factory = connection.getObjectFactory();
+        DimensionsObjectFactory factory = connection().getObjectFactory();
         productShouldExist(factory, productName);
 
         DimensionsLcObject entity = null;
@@ -487,7 +563,7 @@ public class DimCMClient {
             System.out.println("Specified areas: " + areasSet);
         }
 
-        DimensionsObjectFactory factory = connection.getObjectFactory();
+        DimensionsObjectFactory factory = connection().getObjectFactory();
         productShouldExist(factory, product);
 
         Baseline baselineObj = getBaseline(factory, product, baseline);
@@ -501,11 +577,17 @@ public class DimCMClient {
         System.out.println("BASELINE STAGE = " + stage);
         if(stage == null ){
             areasToDeploy = new ArrayList<FileArea>();
-            List<String> allStages = getLifeCycleStages(factory);
+            List<String> areaStages = new ArrayList<String>();
+            for(FileArea area: areasList){
+                areaStages.add(area.getStageID());
+            }
+            // ranks and stage names come from the same snapshot, reloaded at most once for all areas
+            DimensionsMetadataCache.LifecycleOrder lifecycle = metadataCache.getLifecycleOrder(factory, areaStages);
+            List<String> allStages = lifecycle.getStages();
             System.out.println("Lifecycle = " + allStages);
             int minArea = Integer.MAX_VALUE;
             for(FileArea area: areasList){
-                int index = allStages.indexOf(area.getStageID());
+                int index = lifecycle.getRank(area.getStageID());
                 System.out.println("    Area= " + area.getName() +" stage= " + area.getStageID() + " index= " + index);
                 if(index == minArea){
                     areasToDeploy.add(area);
@@ -556,7 +638,7 @@ public class DimCMClient {
         project = prepareDimCMParam(project);
         baseline = prepareDimCMParam(baseline);
 
-        DimensionsObjectFactory factory = connection.getObjectFactory();
+        DimensionsObjectFactory factory = connection().getObjectFactory();
         Baseline baselineObj = getBaseline(factory, product, baseline);
         Project projectObj = getProjectIfExists(factory, product, project);
 
@@ -571,7 +653,7 @@ public class DimCMClient {
     public DimensionsResult rollbackArea(String area, int version, String comment) {
         area = prepareDimCMParam(area);
 
-        DimensionsObjectFactory factory = connection.getObjectFactory();
+        DimensionsObjectFactory factory = connection().getObjectFactory();
 
         String command = null;
         if (version == -1) {
@@ -593,7 +675,7 @@ public class DimCMClient {
             boolean delete,
             String attributes,
             String comment) {
-        DimensionsObjectFactory factory = connection.getObjectFactory();
+        DimensionsObjectFactory factory = connection().getObjectFactory();
 
         StringBuilder command = new StringBuilder();
         command.append("DELIVER /USER_DIRECTORY=");
@@ -626,7 +708,7 @@ public class DimCMClient {
             String attributes,
             String comment,
             String description) {
-        DimensionsObjectFactory factory = connection.getObjectFactory();
+        DimensionsObjectFactory factory = connection().getObjectFactory();
 
         StringBuilder command = new StringBuilder();
         command.append("UPLOAD /PERMS=KEEP /USER_DIRECTORY=");
@@ -668,70 +750,190 @@ public class DimCMClient {
         }
     }
 
-    @SuppressWarnings("unchecked")
+    /**
+     * Finds the deployment submitted with sraRequestID in its comment.
+     * The job name of a deployment found once is remembered, later calls only read the latest event
+     * of that job. Otherwise the history of the entity is read in pages, newest first within a page,
+     * limited to the history window, stopping at the first page with a matching comment. If nothing
+     * matches within the window, e.g. for a deployment submitted earlier, the whole history is searched.
+     * With the history index in use the index is refreshed and searched first.
+     */
     private DeploymentInfo getDeploymentStatus(String entityName, String sraRequestID) throws AdmException {
-
-        List<AdmObject> objects = null;
+        String requestKey = entityName + ':' + sraRequestID;
+        String jobName;
+        synchronized (jobNamesByRequest) {
+            jobName = jobNamesByRequest.get(requestKey);
+        }
+        if (useHistoryIndex) {
+            DeploymentInfo info = getIndexedDeploymentStatus(entityName, sraRequestID, jobName);
+            if (info != null) {
+                return info;
+            }
+        }
+        if (jobName != null) {
+            FilterImpl filter = new FilterImpl();
+            filter.criteria().add(new FilterCriterion(AdmAttrNames.JOB_NAME, jobName, FilterCriterion.EQUALS));
+            filter.criteria().add(new FilterCriterion(AdmAttrNames.ID, entityName, FilterCriterion.EQUALS));
+
+            List<AdmObject> objects = queryDeploymentHistory(filter, new RangeInfo(0, historyPageSize - 1));
+            if (objects != null && !objects.isEmpty()) {
+                objects = DeploymentHistoryIndex.latestFirst(objects);
+                DeploymentInfo info = new DeploymentInfo(entityName, jobName);
+                info.result = (String) objects.get(0).getAttrValue(AdmAttrNames.HISTORY_EVENT_RESULT);
+                return info;
+            }
+        }
 
         // Getting deployment history for entityName
+        AdmObject found = null;
+        if (historyWindow > 0) {
+            found = findDeployment(entityName, sraRequestID, System.currentTimeMillis() - historyWindow,
+                    historyPageSize);
+        }
+        if (found == null) {
+            // the whole history in as few round trips as before the window was added
+            found = findDeployment(entityName, sraRequestID, 0, fullHistoryPageSize);
+        }
+        if (found == null) {
+            return null;
+        }
+        DeploymentInfo info = new DeploymentInfo(entityName, (String) found.getAttrValue(AdmAttrNames.JOB_NAME));
+        info.result = (String) found.getAttrValue(AdmAttrNames.HISTORY_EVENT_RESULT);
+        if (info.jobName != null) {
+            synchronized (jobNamesByRequest) {
+                jobNamesByRequest.put(requestKey, info.jobName);
+            }
+        }
+        return info;
+    }
+
+    /**
+     * Finds the deployment in the history index, refreshed first.
+     *
+     * @return the latest status of the deployment, null if the index holds no event of it
+     */
+    private DeploymentInfo getIndexedDeploymentStatus(String entityName, String sraRequestID, String jobName)
+            throws AdmException {
+        DeploymentHistoryIndex index = getDeploymentHistoryIndex();
+        index.refresh();
+        if (jobName == null) {
+            String suffix = "[" + sraRequestID + "]";
+            List<DeploymentHistoryIndex.HistoryEvent> events = index.getByEntity(entityName);
+            for (int i = events.size() - 1; i >= 0 && jobName == null; i--) {
+                String comment = events.get(i).getComment();
+                if (comment != null && comment.endsWith(suffix)) {
+                    jobName = events.get(i).getJobName();
+                }
+            }
+            if (jobName == null) {
+                return null;
+            }
+            synchronized (jobNamesByRequest) {
+                jobNamesByRequest.put(entityName + ':' + sraRequestID, jobName);
+            }
+        }
+        DeploymentHistoryIndex.HistoryEvent latest = index.latestForJob(jobName);
+        if (latest == null) {
+            return null;
+        }
+        DeploymentInfo info = new DeploymentInfo(entityName, jobName);
+        info.result = latest.getResult();
+        return info;
+    }
+
+    /**
+     * @param  since  epoch milliseconds of the oldest event searched, 0 to search all of the history
+     * @param  pageSize  rows fetched per query
+     * @return the latest event of entityName whose comment ends with [sraRequestID], null if there is none
+     */
+    private AdmObject findDeployment(String entityName, String sraRequestID, long since, int pageSize)
+            throws AdmException {
         FilterImpl filter = new FilterImpl();
         filter.criteria().add(new FilterCriterion(AdmAttrNames.ID, entityName, FilterCriterion.EQUALS));
-
-        DimensionsConnectionManager.registerThreadConnection(connection);
-        try {
-            DeploymentViewContext dvc = new DeploymentViewContext(AdmCmd.getCurRootObj(BaseDatabase.class).getAdmSpec());
-            Cmd cmd = AdmCmd.getCmd(Relatable.QUERY_CHILDREN, dvc, DeploymentHistoryRecord.class);
-            cmd.setAttrValue(CmdArguments.ATTRIBUTE_NAMES, DEPLOYMENT_ATTRIBUTES);
-            cmd.setAttrValue(CmdArguments.DATA_RANGE_INFO, new RangeInfo(0, 9999));
-            cmd.setAttrValue(CmdArguments.FILTER, filter);
-            cmd.setAttrValue(CmdArguments.DEPLOYMENT_DATA_REQUESTED_MODE, Integer.valueOf(IDeploymentViewConstants.MODE_HISTORY));
-            cmd.setAttrValue(CmdArguments.USE_CACHE, Boolean.FALSE);
-            objects = (List<AdmObject>) cmd.execute();
-        } finally {
-            DimensionsConnectionManager.unregisterThreadConnection();
+        if (since > 0) {
+            filter.criteria().add(new FilterCriterion(AdmAttrNames.HISTORY_EVENT_DATE,
+                    DeploymentHistoryIndex.formatEventDate(since), FilterCriterion.GREATER_EQUAL));
         }
 
-        if (objects != null) {
-            for (AdmObject obj : objects) {
-                if (obj.getAttrValue(AdmAttrNames.COMMENT).toString().endsWith("[" + sraRequestID + "]")) {
-                    DeploymentInfo info = new DeploymentInfo(entityName, (String) obj.getAttrValue(AdmAttrNames.JOB_NAME));
-                    info.result = (String) obj.getAttrValue(AdmAttrNames.HISTORY_EVENT_RESULT);
-                    return info;
+        String suffix = "[" + sraRequestID + "]";
+        for (int from = 0; ; from += pageSize) {
+            List<AdmObject> objects = queryDeploymentHistory(filter, new RangeInfo(from, from + pageSize - 1));
+            if (objects == null || objects.isEmpty()) {
+                return null;
+            }
+            for (AdmObject obj : DeploymentHistoryIndex.latestFirst(objects)) {
+                Object comment = obj.getAttrValue(AdmAttrNames.COMMENT);
+                if (comment != null && comment.toString().endsWith(suffix)) {
+                    return obj;
                 }
             }
+            if (objects.size() < pageSize) {
+                return null;
+            }
         }
-        return null;
     }
 
-    @SuppressWarnings("unchecked")
-    private DeploymentInfo getDeploymentStatus(DeploymentInfo info) throws AdmException {
+    public int getHistoryPageSize() {
+        return historyPageSize;
+    }
 
-        List<AdmObject> objects = null;
+    public void setHistoryPageSize(int historyPageSize) {
+        this.historyPageSize = historyPageSize;
+    }
 
-        // Getting deployment history for entityName
-        FilterImpl filter = new FilterImpl();
-        filter.criteria().add(new FilterCriterion(AdmAttrNames.JOB_NAME, info.jobName, FilterCriterion.EQUALS));
-        filter.criteria().add(new FilterCriterion(AdmAttrNames.ID, info.entityName, FilterCriterion.EQUALS));
+    public int getFullHistoryPageSize() {
+        return fullHistoryPageSize;
+    }
+
+    /**
+     * @param  fullHistoryPageSize  rows fetched per query when a request ID is not found in the history
+     *                             window and all of the history is searched
+     */
+    public void setFullHistoryPageSize(int fullHistoryPageSize) {
+        this.fullHistoryPageSize = fullHistoryPageSize;
+    }
 
-        DimensionsConnectionManager.registerThreadConnection(connection);
+    public long getHistoryWindow() {
+        return historyWindow;
+    }
+
+    /**
+     * @param  historyWindow  milliseconds of recent deployment history searched first for a request ID, 0 to
+     *                       search all of it straight away
+     */
+    public void setHistoryWindow(long historyWindow) {
+        this.historyWindow = historyWindow;
+    }
+
+    /**
+     * Runs a deployment history query. The AdmCmd API works on the connection registered for the
+     * current thread: a pool worker thread has its connection registered for its whole lifetime,
+     * any other thread registers the client's connection for the duration of the query.
+     */
+    List<AdmObject> queryDeploymentHistory(FilterImpl filter, RangeInfo range) throws AdmException {
+        return queryDeploymentHistory(filter, range, DEPLOYMENT_ATTRIBUTES);
+    }
+
+    @SuppressWarnings("unchecked")
+    List<AdmObject> queryDeploymentHistory(FilterImpl filter, RangeInfo range, List<String> attributes) throws AdmException {
+        boolean register = DimensionsConnectionPool.getThreadConnection() == null;
+        if (register) {
+            DimensionsConnectionManager.registerThreadConnection(connection());
+        }
         try {
             DeploymentViewContext dvc = new DeploymentViewContext(AdmCmd.getCurRootObj(BaseDatabase.class).getAdmSpec());
             Cmd cmd = AdmCmd.getCmd(Relatable.QUERY_CHILDREN, dvc, DeploymentHistoryRecord.class);
-            cmd.setAttrValue(CmdArguments.ATTRIBUTE_NAMES, DEPLOYMENT_ATTRIBUTES);
-            cmd.setAttrValue(CmdArguments.DATA_RANGE_INFO, new RangeInfo(0, 9999));
+            cmd.setAttrValue(CmdArguments.ATTRIBUTE_NAMES, attributes);
+            cmd.setAttrValue(CmdArguments.DATA_RANGE_INFO, range);
             cmd.setAttrValue(CmdArguments.FILTER, filter);
             cmd.setAttrValue(CmdArguments.DEPLOYMENT_DATA_REQUESTED_MODE, Integer.valueOf(IDeploymentViewConstants.MODE_HISTORY));
             cmd.setAttrValue(CmdArguments.USE_CACHE, Boolean.FALSE);
-            objects = (List<AdmObject>) cmd.execute();
+            return (List<AdmObject>) cmd.execute();
         } finally {
-            DimensionsConnectionManager.unregisterThreadConnection();
-        }
-
-        if (objects != null) {
-            info.result = (String) objects.get(0).getAttrValue(AdmAttrNames.HISTORY_EVENT_RESULT);
-            return info;
+            if (register) {
+                DimensionsConnectionManager.unregisterThreadConnection();
+            }
         }
-        return null;
     }
 
     @SuppressWarnings("unchecked")
@@ -772,34 +974,14 @@ public class DimCMClient {
         }
     }
 
-    private static boolean isProductExists(DimensionsObjectFactory factory, String productName) {
-        @SuppressWarnings("unchecked")
-        List<Product> list = factory.getBaseDatabase().getProducts();
-        for (Product product : list) {
-            if (product.getName().equals(productName)) {
-                return true;
-            }
-        }
-        return false;
-    }
-
-    private static void productShouldExist(DimensionsObjectFactory factory, String productName) {
-        if (!isProductExists(factory, productName)) {
+    private void productShouldExist(DimensionsObjectFactory factory, String productName) {
+        if (!metadataCache.productExists(factory, productName)) {
             throw new RuntimeException("Error: the specified product name - " + productName + " - does not exist");
         }
     }
 
-    private static void stageShouldExist(DimensionsObjectFactory factory, String stage) {
-        BuildStages bs = factory.getBaseDatabaseAdmin().getBuildStages();
-
-        boolean doesStageExist = false;
-        for (@SuppressWarnings("unchecked")
-             Iterator<String> i = bs.iterator(); i.hasNext();) {
-            if (i.next().equals(stage)) {
-                doesStageExist = true;
-            }
-        }
-        if (!doesStageExist) {
+    private void stageShouldExist(DimensionsObjectFactory factory, String stage) {
+        if (!metadataCache.stageExists(factory, stage)) {
             throw new RuntimeException("Error: the specified stage name - " + stage + " - does not exist");
         }
     }
@@ -812,23 +994,6 @@ public class DimCMClient {
     }
 
 
-    private static List<String> getLifeCycleStages(DimensionsObjectFactory factory) {
-        List<String> res = new ArrayList<String>();
-//      More clear version, but there is bug in dimensions java API - BuildStages loses stages` order
-//        List<String> res2 = new ArrayList<String>();
-//        BuildStages bs = factory.getBaseDatabaseAdmin().getBuildStages();
-//        for (Iterator<String> i = bs.iterator(); i.hasNext(); ){
-//            res2.add(i.next());
-//        }
-        Lifecycle lc = factory.getBaseDatabase().getLifecycle(DIMCM_DEFAULT_LIFECYCLE);
-        for (Iterator<?> i = lc.getNormalStates().iterator(); i.hasNext(); ){
-            res.add(i.next().toString());
-        }
-        return res;
-    }
-
-
-
     // ========================================================================
     // Simple Helper methods
     // ========================================================================
@@ -939,43 +1104,93 @@ public class DimCMClient {
         return result;
     }
 
+    public boolean isUseHistoryIndex() {
+        return useHistoryIndex;
+    }
+
+    /**
+     * Serve deployment lookups and watches from getDeploymentHistoryIndex(), which reads only the events
+     * since its last refresh, instead of querying the history per request and per job. Suited to a
+     * long running process waiting for many deployments; the first refresh reads the whole retention
+     * time. Set it before the first waitForDeployment.
+     *
+     * @param  useHistoryIndex  true to use the index
+     */
+    public void setUseHistoryIndex(boolean useHistoryIndex) {
+        this.useHistoryIndex = useHistoryIndex;
+    }
+
+    /**
+     * A local index of the recent deployment history of the database, call refresh() on it to read new events.
+     */
+    public synchronized DeploymentHistoryIndex getDeploymentHistoryIndex() {
+        if (deploymentHistoryIndex == null) {
+            deploymentHistoryIndex = new DeploymentHistoryIndex(this);
+        }
+        return deploymentHistoryIndex;
+    }
+
+    public synchronized DeploymentWatchService getDeploymentWatchService() {
+        if (deploymentWatchService == null) {
+            deploymentWatchService = new DeploymentWatchService(this, useHistoryIndex ? getDeploymentHistoryIndex() : null);
+        }
+        return deploymentWatchService;
+    }
+
     public int waitForDeployment(String entityName, String sraRequestID, int timeout) {
         if (timeout == -1) {
             timeout = MILISECONDS_IN_24_HOURS;
         }
         DeploymentInfo info = null;
         long start = System.currentTimeMillis();
-        String prevStatus = null;
-        while (info == null || !deploymentStatusIsFinished(info)) {
+        while (info == null) {
             if (System.currentTimeMillis() - start > timeout) {
                 throw new RuntimeException("Stopped by timeout!");
             }
             try {
-                if (info == null) {
-                    // First time - looking for entity with sraRequestID in the comment
-                    info = getDeploymentStatus(entityName, sraRequestID);
-                    if(info == null){ // no deployment was found - all areas were skipped
-                        System.out.println("No deployment was found, all areas were skipped.");
-                        break
-                    }
-                } else {
-                    // Then - getting status by DeploymentInfo.JOB_NAME, returned from the first request
-                    info = getDeploymentStatus(info);
-                }
-
-                if(!info.result.equals(prevStatus)){
-                    System.out.println("STATUS == " + getStatusStr(info.result));
-                    prevStatus = info.result
+                // First time - looking for entity with sraRequestID in the comment
+                info = getDeploymentStatus(entityName, sraRequestID);
+                if(info == null){ // no deployment was found - all areas were skipped
+                    System.out.println("No deployment was found, all areas were skipped.");
+                    return 0;
                 }
-                Thread.sleep(200);
-
-            } catch (InterruptedException e) {
-                e.printStackTrace();
             } catch (AdmException e) {
                 e.printStackTrace();
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("Interrupted while waiting for deployment!", ie);
+                }
+            }
+        }
+        System.out.println("STATUS == " + getStatusStr(info.result));
+        String result = info.result;
+
+        if (!DeploymentWatchService.isFinished(result)) {
+            // Then - watching DeploymentInfo.JOB_NAME, returned from the first request, together with all other waits
+            final String[] prevStatus = {info.result};
+            CompletableFuture<String> finished = getDeploymentWatchService().watch(entityName, info.jobName, status -> {
+                if (!status.equals(prevStatus[0])) {
+                    System.out.println("STATUS == " + getStatusStr(status));
+                    prevStatus[0] = status;
+                }
+            });
+            try {
+                result = finished.get(Math.max(0, timeout - (System.currentTimeMillis() - start)), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                finished.cancel(false);
+                throw new RuntimeException("Stopped by timeout!");
+            } catch (InterruptedException e) {
+                // stop waiting when the thread running the wait is interrupted, e.g. on shutdown
+                finished.cancel(false);
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while waiting for deployment!", e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException("Error while waiting for deployment!", e.getCause());
             }
         }
-        if(info == null || DIMCM_DEPLOYMENT_STATUS__OK.equals(info.result)){
+        if(DIMCM_DEPLOYMENT_STATUS__OK.equals(result)){
             return 0; // OK exit code
         } else {
             return 1; // ERROR exit code
@@ -987,19 +1202,7 @@ public class DimCMClient {
      * 1 = Executing
      * 2 = Succeeded
      * 3 = Failed
-     * if status >= 2 - deployment is finished (successfully or not)
-     * @param info
-     * @return
      */
-    private boolean deploymentStatusIsFinished(DeploymentInfo info){
-//        if (info.result == null){ return false; }
-        try{
-            return Integer.parseInt(info.result) >= 2;
-        } catch (Exception e){
-            System.out.println("WARNING: unexpected deployment status =" + info.result);
-            return false;
-        }
-    }
     private String getStatusStr(String status){
         switch (status){
             case '0': return 'Submitted'
@@ -0,0 +1,419 @@
+/*
+ *
+ * Copyright (c) 2016 SERENA Software, Inc. All Rights Reserved.
+ *
+ * This software is proprietary information of SERENA Software, Inc.
+ * Use is subject to license terms.
+ *
+ * @author Kevin Lee
+ */
+package com.microfocus.sync.dimcm;
+
+import com.microfocus.sync.servicenow.client.DaemonThreadFactory;
+import com.serena.dmclient.api.DimensionsConnection;
+import com.serena.dmclient.api.DimensionsConnectionDetails;
+import com.serena.dmclient.api.DimensionsConnectionManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded pool of authenticated Dimensions CM connections, so independent promotions, deployments
+ * and queries can run in parallel instead of sharing one session.
+ * Connections are opened on demand up to the maximum size and reused most recently returned first.
+ * A connection idle for longer than the validation interval is checked before it is handed out, and
+ * connections idle for longer than the idle timeout are closed in the background.
+ * The worker executors of the pool bind a connection to each worker thread for the thread's lifetime
+ * and register it with DimensionsConnectionManager, so tasks run against the AdmCmd API without
+ * registering and unregistering a connection per call.
+ * @author klee@serena.com
+ */
+public class DimensionsConnectionPool implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(DimensionsConnectionPool.class);
+
+    public static int DEFAULT_MAX_SIZE = 4;
+    public static long DEFAULT_BORROW_TIMEOUT = 60000L;
+    public static long DEFAULT_VALIDATION_INTERVAL = 30000L;
+    public static long DEFAULT_IDLE_TIMEOUT = 600000L;
+
+    private static final ThreadLocal<DimensionsConnection> THREAD_CONNECTION = new ThreadLocal<>();
+
+    private final DimensionsConnectionDetails details;
+    private final int maxSize;
+    private final Semaphore permits;
+    private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<>();
+    private final Map<DimensionsConnection, PooledConnection> borrowed =
+            Collections.synchronizedMap(new IdentityHashMap<DimensionsConnection, PooledConnection>());
+    private final ScheduledExecutorService evictor;
+    private volatile boolean closed;
+
+    private long borrowTimeout = DEFAULT_BORROW_TIMEOUT;
+    private long validationInterval = DEFAULT_VALIDATION_INTERVAL;
+    private final long idleTimeout;
+
+    private final LongAdder createdCount = new LongAdder();
+    private final LongAdder borrowCount = new LongAdder();
+    private final LongAdder waitCount = new LongAdder();
+    private final LongAdder validationFailureCount = new LongAdder();
+    private final LongAdder evictedCount = new LongAdder();
+
+    public DimensionsConnectionPool(DimensionsConnectionDetails details) {
+        this(details, DEFAULT_MAX_SIZE, DEFAULT_IDLE_TIMEOUT);
+    }
+
+    /**
+     * @param  details  the server, database and credentials every connection of the pool is opened with
+     * @param  maxSize  the maximum number of open connections
+     * @param  idleTimeout  milliseconds after which an unused connection is closed
+     */
+    public DimensionsConnectionPool(DimensionsConnectionDetails details, int maxSize, long idleTimeout) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("maxSize must be at least 1, was " + maxSize);
+        }
+        this.details = details;
+        this.maxSize = maxSize;
+        this.permits = new Semaphore(maxSize, true);
+        this.idleTimeout = idleTimeout;
+        this.evictor = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("dimcm-pool-evictor"));
+        long evictionInterval = Math.max(1000L, idleTimeout / 2);
+        evictor.scheduleWithFixedDelay(this::evictIdle, evictionInterval, evictionInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * The connection bound to the current thread by a worker executor of any pool.
+     *
+     * @return the connection of the current worker thread, or null if the thread is not a pool worker
+     */
+    public static DimensionsConnection getThreadConnection() {
+        return THREAD_CONNECTION.get();
+    }
+
+    /**
+     * Take a connection out of the pool, waiting up to the borrow timeout when all are in use.
+     * The connection must be given back with release() or, if it is broken, invalidate().
+     *
+     * @return a connection, validated if it has been idle for longer than the validation interval
+     */
+    public DimensionsConnection borrow() {
+        if (closed) {
+            throw new IllegalStateException("Dimensions connection pool is closed");
+        }
+        try {
+            if (!permits.tryAcquire()) {
+                waitCount.increment();
+                if (!permits.tryAcquire(borrowTimeout, TimeUnit.MILLISECONDS)) {
+                    throw new RuntimeException("Error: no Dimensions connection became available within "
+                            + borrowTimeout + " ms, all " + maxSize + " are in use");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for a Dimensions connection!", e);
+        }
+        try {
+            PooledConnection pooled;
+            while ((pooled = idle.pollFirst()) != null) {
+                if (System.currentTimeMillis() - pooled.lastUsed < validationInterval || isValid(pooled.connection)) {
+                    break;
+                }
+                validationFailureCount.increment();
+                closeQuietly(pooled);
+            }
+            if (pooled == null) {
+                pooled = new PooledConnection(DimensionsConnectionManager.getConnection(details));
+                createdCount.increment();
+                logger.debug("Opened Dimensions connection to {}", details.getServer());
+            }
+            borrowed.put(pooled.connection, pooled);
+            borrowCount.increment();
+            return pooled.connection;
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Give a borrowed connection back to the pool.
+     *
+     * @param  connection  a connection returned by borrow()
+     */
+    public void release(DimensionsConnection connection) {
+        PooledConnection pooled = borrowed.remove(connection);
+        if (pooled == null) {
+            throw new IllegalArgumentException("The connection was not borrowed from this pool");
+        }
+        if (closed) {
+            closeQuietly(pooled);
+        } else {
+            pooled.lastUsed = System.currentTimeMillis();
+            idle.offerFirst(pooled);
+        }
+        permits.release();
+    }
+
+    /**
+     * Close a borrowed connection that is known to be broken instead of giving it back.
+     *
+     * @param  connection  a connection returned by borrow()
+     */
+    public void invalidate(DimensionsConnection connection) {
+        PooledConnection pooled = borrowed.remove(connection);
+        if (pooled == null) {
+            throw new IllegalArgumentException("The connection was not borrowed from this pool");
+        }
+        closeQuietly(pooled);
+        permits.release();
+    }
+
+    /**
+     * Check that a connection still reaches the server with a cheap round trip.
+     *
+     * @param  connection  the connection to check
+     * @return true if the server answered
+     */
+    public boolean isValid(DimensionsConnection connection) {
+        try {
+            connection.getObjectFactory().getCurrentUser();
+            return true;
+        } catch (RuntimeException e) {
+            logger.warn("Dimensions connection to {} failed validation: {}", details.getServer(), e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Create an executor whose worker threads each borrow a connection when they run their first task,
+     * register it with DimensionsConnectionManager and keep it until the thread ends. Idle workers end
+     * after the idle timeout of the pool and give their connection back.
+     * A task failing on a connection that no longer validates causes the worker to drop the connection
+     * and borrow a new one for its next task.
+     *
+     * A worker keeps its connection while idle, so more workers than connections would only wait for
+     * each other; the number of threads is limited to the pool size. A caller that holds connections
+     * of the pool itself must ask for fewer threads, as DimCMClient.newWorkerExecutor does.
+     *
+     * @param  threads  the number of worker threads
+     * @param  namePrefix  the prefix of the worker thread names
+     * @return an executor whose tasks can use the AdmCmd API and getThreadConnection()
+     */
+    public ExecutorService newWorkerExecutor(int threads, String namePrefix) {
+        WorkerExecutor executor = new WorkerExecutor(Math.min(threads, maxSize), new DaemonThreadFactory(namePrefix));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    public int getActiveCount() {
+        return borrowed.size();
+    }
+
+    public long getBorrowTimeout() {
+        return borrowTimeout;
+    }
+
+    public void setBorrowTimeout(long borrowTimeout) {
+        this.borrowTimeout = borrowTimeout;
+    }
+
+    public long getValidationInterval() {
+        return validationInterval;
+    }
+
+    public void setValidationInterval(long validationInterval) {
+        this.validationInterval = validationInterval;
+    }
+
+    public long getCreatedCount() {
+        return createdCount.sum();
+    }
+
+    public long getBorrowCount() {
+        return borrowCount.sum();
+    }
+
+    public long getWaitCount() {
+        return waitCount.sum();
+    }
+
+    public long getValidationFailureCount() {
+        return validationFailureCount.sum();
+    }
+
+    public long getEvictedCount() {
+        return evictedCount.sum();
+    }
+
+    /**
+     * Close the idle connections and stop eviction. Borrowed connections are closed when they are released.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        evictor.shutdownNow();
+        PooledConnection pooled;
+        while ((pooled = idle.pollFirst()) != null) {
+            closeQuietly(pooled);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "DimensionsConnectionPool{" + "server=" + details.getServer() +
+                ", maxSize=" + maxSize +
+                ", active=" + getActiveCount() +
+                ", idle=" + getIdleCount() +
+                ", created=" + createdCount.sum() +
+                ", borrowed=" + borrowCount.sum() +
+                ", waits=" + waitCount.sum() +
+                ", validationFailures=" + validationFailureCount.sum() +
+                ", evicted=" + evictedCount.sum() +
+        '}';
+    }
+
+    private void evictIdle() {
+        long now = System.currentTimeMillis();
+        List<PooledConnection> expired = new ArrayList<>();
+        // least recently used connections are at the tail
+        for (Iterator<PooledConnection> i = idle.descendingIterator(); i.hasNext(); ) {
+            PooledConnection pooled = i.next();
+            if (now - pooled.lastUsed < idleTimeout) {
+                break;
+            }
+            expired.add(pooled);
+        }
+        for (PooledConnection pooled : expired) {
+            // a connection borrowed meanwhile is no longer in the deque and stays open
+            if (idle.removeLastOccurrence(pooled)) {
+                evictedCount.increment();
+                closeQuietly(pooled);
+            }
+        }
+    }
+
+    private void closeQuietly(PooledConnection pooled) {
+        try {
+            pooled.connection.close();
+        } catch (RuntimeException e) {
+            logger.debug("Error closing Dimensions connection: {}", e.getMessage());
+        }
+    }
+
+    private static class PooledConnection {
+        final DimensionsConnection connection;
+        volatile long lastUsed = System.currentTimeMillis();
+
+        PooledConnection(DimensionsConnection connection) {
+            this.connection = connection;
+        }
+    }
+
+    /**
+     * Runs each task with the connection of its worker thread bound and registered.
+     */
+    private class WorkerExecutor extends ThreadPoolExecutor {
+
+        WorkerExecutor(int threads, ThreadFactory threadFactory) {
+            super(threads, threads, idleTimeout, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+                    runnable -> threadFactory.newThread(() -> {
+                        try {
+                            runnable.run();
+                        } finally {
+                            unbind(false);
+                        }
+                    }));
+        }
+
+        @Override
+        protected <T> RunnableFuture<T> newTaskFor(Callable<T> callable) {
+            // binding inside the task, a failure to borrow completes the future instead of losing the task
+            return new BoundTask<>(() -> callBound(callable));
+        }
+
+        @Override
+        protected <T> RunnableFuture<T> newTaskFor(Runnable runnable, T value) {
+            return newTaskFor(Executors.callable(runnable, value));
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            if (command instanceof BoundTask) {
+                super.execute(command);
+            } else {
+                super.execute(() -> {
+                    try {
+                        callBound(Executors.callable(command));
+                    } catch (RuntimeException e) {
+                        throw e;
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                });
+            }
+        }
+
+        private <T> T callBound(Callable<T> callable) throws Exception {
+            DimensionsConnection connection = THREAD_CONNECTION.get();
+            if (connection == null) {
+                connection = borrow();
+                DimensionsConnectionManager.registerThreadConnection(connection);
+                THREAD_CONNECTION.set(connection);
+            }
+            try {
+                return callable.call();
+            } catch (RuntimeException e) {
+                if (!isValid(connection)) {
+                    unbind(true);
+                }
+                throw e;
+            }
+        }
+    }
+
+    private static class BoundTask<T> extends FutureTask<T> {
+        BoundTask(Callable<T> callable) {
+            super(callable);
+        }
+    }
+
+    private void unbind(boolean broken) {
+        DimensionsConnection connection = THREAD_CONNECTION.get();
+        if (connection == null) {
+            return;
+        }
+        THREAD_CONNECTION.remove();
+        DimensionsConnectionManager.unregisterThreadConnection();
+        if (broken) {
+            invalidate(connection);
+        } else {
+            release(connection);
+        }
+    }
+}
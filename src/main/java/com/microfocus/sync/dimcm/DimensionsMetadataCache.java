@@ -0,0 +1,439 @@
+/*
+ *
+ * Copyright (c) 2016 SERENA Software, Inc. All Rights Reserved.
+ *
+ * This software is proprietary information of SERENA Software, Inc.
+ * Use is subject to license terms.
+ *
+ * @author Kevin Lee
+ */
+package com.microfocus.sync.dimcm;
+
+import com.serena.dmclient.api.DimensionsObjectFactory;
+import com.serena.dmclient.collections.BuildStages;
+import com.serena.dmclient.objects.Lifecycle;
+import com.serena.dmclient.objects.Product;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Dimensions CM metadata that rarely changes: products, build stages, the stages of the deployment
+ * lifecycle in order and attribute numbers.
+ * Products, stages and lifecycle are loaded together on first use and kept as an immutable snapshot,
+ * with hash sets for existence checks and a stage to rank map for lifecycle order, until the time to
+ * live runs out or refresh() is called. A product or stage that is not found reloads the snapshot before
+ * the miss is reported, so one created since the last load is seen straight away, unless the snapshot
+ * is younger than the miss reload interval; a name that is not there at all costs at most one reload
+ * per interval, not one per lookup.
+ * Attribute numbers are looked up once per type and name.
+ * The cache can be saved to a file and loaded on start, so a restarted tool does not need to reload it.
+ * @author klee@serena.com
+ */
+public class DimensionsMetadataCache {
+    private static final Logger logger = LoggerFactory.getLogger(DimensionsMetadataCache.class);
+
+    public static long DEFAULT_TTL = 600000L;
+    public static long DEFAULT_MISS_RELOAD_INTERVAL = 30000L;
+
+    private static final int SNAPSHOT_MAGIC = 0x444d4d43; // DMMC
+    private static final int SNAPSHOT_VERSION = 1;
+
+    private final String lifecycleId;
+    private volatile long ttl;
+    private volatile long missReloadInterval = DEFAULT_MISS_RELOAD_INTERVAL;
+    private volatile Metadata metadata;
+    private final Map<String, Integer> attributeNumbers = new ConcurrentHashMap<>();
+
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder loadCount = new LongAdder();
+    private final LongAdder attributeLoadCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+
+    /**
+     * @param  lifecycleId  the lifecycle whose normal states give the order of the deployment stages
+     * @param  ttl  milliseconds the metadata is used before it is loaded again, 0 to keep it until refresh()
+     */
+    public DimensionsMetadataCache(String lifecycleId, long ttl) {
+        this.lifecycleId = lifecycleId;
+        this.ttl = ttl;
+    }
+
+    public List<String> getProducts(DimensionsObjectFactory factory) {
+        return metadata(factory).products;
+    }
+
+    public boolean productExists(DimensionsObjectFactory factory, String productName) {
+        Metadata current = metadata(factory);
+        if (current.productSet.contains(productName)) {
+            return true;
+        }
+        return reloadOnMiss(factory, current).productSet.contains(productName);
+    }
+
+    public List<String> getStages(DimensionsObjectFactory factory) {
+        return metadata(factory).stages;
+    }
+
+    public boolean stageExists(DimensionsObjectFactory factory, String stage) {
+        Metadata current = metadata(factory);
+        if (current.stageSet.contains(stage)) {
+            return true;
+        }
+        return reloadOnMiss(factory, current).stageSet.contains(stage);
+    }
+
+    /**
+     * @return the normal states of the lifecycle, first stage first
+     */
+    public List<String> getLifecycleStages(DimensionsObjectFactory factory) {
+        return metadata(factory).lifecycleOrder.getStages();
+    }
+
+    /**
+     * The lifecycle order of one snapshot, for callers that rank several stages and must get the ranks
+     * and the stage names from the same load. The snapshot is reloaded once if one of the stages is
+     * missing from it, as with getStageRank().
+     *
+     * @param  factory  the factory used if the metadata has to be loaded
+     * @param  stages  the stage IDs that are about to be ranked, null ones are ignored
+     * @return the stages of the lifecycle and their ranks
+     */
+    public LifecycleOrder getLifecycleOrder(DimensionsObjectFactory factory, Collection<String> stages) {
+        Metadata current = metadata(factory);
+        for (String stage : stages) {
+            if (stage != null && current.lifecycleOrder.getRank(stage) < 0) {
+                return reloadOnMiss(factory, current).lifecycleOrder;
+            }
+        }
+        return current.lifecycleOrder;
+    }
+
+    /**
+     * The position of a stage in the lifecycle.
+     *
+     * @param  factory  the factory used if the metadata has to be loaded
+     * @param  stage  the stage ID
+     * @return the index of the stage in getLifecycleStages(), -1 if it is not part of the lifecycle
+     */
+    public int getStageRank(DimensionsObjectFactory factory, String stage) {
+        Metadata current = metadata(factory);
+        int rank = current.lifecycleOrder.getRank(stage);
+        if (rank < 0 && stage != null) {
+            rank = reloadOnMiss(factory, current).lifecycleOrder.getRank(stage);
+        }
+        return rank;
+    }
+
+    /**
+     * The number of a user defined attribute, looked up on the server once per type and name.
+     *
+     * @param  factory  the factory used to look the number up
+     * @param  attributeName  the attribute name
+     * @param  type  the object class the attribute belongs to, e.g. Baseline.class
+     * @return the attribute number
+     */
+    public int getAttributeNumber(DimensionsObjectFactory factory, String attributeName, Class<?> type) {
+        String key = type.getSimpleName() + ':' + attributeName;
+        Integer number = attributeNumbers.get(key);
+        if (number != null) {
+            hitCount.increment();
+            return number;
+        }
+        attributeLoadCount.increment();
+        number = factory.getAttributeNumber(attributeName, type);
+        attributeNumbers.put(key, number);
+        return number;
+    }
+
+    /**
+     * Drop the cached metadata, it is loaded again on next use.
+     */
+    public void refresh() {
+        metadata = null;
+        attributeNumbers.clear();
+    }
+
+    /**
+     * Load the metadata now, e.g. after products or stages have been changed.
+     *
+     * @param  factory  the factory used to load the metadata
+     */
+    public synchronized void refresh(DimensionsObjectFactory factory) {
+        attributeNumbers.clear();
+        metadata = load(factory);
+    }
+
+    public long getTtl() {
+        return ttl;
+    }
+
+    public void setTtl(long ttl) {
+        this.ttl = ttl;
+    }
+
+    public long getMissReloadInterval() {
+        return missReloadInterval;
+    }
+
+    /**
+     * @param  missReloadInterval  milliseconds after a load during which a miss does not load the metadata again
+     */
+    public void setMissReloadInterval(long missReloadInterval) {
+        this.missReloadInterval = missReloadInterval;
+    }
+
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    public long getLoadCount() {
+        return loadCount.sum();
+    }
+
+    public long getAttributeLoadCount() {
+        return attributeLoadCount.sum();
+    }
+
+    /**
+     * @return the number of lookups that missed, whether or not they reloaded the metadata
+     */
+    public long getMissCount() {
+        return missCount.sum();
+    }
+
+    /**
+     * Write the cached metadata to a file, replacing it atomically. Nothing is written if nothing is cached.
+     *
+     * @param  file  the snapshot file
+     */
+    public void save(Path file) throws IOException {
+        Metadata current = metadata;
+        if (current == null) {
+            return;
+        }
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeUTF(lifecycleId);
+            out.writeLong(current.loadedAt);
+            writeList(out, current.products);
+            writeList(out, current.stages);
+            writeList(out, current.lifecycleOrder.getStages());
+            Map<String, Integer> numbers = new HashMap<>(attributeNumbers);
+            out.writeInt(numbers.size());
+            for (Map.Entry<String, Integer> entry : numbers.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeInt(entry.getValue());
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Use the metadata saved in a file. The snapshot keeps the time it was loaded from the server, so
+     * it is not used if it is older than the time to live or for another lifecycle.
+     *
+     * @param  file  the snapshot file
+     * @return true if the snapshot was used
+     */
+    public synchronized boolean load(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION) {
+                logger.warn("Ignoring metadata snapshot {} of an unknown format", file);
+                return false;
+            }
+            if (!lifecycleId.equals(in.readUTF())) {
+                logger.info("Ignoring metadata snapshot {} of another lifecycle", file);
+                return false;
+            }
+            long loadedAt = in.readLong();
+            if (isExpired(loadedAt)) {
+                logger.info("Ignoring expired metadata snapshot {}", file);
+                return false;
+            }
+            List<String> products = readList(in);
+            List<String> stages = readList(in);
+            List<String> lifecycleStages = readList(in);
+            Map<String, Integer> numbers = new HashMap<>();
+            for (int i = in.readInt(); i > 0; i--) {
+                numbers.put(in.readUTF(), in.readInt());
+            }
+            attributeNumbers.clear();
+            attributeNumbers.putAll(numbers);
+            metadata = new Metadata(products, stages, lifecycleStages, loadedAt);
+            return true;
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public String toString() {
+        Metadata current = metadata;
+        return "DimensionsMetadataCache{" + "lifecycle=" + lifecycleId +
+                ", products=" + (current != null ? current.products.size() : 0) +
+                ", stages=" + (current != null ? current.stages.size() : 0) +
+                ", attributes=" + attributeNumbers.size() +
+                ", hits=" + hitCount.sum() +
+                ", loads=" + loadCount.sum() +
+                ", attributeLoads=" + attributeLoadCount.sum() +
+                ", misses=" + missCount.sum() +
+        '}';
+    }
+
+    private Metadata metadata(DimensionsObjectFactory factory) {
+        Metadata current = metadata;
+        if (current != null && !isExpired(current.loadedAt)) {
+            hitCount.increment();
+            return current;
+        }
+        synchronized (this) {
+            // another thread may have loaded it while this one waited
+            current = metadata;
+            if (current == null || isExpired(current.loadedAt)) {
+                current = load(factory);
+                metadata = current;
+            }
+            return current;
+        }
+    }
+
+    /**
+     * Reload the metadata after a lookup missed in the given snapshot, unless that snapshot is younger
+     * than the miss reload interval or another thread has replaced it already.
+     */
+    private Metadata reloadOnMiss(DimensionsObjectFactory factory, Metadata missed) {
+        missCount.increment();
+        if (System.currentTimeMillis() - missed.loadedAt < missReloadInterval) {
+            return missed;
+        }
+        synchronized (this) {
+            Metadata current = metadata;
+            if (current == missed || current == null) {
+                current = load(factory);
+                metadata = current;
+            }
+            return current;
+        }
+    }
+
+    private boolean isExpired(long loadedAt) {
+        return ttl > 0 && System.currentTimeMillis() - loadedAt > ttl;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Metadata load(DimensionsObjectFactory factory) {
+        loadCount.increment();
+        List<String> products = new ArrayList<String>();
+        for (Product product : (List<Product>) factory.getBaseDatabase().getProducts()) {
+            products.add(product.getName());
+        }
+
+        List<String> stages = new ArrayList<String>();
+        BuildStages bs = factory.getBaseDatabaseAdmin().getBuildStages();
+        for (Iterator<String> i = bs.iterator(); i.hasNext(); ) {
+            stages.add(i.next());
+        }
+
+        // BuildStages loses the order of the stages, the lifecycle keeps it
+        List<String> lifecycleStages = new ArrayList<String>();
+        Lifecycle lc = factory.getBaseDatabase().getLifecycle(lifecycleId);
+        for (Iterator<?> i = lc.getNormalStates().iterator(); i.hasNext(); ) {
+            lifecycleStages.add(i.next().toString());
+        }
+
+        logger.debug("Loaded {} products, {} stages and {} lifecycle stages", products.size(), stages.size(),
+                lifecycleStages.size());
+        return new Metadata(products, stages, lifecycleStages, System.currentTimeMillis());
+    }
+
+    private static void writeList(DataOutputStream out, List<String> values) throws IOException {
+        out.writeInt(values.size());
+        for (String value : values) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static List<String> readList(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        List<String> values = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            values.add(in.readUTF());
+        }
+        return values;
+    }
+
+    private static class Metadata {
+        final List<String> products;
+        final Set<String> productSet;
+        final List<String> stages;
+        final Set<String> stageSet;
+        final LifecycleOrder lifecycleOrder;
+        final long loadedAt;
+
+        Metadata(List<String> products, List<String> stages, List<String> lifecycleStages, long loadedAt) {
+            this.products = Collections.unmodifiableList(products);
+            this.productSet = new HashSet<>(products);
+            this.stages = Collections.unmodifiableList(stages);
+            this.stageSet = new HashSet<>(stages);
+            this.lifecycleOrder = new LifecycleOrder(lifecycleStages);
+            this.loadedAt = loadedAt;
+        }
+    }
+
+    /**
+     * The normal states of the lifecycle in order, with a stage to rank map.
+     */
+    public static final class LifecycleOrder {
+        private final List<String> stages;
+        private final Map<String, Integer> ranks = new HashMap<>();
+
+        LifecycleOrder(List<String> stages) {
+            this.stages = Collections.unmodifiableList(stages);
+            for (int i = 0; i < stages.size(); i++) {
+                // first occurrence wins, as with List.indexOf
+                if (!ranks.containsKey(stages.get(i))) {
+                    ranks.put(stages.get(i), i);
+                }
+            }
+        }
+
+        /**
+         * @return the normal states of the lifecycle, first stage first
+         */
+        public List<String> getStages() {
+            return stages;
+        }
+
+        /**
+         * @param  stage  the stage ID
+         * @return the index of the stage in getStages(), -1 if it is not part of the lifecycle
+         */
+        public int getRank(String stage) {
+            Integer rank = ranks.get(stage);
+            return rank != null ? rank : -1;
+        }
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ *
+ * Copyright (c) 2016 SERENA Software, Inc. All Rights Reserved.
+ *
+ * This software is proprietary information of SERENA Software, Inc.
+ * Use is subject to license terms.
+ *
+ * @author Kevin Lee
+ */
+package com.microfocus.sync.servicenow.client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Durable record of the approval waits of an ApprovalScheduler, so that waits in flight when the
+ * JVM stops are resumed on restart and RLC still gets its callback.
+ * Registrations and completions are appended to a MappedRecordLog; the pending waits are kept in
+ * memory as well, and the log is compacted down to them once completed waits dominate it.
+ * The journal holds the RLC callback credentials, its file is only accessible by its owner.
+ * @author klee@serena.com
+ */
+public class ApprovalJournal implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(ApprovalJournal.class);
+
+    public static int DEFAULT_COMPACTION_THRESHOLD = 1024;
+
+    private static final int VERSION = 1;
+    private static final byte REGISTERED = 1;
+    private static final byte COMPLETED = 2;
+
+    private final MappedRecordLog log;
+    private final Map<Long, JournaledWait> pending = new LinkedHashMap<>();
+    private long nextWaitId = 1;
+    private int completedRecords;
+    private int compactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+
+    /**
+     * Open a journal, recovering the waits still pending in it.
+     *
+     * @param file  the journal file, created if it does not exist
+     * @throws IOException if the journal cannot be opened or read
+     */
+    public ApprovalJournal(Path file) throws IOException {
+        this.log = new MappedRecordLog(file, VERSION);
+        long start = System.nanoTime();
+        for (byte[] record : log.readAll()) {
+            replay(record);
+        }
+        logger.info("Recovered {} pending approval waits from {} in {} ms", pending.size(), file,
+                (System.nanoTime() - start) / 1000000);
+        if (completedRecords > pending.size()) {
+            compact();
+        }
+    }
+
+    /**
+     * Record a new wait.
+     *
+     * @param waiter  the waiter
+     * @param startedAt  when the wait started, in milliseconds since the epoch
+     * @return the id of the wait in the journal
+     * @throws IOException if the wait cannot be written
+     */
+    public synchronized long register(ApprovalWaiter waiter, long startedAt) throws IOException {
+        JournaledWait wait = new JournaledWait(nextWaitId++, startedAt, waiter);
+        log.append(wait.encode());
+        pending.put(wait.waitId, wait);
+        return wait.waitId;
+    }
+
+    /**
+     * Record that a wait has ended, because RLC has been notified.
+     *
+     * @param waitId  the id returned by register
+     * @throws IOException if the completion cannot be written
+     */
+    public synchronized void complete(long waitId) throws IOException {
+        if (pending.remove(waitId) == null) {
+            return;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(9);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(COMPLETED);
+        out.writeLong(waitId);
+        log.append(bytes.toByteArray());
+        completedRecords++;
+        if (completedRecords >= compactionThreshold && completedRecords > pending.size()) {
+            compact();
+        }
+    }
+
+    /**
+     * Rewrite the journal with only the pending waits.
+     *
+     * @throws IOException if the journal cannot be rewritten
+     */
+    public synchronized void compact() throws IOException {
+        List<byte[]> records = new ArrayList<>(pending.size());
+        for (JournaledWait wait : pending.values()) {
+            records.add(wait.encode());
+        }
+        log.rewrite(records);
+        completedRecords = 0;
+    }
+
+    /**
+     * @return the waits registered and not completed, oldest first
+     */
+    public synchronized List<JournaledWait> getPendingWaits() {
+        return new ArrayList<>(pending.values());
+    }
+
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    public synchronized void setCompactionThreshold(int compactionThreshold) {
+        this.compactionThreshold = compactionThreshold;
+    }
+
+    /**
+     * Flush the journal to the storage device. Without this the journal survives a JVM crash but
+     * not necessarily a crash of the operating system.
+     */
+    public void force() {
+        log.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        log.close();
+    }
+
+    private void replay(byte[] record) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        byte type = in.readByte();
+        if (type == REGISTERED) {
+            JournaledWait wait = JournaledWait.decode(in);
+            pending.put(wait.waitId, wait);
+            nextWaitId = Math.max(nextWaitId, wait.waitId + 1);
+        } else if (type == COMPLETED) {
+            long waitId = in.readLong();
+            pending.remove(waitId);
+            nextWaitId = Math.max(nextWaitId, waitId + 1);
+            completedRecords++;
+        } else {
+            throw new IOException("Unknown approval journal record type " + type);
+        }
+    }
+
+    /**
+     * A wait recorded in the journal, with everything needed to recreate its ApprovalWaiter.
+     */
+    public static class JournaledWait {
+        final long waitId;
+        final long startedAt;
+        final String requestType;
+        final String executionId;
+        final String callbackUrl;
+        final String callbackUsername;
+        final String callbackPassword;
+        final long waitTime;
+        final long maxPollCount;
+        final String changeType;
+        final String priority;
+        final String risk;
+
+        JournaledWait(long waitId, long startedAt, ApprovalWaiter waiter) {
+            this(waitId, startedAt, waiter.requestType, waiter.executionId, waiter.callbackUrl, waiter.callbackUsername,
+                    waiter.callbackPassword, waiter.waitTime, waiter.maxPollCount, waiter.changeType, waiter.priority, waiter.risk);
+        }
+
+        JournaledWait(long waitId, long startedAt, String requestType, String executionId, String callbackUrl,
+                      String callbackUsername, String callbackPassword, long waitTime, long maxPollCount,
+                      String changeType, String priority, String risk) {
+            this.waitId = waitId;
+            this.startedAt = startedAt;
+            this.requestType = requestType;
+            this.executionId = executionId;
+            this.callbackUrl = callbackUrl;
+            this.callbackUsername = callbackUsername;
+            this.callbackPassword = callbackPassword;
+            this.waitTime = waitTime;
+            this.maxPollCount = maxPollCount;
+            this.changeType = changeType;
+            this.priority = priority;
+            this.risk = risk;
+        }
+
+        public long getWaitId() {
+            return waitId;
+        }
+
+        public long getStartedAt() {
+            return startedAt;
+        }
+
+        public String getExecutionId() {
+            return executionId;
+        }
+
+        /**
+         * Get the number of polls left, i.e. maxPollCount less the polls that fitted in the time since
+         * the wait started. At least one poll is left, so a decision made while the JVM was down is
+         * still reported.
+         *
+         * @param now  the current time in milliseconds since the epoch
+         * @return the remaining poll budget
+         */
+        public long getRemainingPolls(long now) {
+            long used = waitTime > 0 ? Math.max(0, now - startedAt) / waitTime : maxPollCount;
+            return Math.max(1, maxPollCount - used);
+        }
+
+        /**
+         * Recreate the waiter.
+         *
+         * @param sc  the client to poll ServiceNow with
+         * @return the waiter
+         */
+        public ApprovalWaiter toWaiter(ServiceNowClient sc) {
+            ApprovalWaiter waiter = new ApprovalWaiter(sc, callbackUrl, callbackUsername, callbackPassword, requestType,
+                    executionId, Long.toString(waitTime), Long.toString(maxPollCount));
+            waiter.setApprovalProfile(changeType, priority, risk);
+            return waiter;
+        }
+
+        byte[] encode() throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(REGISTERED);
+            out.writeLong(waitId);
+            out.writeLong(startedAt);
+            writeString(out, requestType);
+            writeString(out, executionId);
+            writeString(out, callbackUrl);
+            writeString(out, callbackUsername);
+            writeString(out, callbackPassword);
+            out.writeLong(waitTime);
+            out.writeLong(maxPollCount);
+            writeString(out, changeType);
+            writeString(out, priority);
+            writeString(out, risk);
+            return bytes.toByteArray();
+        }
+
+        static JournaledWait decode(DataInputStream in) throws IOException {
+            return new JournaledWait(in.readLong(), in.readLong(), readString(in), readString(in), readString(in),
+                    readString(in), readString(in), in.readLong(), in.readLong(), readString(in), readString(in), readString(in));
+        }
+
+        private static void writeString(DataOutputStream out, String value) throws IOException {
+            out.writeBoolean(value != null);
+            if (value != null) {
+                out.writeUTF(value);
+            }
+        }
+
+        private static String readString(DataInputStream in) throws IOException {
+            return in.readBoolean() ? in.readUTF() : null;
+        }
+    }
+}
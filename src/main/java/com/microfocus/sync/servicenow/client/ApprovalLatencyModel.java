@@ -0,0 +1,223 @@
+/*
+ *
+ * Copyright (c) 2016 SERENA Software, Inc. All Rights Reserved.
+ *
+ * This software is proprietary information of SERENA Software, Inc.
+ * Use is subject to license terms.
+ *
+ * @author Kevin Lee
+ */
+package com.microfocus.sync.servicenow.client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Learns how long approvals take, by change type, priority and risk, from completed waits and
+ * derives the delay until the next poll of a pending approval from it.
+ * The next poll is placed where a fixed share (the poll quantile) of the approvals still outstanding
+ * at this point in time have historically been decided, so polls are dense where approvals are
+ * likely and sparse where they are not, always within [minDelay, maxDelay].
+ * Profiles with too few samples fall back to the change type alone, then to all approvals, and
+ * finally to the waiter's own poll time.
+ * A latency is the time until the decision was seen, not the time it was made in ServiceNow: a
+ * polled approval is recorded at the poll that found it, so samples are rounded up to the delay
+ * between polls and the model cannot learn decisions finer than minDelay. Approvals completed by
+ * a pushed notification (see ApprovalWebhookListener) give exact samples.
+ * The scheduler takes the profile of a wait from the change record on its first poll, unless
+ * ApprovalWaiter.setApprovalProfile was called.
+ * @author klee@serena.com
+ */
+public class ApprovalLatencyModel {
+    private static final Logger logger = LoggerFactory.getLogger(ApprovalLatencyModel.class);
+
+    public static int DEFAULT_SAMPLE_SIZE = 256;
+    public static int DEFAULT_MIN_SAMPLES = 10;
+    public static double DEFAULT_POLL_QUANTILE = 0.1;
+
+    private static final String ANY = "*";
+
+    private final long minDelay;
+    private final long maxDelay;
+    private final double pollQuantile;
+    private final int sampleSize;
+    private final int minSamples;
+    private final ConcurrentHashMap<String, LatencySamples> samples = new ConcurrentHashMap<>();
+
+    /**
+     * Create a new model with the default sample size, minimum samples and poll quantile.
+     *
+     * @param minDelay  the shortest time between two polls in milliseconds
+     * @param maxDelay  the longest time between two polls in milliseconds
+     */
+    public ApprovalLatencyModel(long minDelay, long maxDelay) {
+        this(minDelay, maxDelay, DEFAULT_POLL_QUANTILE, DEFAULT_SAMPLE_SIZE, DEFAULT_MIN_SAMPLES);
+    }
+
+    /**
+     * Create a new model.
+     *
+     * @param minDelay  the shortest time between two polls in milliseconds
+     * @param maxDelay  the longest time between two polls in milliseconds
+     * @param pollQuantile  the share of the outstanding approvals expected to be decided between two polls, e.g. 0.1
+     * @param sampleSize  the number of most recent latencies kept per profile
+     * @param minSamples  the number of latencies a profile needs before it is used
+     */
+    public ApprovalLatencyModel(long minDelay, long maxDelay, double pollQuantile, int sampleSize, int minSamples) {
+        if (minDelay <= 0 || maxDelay < minDelay) {
+            throw new IllegalArgumentException("Invalid delay bounds: " + minDelay + ", " + maxDelay);
+        }
+        if (pollQuantile <= 0 || pollQuantile > 1) {
+            throw new IllegalArgumentException("Poll quantile must be in (0, 1]: " + pollQuantile);
+        }
+        this.minDelay = minDelay;
+        this.maxDelay = maxDelay;
+        this.pollQuantile = pollQuantile;
+        this.sampleSize = sampleSize;
+        this.minSamples = minSamples;
+    }
+
+    /**
+     * Record how long an approval took to be decided.
+     *
+     * @param type  the change type, e.g. Normal, may be null
+     * @param priority  the priority, may be null
+     * @param risk  the risk, may be null
+     * @param latency  milliseconds from the start of the wait until the decision was seen
+     */
+    public void record(String type, String priority, String risk, long latency) {
+        if (latency < 0) {
+            return;
+        }
+        for (String key : keys(type, priority, risk)) {
+            samples.computeIfAbsent(key, k -> new LatencySamples(sampleSize)).add(latency);
+        }
+    }
+
+    /**
+     * Get the delay until the next poll.
+     *
+     * @param type  the change type, may be null
+     * @param priority  the priority, may be null
+     * @param risk  the risk, may be null
+     * @param elapsed  milliseconds since the wait started
+     * @param defaultDelay  the delay used while there are not enough samples
+     * @return the delay in milliseconds, within [minDelay, maxDelay]
+     */
+    public long nextDelay(String type, String priority, String risk, long elapsed, long defaultDelay) {
+        long[] sorted = null;
+        for (String key : keys(type, priority, risk)) {
+            LatencySamples profile = samples.get(key);
+            if (profile != null) {
+                sorted = profile.sorted();
+                if (sorted.length >= minSamples) {
+                    break;
+                }
+                sorted = null;
+            }
+        }
+        if (sorted == null) {
+            return clamp(defaultDelay);
+        }
+
+        // share of past approvals already decided by now, and the point where the next share is decided
+        int decided = upperBound(sorted, elapsed);
+        if (decided >= sorted.length) {
+            return maxDelay;
+        }
+        int outstanding = sorted.length - decided;
+        int target = decided + Math.max(1, (int) Math.ceil(outstanding * pollQuantile)) - 1;
+        long delay = clamp(sorted[target] - elapsed);
+        logger.trace("Next approval poll for {}/{}/{} after {} ms, {} of {} samples decided", type, priority, risk, delay, decided, sorted.length);
+        return delay;
+    }
+
+    public long getMinDelay() {
+        return minDelay;
+    }
+
+    public long getMaxDelay() {
+        return maxDelay;
+    }
+
+    /**
+     * Get a recorded latency quantile, for monitoring.
+     *
+     * @param type  the change type, null for all approvals
+     * @param quantile  the quantile, e.g. 0.5 for the median
+     * @return the latency in milliseconds, or -1 if nothing was recorded
+     */
+    public long getLatencyQuantile(String type, double quantile) {
+        LatencySamples profile = samples.get(type == null ? ANY : type);
+        long[] sorted = profile == null ? new long[0] : profile.sorted();
+        if (sorted.length == 0) {
+            return -1;
+        }
+        int index = (int) Math.min(sorted.length - 1, Math.max(0, Math.ceil(quantile * sorted.length) - 1));
+        return sorted[index];
+    }
+
+    public int getSampleCount(String type) {
+        LatencySamples profile = samples.get(type == null ? ANY : type);
+        return profile == null ? 0 : profile.size();
+    }
+
+    private long clamp(long delay) {
+        return Math.max(minDelay, Math.min(maxDelay, delay));
+    }
+
+    private static String[] keys(String type, String priority, String risk) {
+        String t = type == null ? "" : type;
+        return new String[]{t + "|" + priority + "|" + risk, t, ANY};
+    }
+
+    private static int upperBound(long[] sorted, long value) {
+        int low = 0;
+        int high = sorted.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sorted[mid] <= value) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Ring buffer of the most recent latencies of one profile, with a sorted copy kept until the next sample.
+     */
+    private static class LatencySamples {
+        private final long[] ring;
+        private int count;
+        private int next;
+        private long[] sorted;
+
+        LatencySamples(int capacity) {
+            this.ring = new long[capacity];
+        }
+
+        synchronized void add(long latency) {
+            ring[next] = latency;
+            next = (next + 1) % ring.length;
+            count = Math.min(count + 1, ring.length);
+            sorted = null;
+        }
+
+        synchronized long[] sorted() {
+            if (sorted == null) {
+                sorted = Arrays.copyOf(ring, count);
+                Arrays.sort(sorted);
+            }
+            return sorted;
+        }
+
+        synchronized int size() {
+            return count;
+        }
+    }
+}
@@ -0,0 +1,722 @@
+/*
+ *
+ * Copyright (c) 2016 SERENA Software, Inc. All Rights Reserved.
+ *
+ * This software is proprietary information of SERENA Software, Inc.
+ * Use is subject to license terms.
+ *
+ * @author Kevin Lee
+ */
+package com.microfocus.sync.servicenow.client;
+
+import com.microfocus.sync.servicenow.exception.ServiceNowClientException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Polls pending approvals from a small, fixed pool of threads instead of one sleeping thread per
+ * ApprovalWaiter. Each pending approval is a timer entry holding its poll count; when it is due one
+ * worker polls it once and schedules the next poll, so the number of threads stays the same however
+ * many approvals are waiting. Waits are kept in an ApprovalWaiterRegistry, so each execution id
+ * is polled by one waiter only, and can be cancelled or queried by execution id.
+ * With a batch size above one, approvals of the same request type that fall due within the batch
+ * window are polled together with one sys_idIN query, and the statuses are routed back to their waiters.
+ * With an ApprovalLatencyModel the time between polls follows the approval latency observed for
+ * similar changes instead of the fixed poll time, within the waiter's overall deadline.
+ * With an ApprovalJournal every wait is recorded on disk until RLC has been notified, and resume()
+ * picks the waits of a previous run up again with the poll budget they have left.
+ * With an RlcCallbackDispatcher the RLC callbacks are queued instead of sent from the polling threads.
+ * In the virtual thread mode of WaitExecutors the pool only times the polls, and each blocking
+ * ServiceNow request runs on a virtual thread of its own.
+ * @author klee@serena.com
+ */
+public class ApprovalScheduler implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(ApprovalScheduler.class);
+
+    public static int DEFAULT_WORKER_THREADS = 4;
+    public static int DEFAULT_BATCH_SIZE = 100;
+    public static long DEFAULT_BATCH_WINDOW = 250L;
+
+    private final ScheduledExecutorService executor;
+    private final ExecutorService pollExecutor;
+    private final Clock clock;
+    private final int batchSize;
+    private final long batchWindow;
+    private final Queue<PendingApproval> duePolls = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final LongAdder pollCount = new LongAdder();
+    private final LongAdder completedCount = new LongAdder();
+    private final LongAdder expiredCount = new LongAdder();
+    private final LongAdder requestCount = new LongAdder();
+    private final LongAdder pushedCount = new LongAdder();
+    private final LongAdder cancelledCount = new LongAdder();
+    private final ApprovalWaiterRegistry registry = new ApprovalWaiterRegistry();
+    private final ConcurrentHashMap<String, PendingApproval> byExecutionId = new ConcurrentHashMap<>();
+    private volatile long safetyNetInterval;
+    private volatile ApprovalLatencyModel latencyModel;
+    private volatile ApprovalJournal journal;
+    private volatile RlcCallbackDispatcher callbackDispatcher;
+
+    public ApprovalScheduler() {
+        this(DEFAULT_WORKER_THREADS, DEFAULT_BATCH_SIZE, DEFAULT_BATCH_WINDOW);
+    }
+
+    /**
+     * Create a new approval scheduler polling each approval on its own.
+     *
+     * @param workerThreads  the number of threads polling ServiceNow
+     */
+    public ApprovalScheduler(int workerThreads) {
+        this(workerThreads, 1, 0L);
+    }
+
+    /**
+     * Create a new approval scheduler.
+     *
+     * @param workerThreads  the number of threads polling ServiceNow
+     * @param batchSize  the maximum number of approvals polled with one request, 1 to poll each approval on its own
+     * @param batchWindow  milliseconds a due poll may wait for others to join its batch
+     */
+    public ApprovalScheduler(int workerThreads, int batchSize, long batchWindow) {
+        this(newExecutor(workerThreads), newPollExecutor(), Clock.systemUTC(), batchSize, batchWindow);
+    }
+
+    /**
+     * Create a new approval scheduler running on the given executor and clock, e.g. a simulated
+     * executor and clock to run many approvals in virtual time. The scheduler shuts the executor down on close.
+     *
+     * @param executor  the executor polling ServiceNow and timing the polls
+     * @param clock  the clock wait times and deadlines are measured with
+     * @param batchSize  the maximum number of approvals polled with one request, 1 to poll each approval on its own
+     * @param batchWindow  milliseconds a due poll may wait for others to join its batch
+     */
+    public ApprovalScheduler(ScheduledExecutorService executor, Clock clock, int batchSize, long batchWindow) {
+        this(executor, null, clock, batchSize, batchWindow);
+    }
+
+    /**
+     * Create a new approval scheduler timing the polls on one executor and sending the ServiceNow
+     * requests from another, e.g. one from WaitExecutors. The scheduler shuts both down on close.
+     *
+     * @param executor  the executor timing the polls
+     * @param pollExecutor  the executor the blocking ServiceNow requests run on, null to run them on executor
+     * @param clock  the clock wait times and deadlines are measured with
+     * @param batchSize  the maximum number of approvals polled with one request, 1 to poll each approval on its own
+     * @param batchWindow  milliseconds a due poll may wait for others to join its batch
+     */
+    public ApprovalScheduler(ScheduledExecutorService executor, ExecutorService pollExecutor, Clock clock, int batchSize, long batchWindow) {
+        this.batchSize = Math.max(1, batchSize);
+        this.batchWindow = batchWindow;
+        this.executor = executor;
+        this.pollExecutor = pollExecutor != null ? pollExecutor : executor;
+        this.clock = clock;
+    }
+
+    /**
+     * Start polling an approval. The first poll happens after the waiter's poll time, as with ApprovalWaiter.run().
+     * A waiter for an execution id that is already being waited on is ignored.
+     *
+     * @param waiter  the approval to wait for
+     * @return true if the waiter was started, false if it is a duplicate
+     */
+    public boolean schedule(final ApprovalWaiter waiter) {
+        useDispatcher(waiter);
+        if (!registry.register(waiter)) {
+            return false;
+        }
+        if (waiter.getMaxPollCount() <= 0) {
+            expiredCount.increment();
+            executor.execute(waiter::expire);
+            return true;
+        }
+        long startedAt = clock.millis();
+        long waitId = 0;
+        ApprovalJournal journaling = journal;
+        if (journaling != null) {
+            try {
+                waitId = journaling.register(waiter, startedAt);
+            } catch (IOException ex) {
+                logger.error("Error journaling approval wait ({}) - {}", waiter.getExecutionId(), ex.getMessage());
+            }
+        }
+        start(new PendingApproval(waiter, startedAt, waitId));
+        logger.debug("Scheduled approval polling of {} \"{}\" every {} ms", waiter.getRequestType(), waiter.getExecutionId(), waiter.getWaitTime());
+        return true;
+    }
+
+    /**
+     * Resume the waits left pending in the journal by a previous run, each with the poll budget it has left.
+     * Call once after setJournal and before scheduling new waits.
+     *
+     * @param sc  the client to poll ServiceNow with
+     * @return the number of waits resumed
+     */
+    public int resume(ServiceNowClient sc) {
+        ApprovalJournal journaling = journal;
+        if (journaling == null) {
+            return 0;
+        }
+        long now = clock.millis();
+        List<ApprovalJournal.JournaledWait> waits = journaling.getPendingWaits();
+        int resumed = 0;
+        for (ApprovalJournal.JournaledWait wait : waits) {
+            ApprovalWaiter waiter = wait.toWaiter(sc);
+            useDispatcher(waiter);
+            if (!registry.register(waiter)) {
+                try {
+                    journaling.complete(wait.getWaitId());
+                } catch (IOException ex) {
+                    logger.error("Error journaling end of approval wait ({}) - {}", wait.getExecutionId(), ex.getMessage());
+                }
+                continue;
+            }
+            PendingApproval pending = new PendingApproval(waiter, wait.getStartedAt(), wait.getWaitId());
+            resumed++;
+            logger.debug("Resuming approval wait ({}) with {} polls left", wait.getExecutionId(), wait.getRemainingPolls(now));
+            start(pending);
+        }
+        logger.info("Resumed {} approval waits", resumed);
+        return resumed;
+    }
+
+    public ApprovalJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Record the waits scheduled from now on in a journal, so they can be resumed after a restart.
+     *
+     * @param journal  the journal, null to keep waits in memory only
+     */
+    public void setJournal(ApprovalJournal journal) {
+        this.journal = journal;
+    }
+
+    public RlcCallbackDispatcher getCallbackDispatcher() {
+        return callbackDispatcher;
+    }
+
+    /**
+     * Notify RLC through a dispatcher for the waits started from now on, including resumed ones,
+     * unless the waiter has a dispatcher of its own.
+     *
+     * @param callbackDispatcher  the dispatcher, null to let the waiters notify RLC directly
+     */
+    public void setCallbackDispatcher(RlcCallbackDispatcher callbackDispatcher) {
+        this.callbackDispatcher = callbackDispatcher;
+    }
+
+    private void useDispatcher(ApprovalWaiter waiter) {
+        RlcCallbackDispatcher dispatcher = callbackDispatcher;
+        if (dispatcher != null && waiter.getCallbackDispatcher() == null) {
+            waiter.setCallbackDispatcher(dispatcher);
+        }
+    }
+
+    private void start(PendingApproval pending) {
+        ApprovalWaiter waiter = pending.waiter;
+        pendingCount.incrementAndGet();
+        byExecutionId.put(waiter.getExecutionId(), pending);
+        if (!pending.scheduleNext()) {
+            throw new RejectedExecutionException("ApprovalScheduler has been closed");
+        }
+    }
+
+    /**
+     * Poll the approval of an execution straight away, e.g. when ServiceNow pushed a change through
+     * ApprovalWebhookListener. The notification is only a reason to poll: the wait is completed with
+     * the status ServiceNow returns, never with a status taken from the notification itself.
+     *
+     * @param table  the table the notification is for, null to accept the waiter's own table
+     * @param executionId  the sys_id of the change request or change task
+     * @return the number of pending approvals completed
+     */
+    public int notifyApproval(String table, String executionId) {
+        PendingApproval pending = byExecutionId.get(executionId);
+        if (pending == null) {
+            return 0;
+        }
+        if (table != null && !table.equals(pending.waiter.getTable())) {
+            logger.debug("Ignoring approval notification for {} {}, waiting on {}", table, executionId, pending.waiter.getTable());
+            return 0;
+        }
+        if (!pending.pollNow()) {
+            return 0;
+        }
+        pushedCount.increment();
+        return 1;
+    }
+
+    /**
+     * Stop waiting for an execution without notifying RLC, and drop it from the journal.
+     *
+     * @param executionId  the sys_id of the change request or change task
+     * @return true if a wait was cancelled, false if none was in progress
+     */
+    public boolean cancel(String executionId) {
+        ApprovalWaiter waiter = registry.get(executionId);
+        if (waiter == null || !waiter.cancel()) {
+            return false;
+        }
+        PendingApproval pending = byExecutionId.get(executionId);
+        if (pending != null && pending.waiter == waiter && pending.finish(cancelledCount, false)) {
+            pending.forget();
+        }
+        return true;
+    }
+
+    /**
+     * Read the state of the wait for an execution, without asking ServiceNow.
+     *
+     * @param executionId  the sys_id of the change request or change task
+     * @return the state, or null if no wait is in progress for the execution
+     */
+    public ApprovalWaiter.State getState(String executionId) {
+        return registry.getState(executionId);
+    }
+
+    /**
+     * @return the registry of the waits in progress
+     */
+    public ApprovalWaiterRegistry getRegistry() {
+        return registry;
+    }
+
+    public long getSafetyNetInterval() {
+        return safetyNetInterval;
+    }
+
+    /**
+     * Set the minimum time between polls of approvals scheduled from now on. With notifications pushed
+     * through notifyApproval polling is only a safety net and can be much slower; the number of polls is
+     * lowered to keep the waiter's overall deadline of maxPollCount * pollTime.
+     *
+     * @param safetyNetInterval  the minimum milliseconds between polls, 0 to poll at each waiter's own poll time
+     */
+    public void setSafetyNetInterval(long safetyNetInterval) {
+        this.safetyNetInterval = safetyNetInterval;
+    }
+
+    public ApprovalLatencyModel getLatencyModel() {
+        return latencyModel;
+    }
+
+    /**
+     * Let the poll cadence of approvals scheduled from now on follow the latency model, which also
+     * learns from every approval decided from now on. A waiter still expires after maxPollCount * pollTime.
+     *
+     * @param latencyModel  the model, null to poll at each waiter's own poll time
+     */
+    public void setLatencyModel(ApprovalLatencyModel latencyModel) {
+        this.latencyModel = latencyModel;
+    }
+
+    /**
+     * @return the number of approvals still being polled
+     */
+    public int getPendingCount() {
+        return pendingCount.get();
+    }
+
+    public long getPollCount() {
+        return pollCount.sum();
+    }
+
+    /**
+     * @return the number of ServiceNow requests made to poll approvals
+     */
+    public long getRequestCount() {
+        return requestCount.sum();
+    }
+
+    /**
+     * @return the number of approvals that were approved or rejected
+     */
+    public long getCompletedCount() {
+        return completedCount.sum();
+    }
+
+    /**
+     * @return the number of approvals completed by a pushed notification
+     */
+    public long getPushedCount() {
+        return pushedCount.sum();
+    }
+
+    /**
+     * @return the number of approvals that exceeded their maximum number of polls
+     */
+    public long getExpiredCount() {
+        return expiredCount.sum();
+    }
+
+    public long getCancelledCount() {
+        return cancelledCount.sum();
+    }
+
+    /**
+     * Stop polling. Approvals still pending are dropped without notifying RLC.
+     */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        if (pollExecutor != executor) {
+            pollExecutor.shutdownNow();
+        }
+        if (pendingCount.get() > 0) {
+            logger.warn("ApprovalScheduler closed with {} approvals still pending", pendingCount.get());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ApprovalScheduler{" + "pending=" + getPendingCount() +
+                ", polls=" + getPollCount() +
+                ", requests=" + getRequestCount() +
+                ", completed=" + getCompletedCount() +
+                ", pushed=" + getPushedCount() +
+                ", expired=" + getExpiredCount() +
+                ", cancelled=" + getCancelledCount() +
+                ", duplicates=" + registry.getDuplicateCount() +
+        '}';
+    }
+
+    private static ScheduledExecutorService newExecutor(int workerThreads) {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(workerThreads, new DaemonThreadFactory("snow-approval"));
+        executor.setRemoveOnCancelPolicy(true);
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        return executor;
+    }
+
+    /**
+     * @return a virtual thread per request executor in the virtual thread mode of WaitExecutors, else null
+     */
+    private static ExecutorService newPollExecutor() {
+        if (WaitExecutors.getMode() != WaitExecutors.Mode.VIRTUAL) {
+            return null;
+        }
+        return WaitExecutors.newWaitExecutor("snow-approval-poll");
+    }
+
+    private void unindex(PendingApproval pending) {
+        byExecutionId.remove(pending.waiter.getExecutionId(), pending);
+    }
+
+    private void scheduleFlush() {
+        try {
+            executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            }, batchWindow, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ex) {
+            flushScheduled.set(false);
+        }
+    }
+
+    /**
+     * Group the due polls by client and table and send one request per batch, each on its own worker.
+     */
+    private void flush() {
+        flushScheduled.set(false);
+        Map<ServiceNowClient, Map<String, List<PendingApproval>>> groups = new HashMap<>();
+        PendingApproval pending;
+        while ((pending = duePolls.poll()) != null) {
+            Map<String, List<PendingApproval>> byTable = groups.get(pending.waiter.sc);
+            if (byTable == null) {
+                byTable = new HashMap<>();
+                groups.put(pending.waiter.sc, byTable);
+            }
+            List<PendingApproval> group = byTable.get(pending.waiter.getTable());
+            if (group == null) {
+                group = new ArrayList<>();
+                byTable.put(pending.waiter.getTable(), group);
+            }
+            group.add(pending);
+        }
+
+        for (Map.Entry<ServiceNowClient, Map<String, List<PendingApproval>>> client : groups.entrySet()) {
+            for (Map.Entry<String, List<PendingApproval>> table : client.getValue().entrySet()) {
+                List<PendingApproval> group = table.getValue();
+                for (int from = 0; from < group.size(); from += batchSize) {
+                    final List<PendingApproval> batch = group.subList(from, Math.min(group.size(), from + batchSize));
+                    final ServiceNowClient sc = client.getKey();
+                    final String tableName = table.getKey();
+                    try {
+                        pollExecutor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                pollBatch(sc, tableName, batch);
+                            }
+                        });
+                    } catch (RejectedExecutionException ex) {
+                        logger.warn("ApprovalScheduler closed, dropped batch of {} approvals", batch.size());
+                        for (PendingApproval dropped : batch) {
+                            dropped.abandon();
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private void pollBatch(ServiceNowClient sc, String table, List<PendingApproval> batch) {
+        // the registry admits one wait per execution id, but a wait that ended while queued for this
+        // batch can share its execution id with a new wait for it; the request only needs it once
+        Map<String, List<PendingApproval>> byId = new LinkedHashMap<>();
+        for (PendingApproval pending : batch) {
+            List<PendingApproval> waiters = byId.get(pending.waiter.getExecutionId());
+            if (waiters == null) {
+                waiters = new ArrayList<>(1);
+                byId.put(pending.waiter.getExecutionId(), waiters);
+            }
+            waiters.add(pending);
+        }
+
+        Map<String, String> statuses;
+        requestCount.increment();
+        try {
+            statuses = sc.getApprovalStatuses(table, byId.keySet());
+        } catch (ServiceNowClientException ex) {
+            logger.error("Error checking approval status of {} {} records - {}", byId.size(), table, ex.getMessage());
+            statuses = Collections.emptyMap();
+        } catch (RuntimeException ex) {
+            logger.error("Error checking approval status of {} {} records - {}", byId.size(), table, ex.getMessage());
+            statuses = Collections.emptyMap();
+        }
+
+        for (Map.Entry<String, List<PendingApproval>> entry : byId.entrySet()) {
+            String approvalStatus = statuses.get(entry.getKey());
+            logger.debug("{}: {}, Approval Status {}", table, entry.getKey(), approvalStatus);
+            for (PendingApproval pending : entry.getValue()) {
+                pending.onApprovalStatus(approvalStatus);
+            }
+        }
+    }
+
+    private class PendingApproval implements Runnable {
+        private final ApprovalWaiter waiter;
+        private final ApprovalLatencyModel model;
+        private final long startedAt;
+        private final long waitId;
+        private final long deadline;
+        private final long interval;
+        private final long maxPolls;
+        private final AtomicBoolean finished = new AtomicBoolean();
+        private volatile ScheduledFuture<?> future;
+        private long polls;
+        private boolean profiled;
+
+        PendingApproval(ApprovalWaiter waiter, long startedAt, long waitId) {
+            this.waiter = waiter;
+            this.model = latencyModel;
+            this.startedAt = startedAt;
+            this.waitId = waitId;
+            // a slower safety net keeps the overall deadline of maxPollCount * waitTime
+            this.deadline = waiter.getWaitTime() * waiter.getMaxPollCount();
+            this.interval = Math.max(waiter.getWaitTime(), safetyNetInterval);
+            this.maxPolls = Math.max(1, (deadline + interval - 1) / interval);
+            // a resumed wait has used up the polls that fitted in the time since it started, but gets at least one more
+            this.polls = Math.min(maxPolls - 1, Math.max(0, clock.millis() - startedAt) / interval);
+        }
+
+        @Override
+        public void run() {
+            if (finished.get()) {
+                return;
+            }
+            // a batched poll reads the approval only, the first poll of an unprofiled wait reads the
+            // whole record so the latency model learns its change type, priority and risk
+            if (batchSize > 1 && (model == null || profiled || waiter.hasApprovalProfile())) {
+                duePolls.add(this);
+                if (flushScheduled.compareAndSet(false, true)) {
+                    scheduleFlush();
+                }
+                return;
+            }
+            if (pollExecutor == executor) {
+                poll();
+                return;
+            }
+            try {
+                pollExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        poll();
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                logger.warn("ApprovalScheduler closed, stopped polling ({})", waiter.getExecutionId());
+                abandon();
+            }
+        }
+
+        private void poll() {
+            requestCount.increment();
+            profiled = true;
+            boolean done;
+            try {
+                done = waiter.pollOnce();
+            } catch (RuntimeException ex) {
+                logger.error("Error polling approval ({}) - {}", waiter.getExecutionId(), ex.getMessage());
+                done = false;
+            }
+            complete(done);
+        }
+
+        void onApprovalStatus(String approvalStatus) {
+            boolean done;
+            try {
+                done = waiter.onApprovalStatus(approvalStatus);
+            } catch (RuntimeException ex) {
+                logger.error("Error handling approval status ({}) - {}", waiter.getExecutionId(), ex.getMessage());
+                done = false;
+            }
+            complete(done);
+        }
+
+        /**
+         * Poll ServiceNow for this approval now, without counting it as a poll.
+         *
+         * @return true if the approval was completed
+         */
+        boolean pollNow() {
+            if (finished.get()) {
+                return false;
+            }
+            String table = waiter.getTable();
+            String approvalStatus;
+            requestCount.increment();
+            try {
+                approvalStatus = waiter.sc.getApprovalStatuses(table, Collections.singleton(waiter.getExecutionId()))
+                        .get(waiter.getExecutionId());
+            } catch (ServiceNowClientException | RuntimeException ex) {
+                logger.error("Error checking approval status of {} {} - {}", table, waiter.getExecutionId(), ex.getMessage());
+                return false;
+            }
+            logger.debug("{}: {}, Approval Status {} after notification", table, waiter.getExecutionId(), approvalStatus);
+            if (!waiter.onApprovalStatus(approvalStatus) || cancelled()) {
+                return false;
+            }
+            if (!finish(completedCount, true)) {
+                return false;
+            }
+            forget();
+            return true;
+        }
+
+        private void complete(boolean done) {
+            polls++;
+            pollCount.increment();
+            if (done) {
+                boolean cancelled = cancelled();
+                if (finish(cancelled ? cancelledCount : completedCount, !cancelled)) {
+                    forget();
+                }
+            } else if (exhausted()) {
+                if (finish(expiredCount, false)) {
+                    waiter.expire();
+                    forget();
+                }
+            } else if (!finished.get() && !scheduleNext()) {
+                logger.warn("ApprovalScheduler closed, stopped polling ({})", waiter.getExecutionId());
+            }
+        }
+
+        boolean scheduleNext() {
+            try {
+                future = executor.schedule(this, nextInterval(), TimeUnit.MILLISECONDS);
+                return true;
+            } catch (RejectedExecutionException ex) {
+                abandon();
+                return false;
+            }
+        }
+
+        void abandon() {
+            if (finished.compareAndSet(false, true)) {
+                pendingCount.decrementAndGet();
+                unindex(this);
+            }
+        }
+
+        /**
+         * Drop the wait from the journal once RLC has been notified or the wait has been cancelled.
+         */
+        private void forget() {
+            ApprovalJournal journaling = journal;
+            if (journaling != null && waitId > 0) {
+                try {
+                    journaling.complete(waitId);
+                } catch (IOException ex) {
+                    logger.error("Error journaling end of approval wait ({}) - {}", waiter.getExecutionId(), ex.getMessage());
+                }
+            }
+        }
+
+        private boolean cancelled() {
+            return waiter.getState() == ApprovalWaiter.State.CANCELLED;
+        }
+
+        private boolean exhausted() {
+            if (model == null) {
+                return polls >= maxPolls;
+            }
+            return clock.millis() - startedAt >= deadline;
+        }
+
+        private long nextInterval() {
+            if (model == null) {
+                return interval;
+            }
+            long elapsed = clock.millis() - startedAt;
+            long delay = model.nextDelay(waiter.getChangeType(), waiter.getPriority(), waiter.getRisk(), elapsed, waiter.getWaitTime());
+            delay = Math.max(delay, safetyNetInterval);
+            // always poll once more at the deadline before giving up
+            return Math.max(1, Math.min(delay, deadline - elapsed));
+        }
+
+        private boolean finish(LongAdder counter, boolean decided) {
+            if (!finished.compareAndSet(false, true)) {
+                return false;
+            }
+            ApprovalLatencyModel learning = latencyModel;
+            if (decided && learning != null) {
+                learning.record(waiter.getChangeType(), waiter.getPriority(), waiter.getRisk(), clock.millis() - startedAt);
+            }
+            counter.increment();
+            pendingCount.decrementAndGet();
+            unindex(this);
+            ScheduledFuture<?> scheduled = future;
+            if (scheduled != null) {
+                scheduled.cancel(false);
+            }
+            return true;
+        }
+    }
+}
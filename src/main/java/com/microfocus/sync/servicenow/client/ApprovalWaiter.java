@@ -16,16 +16,12 @@ package com.microfocus.sync.servicenow.client;
 import com.microfocus.sync.servicenow.domain.ChangeRequest;
 import com.microfocus.sync.servicenow.domain.ChangeTask;
 import com.microfocus.sync.servicenow.exception.ServiceNowClientException;
-import org.apache.http.HttpResponse;
-import org.apache.http.auth.UsernamePasswordCredentials;
-import org.apache.http.client.methods.HttpPut;
-import org.apache.http.impl.auth.BasicScheme;
-import org.apache.http.impl.client.DefaultHttpClient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class ApprovalWaiter implements Runnable {
 
@@ -39,6 +35,12 @@ public class ApprovalWaiter implements Runnable {
     String requestType;
     Long waitTime;
     Long maxPollCount;
+    final AtomicReference<State> state = new AtomicReference<>(State.WAITING);
+    volatile ApprovalWaiterRegistry registry;
+    String changeType;
+    String priority;
+    String risk;
+    volatile RlcCallbackDispatcher callbackDispatcher;
 
     public ApprovalWaiter(ServiceNowClient sc, String callbackUrl, String callbackUsername, String callbackPassword,
                           String requestType, String executionId, String pollTime, String maxPolls) {
@@ -56,75 +58,249 @@ public class ApprovalWaiter implements Runnable {
         this.maxPollCount = Long.parseLong(maxPolls);
     }
 
+    /**
+     * Wait on the calling thread, polling every waitTime milliseconds up to maxPollCount times.
+     * A waiter that is not registered yet registers with ApprovalWaiterRegistry.getDefault() first and
+     * returns straight away if another waiter is already waiting for its execution id, so only one
+     * waiter polls and calls back per execution id.
+     */
     @Override
     public void run() {
-        String approvalStatus = null;
+        if (registry == null && !ApprovalWaiterRegistry.getDefault().register(this)) {
+            return;
+        }
         Long pollCount = 0L;
 
-        while (pollCount < maxPollCount) {
-            try {
-                logger.debug("Waiting for {} milliseconds", waitTime);
-
-                Thread.sleep(waitTime);
-                synchronized (executionId) {
-                    try {
-                        if (requestType.equals("change_request")) {
-                            ChangeRequest approved = sc.getChangeRequestById(executionId);
-                            approvalStatus = approved.getApproval();
-                            logger.debug("Change Request: {}, Approval Status {}", executionId, approvalStatus);
-                        } else {
-                            ChangeTask approved = sc.getChangeTaskById(executionId);
-                            approvalStatus = approved.getApproval();
-                            logger.debug("Change Task: {}, Approval Status {}", executionId, approvalStatus);
-                        }
-                    } catch (ServiceNowClientException ex) {
-                        logger.error("Error checking approval status ({}) - {}", executionId, ex.getMessage());
-                    }
-                    // TODO: set reason for failure message
-                    if (approvalStatus != null && approvalStatus.equals("Approved")) {
-                        notifyRLC("COMPLETED");
-                        break;
-                    } else if (approvalStatus != null && approvalStatus.equals("Rejected")) {
-                        notifyRLC("FAILED");
+        try {
+            while (pollCount < maxPollCount && !isDone()) {
+                try {
+                    logger.debug("Waiting for {} milliseconds", waitTime);
+
+                    Thread.sleep(waitTime);
+                    if (pollOnce()) {
                         break;
                     }
+                } catch (InterruptedException ex) {
+                    // interrupted, e.g. by shutdownNow of the executor running the wait: stop without notifying RLC
+                    Thread.currentThread().interrupt();
+                    logger.warn("ApprovalWaiter ({}) was interrupted, stopped waiting", executionId);
+                    cancel();
+                    return;
+                }
+                catch (CancellationException ex) {
+                    logger.error("ApprovalWaiter thread has been cancelled: ", ex.getLocalizedMessage());
                 }
-            } catch (InterruptedException ex) {
-                logger.error("ApprovalWaiter was interrupted: " + ex.getLocalizedMessage());
+
+                pollCount++;
             }
-            catch (CancellationException ex) {
-                logger.error("ApprovalWaiter thread has been cancelled: ", ex.getLocalizedMessage());
+
+            if (pollCount >= maxPollCount && !isDone()) {
+                expire();
             }
+        } finally {
+            // a wait ended by an unexpected exception must not keep its execution id registered
+            if (!isDone()) {
+                cancel();
+            }
+        }
+        logger.debug("end ApprovalWait:run");
+
+    }
 
-            pollCount++;
+    /**
+     * Check the approval status once and notify RLC if the request has been approved or rejected.
+     *
+     * @return true if the wait has ended and no more polls are needed
+     */
+    boolean pollOnce() {
+        if (isDone()) {
+            return true;
         }
+        return onApprovalStatus(fetchApprovalStatus());
+    }
 
-        if (pollCount >= maxPollCount) {
+    String fetchApprovalStatus() {
+        String approvalStatus = null;
+        try {
+            if (requestType.equals("change_request")) {
+                ChangeRequest approved = sc.getChangeRequestById(executionId);
+                approvalStatus = approved.getApproval();
+                if (!hasApprovalProfile()) {
+                    setApprovalProfile(approved.getType(), approved.getPriority(), approved.getRisk());
+                }
+                logger.debug("Change Request: {}, Approval Status {}", executionId, approvalStatus);
+            } else {
+                ChangeTask approved = sc.getChangeTaskById(executionId);
+                approvalStatus = approved.getApproval();
+                if (!hasApprovalProfile()) {
+                    setApprovalProfile(approved.getType(), approved.getPriority(), null);
+                }
+                logger.debug("Change Task: {}, Approval Status {}", executionId, approvalStatus);
+            }
+        } catch (ServiceNowClientException ex) {
+            logger.error("Error checking approval status ({}) - {}", executionId, ex.getMessage());
+        }
+        return approvalStatus;
+    }
+
+    /**
+     * Act on an approval status polled by this waiter or on its behalf. Only the call that ends the
+     * wait notifies RLC, however many threads report a status at the same time.
+     *
+     * @param approvalStatus  the approval status, null if it could not be read
+     * @return true if the wait has ended and no more polls are needed
+     */
+    boolean onApprovalStatus(String approvalStatus) {
+        // TODO: set reason for failure message
+        if (approvalStatus != null && approvalStatus.equals("Approved")) {
+            if (transition(State.APPROVED)) {
+                notifyRLC("COMPLETED");
+            }
+        } else if (approvalStatus != null && approvalStatus.equals("Rejected")) {
+            if (transition(State.REJECTED)) {
+                notifyRLC("FAILED");
+            }
+        }
+        return isDone();
+    }
+
+    /**
+     * Give up waiting after maxPollCount polls and fail the RLC execution.
+     */
+    void expire() {
+        if (transition(State.EXPIRED)) {
             logger.debug("ApprovalWaiter exceeded maxPollCount...");
             notifyRLC("FAILED");
         }
-        logger.debug("end ApprovalWait:run");
+    }
+
+    /**
+     * Stop waiting without notifying RLC.
+     *
+     * @return true if the wait was cancelled, false if it had already ended
+     */
+    public boolean cancel() {
+        if (transition(State.CANCELLED)) {
+            logger.debug("ApprovalWaiter ({}) cancelled", executionId);
+            return true;
+        }
+        return false;
+    }
 
+    public State getState() {
+        return state.get();
     }
 
-    synchronized void notifyRLC(String status){
+    /**
+     * @return true if the wait has ended, whatever the outcome
+     */
+    public boolean isDone() {
+        return state.get() != State.WAITING;
+    }
+
+    private boolean transition(State outcome) {
+        if (!state.compareAndSet(State.WAITING, outcome)) {
+            return false;
+        }
+        ApprovalWaiterRegistry owner = registry;
+        if (owner != null) {
+            owner.release(this);
+        }
+        return true;
+    }
+
+    public String getExecutionId() {
+        return executionId;
+    }
+
+    public String getRequestType() {
+        return requestType;
+    }
+
+    /**
+     * @return the table polled for this waiter, change_request or change_task
+     */
+    public String getTable() {
+        return requestType.equals("change_request") ? "change_request" : "change_task";
+    }
+
+    public Long getWaitTime() {
+        return waitTime;
+    }
+
+    public Long getMaxPollCount() {
+        return maxPollCount;
+    }
+
+    /**
+     * Describe the change being approved, so its poll cadence can follow the approval latency
+     * observed for similar changes (see ApprovalLatencyModel). Unless set, the profile is taken
+     * from the change request or task the first time it is read by pollOnce().
+     *
+     * @param changeType  the change type, e.g. Standard or Normal
+     * @param priority  the priority of the change
+     * @param risk  the risk of the change
+     */
+    public void setApprovalProfile(String changeType, String priority, String risk) {
+        this.changeType = changeType;
+        this.priority = priority;
+        this.risk = risk;
+    }
+
+    /**
+     * @return true if the change type, priority or risk is known
+     */
+    public boolean hasApprovalProfile() {
+        return changeType != null || priority != null || risk != null;
+    }
+
+    public String getChangeType() {
+        return changeType;
+    }
+
+    public String getPriority() {
+        return priority;
+    }
+
+    public String getRisk() {
+        return risk;
+    }
+
+    /**
+     * Send RLC callbacks through a dispatcher instead of a blocking PUT on the polling thread.
+     *
+     * @param callbackDispatcher  the dispatcher, null to notify RLC directly
+     */
+    public void setCallbackDispatcher(RlcCallbackDispatcher callbackDispatcher) {
+        this.callbackDispatcher = callbackDispatcher;
+    }
+
+    public RlcCallbackDispatcher getCallbackDispatcher() {
+        return callbackDispatcher;
+    }
+
+    void notifyRLC(String status){
+        String uri = callbackUrl + executionId + "/" + status;
+        RlcCallbackDispatcher dispatcher = callbackDispatcher;
+        if (dispatcher != null) {
+            logger.debug("Queueing RLC callback to url=\"{}\"", uri);
+            dispatcher.dispatch(uri, callbackUsername, callbackPassword);
+            return;
+        }
         try {
-            String uri = callbackUrl + executionId + "/" + status;
-            logger.debug("Start executing RLC PUT request to url=\"{}\"", uri);
-            DefaultHttpClient rlcParams = new DefaultHttpClient();
-            HttpPut put = new HttpPut(uri);
-            UsernamePasswordCredentials credentials = new UsernamePasswordCredentials(callbackUsername, callbackPassword);
-            put.addHeader(BasicScheme.authenticate(credentials, "US-ASCII", false));
-            //put.addHeader("Content-Type", "application/x-www-form-urlencoded");
-            //put.addHeader("Accept", "application/json");
-            logger.info(credentials.toString());
-            HttpResponse response = rlcParams.execute(put);
-            if (response.getStatusLine().getStatusCode() != 200) {
-                logger.error("HTTP Status Code: " + response.getStatusLine().getStatusCode());
+            int statusCode = RlcCallbackDispatcher.send(sc.getTransport(), uri, callbackUsername, callbackPassword);
+            if (statusCode != 200) {
+                logger.error("HTTP Status Code: " + statusCode);
             }
         } catch (IOException ex) {
             logger.error(ex.getLocalizedMessage());
         }
     }
 
+    /**
+     * The state of a wait. Every state but WAITING is final.
+     */
+    public enum State {
+        WAITING, APPROVED, REJECTED, EXPIRED, CANCELLED
+    }
 }
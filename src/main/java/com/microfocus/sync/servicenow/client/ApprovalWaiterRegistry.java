@@ -0,0 +1,131 @@
+/*
+ *
+ * Copyright (c) 2016 SERENA Software, Inc. All Rights Reserved.
+ *
+ * This software is proprietary information of SERENA Software, Inc.
+ * Use is subject to license terms.
+ *
+ * @author Kevin Lee
+ */
+package com.microfocus.sync.servicenow.client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The approval waits in progress, by execution id, so that a record is only polled by one waiter.
+ * A waiter registered for an execution id that already has a waiter in progress is a duplicate and is
+ * not started; the RLC callback of the waiter in progress goes to the same URL. Waiters leave the
+ * registry by themselves when they end, after which the execution id can be waited on again.
+ * Each ApprovalScheduler keeps its own registry; waiters run directly share the default one.
+ * The registry does not lock: registration is a putIfAbsent, and the state of each waiter only
+ * changes by compare-and-set from WAITING to its outcome.
+ * @author klee@serena.com
+ */
+public class ApprovalWaiterRegistry {
+    private static final Logger logger = LoggerFactory.getLogger(ApprovalWaiterRegistry.class);
+
+    private static final ApprovalWaiterRegistry DEFAULT = new ApprovalWaiterRegistry();
+
+    private final ConcurrentHashMap<String, ApprovalWaiter> waiters = new ConcurrentHashMap<>();
+    private final LongAdder registeredCount = new LongAdder();
+    private final LongAdder duplicateCount = new LongAdder();
+
+    /**
+     * @return the registry shared by the waiters that are run directly with ApprovalWaiter.run()
+     */
+    public static ApprovalWaiterRegistry getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Register a waiter, unless another waiter is in progress for its execution id.
+     *
+     * @param waiter  the waiter
+     * @return true if the waiter is now the one waiting for its execution id and should be started,
+     * false if it is a duplicate
+     */
+    public boolean register(ApprovalWaiter waiter) {
+        String executionId = waiter.getExecutionId();
+        for (;;) {
+            ApprovalWaiter existing = waiters.putIfAbsent(executionId, waiter);
+            if (existing == waiter) {
+                return true;
+            }
+            if (existing != null && !existing.isDone()) {
+                duplicateCount.increment();
+                logger.debug("Approval of ({}) already awaited, ignoring duplicate waiter", executionId);
+                return false;
+            }
+            // the waiter in place has just ended and not released its entry yet
+            if (existing == null || waiters.replace(executionId, existing, waiter)) {
+                registeredCount.increment();
+                waiter.registry = this;
+                if (waiter.isDone()) {
+                    release(waiter);
+                }
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @param executionId  the execution id
+     * @return the waiter in progress for the execution id, or null if there is none
+     */
+    public ApprovalWaiter get(String executionId) {
+        return waiters.get(executionId);
+    }
+
+    /**
+     * Read the state of a wait, without asking ServiceNow.
+     *
+     * @param executionId  the execution id
+     * @return the state, or null if no wait is in progress for the execution id
+     */
+    public ApprovalWaiter.State getState(String executionId) {
+        ApprovalWaiter waiter = waiters.get(executionId);
+        return waiter == null ? null : waiter.getState();
+    }
+
+    /**
+     * Cancel the wait for an execution id. RLC is not notified.
+     *
+     * @param executionId  the execution id
+     * @return true if a wait was cancelled, false if none was in progress
+     */
+    public boolean cancel(String executionId) {
+        ApprovalWaiter waiter = waiters.get(executionId);
+        return waiter != null && waiter.cancel();
+    }
+
+    /**
+     * @return the number of waits in progress
+     */
+    public int size() {
+        return waiters.size();
+    }
+
+    public long getRegisteredCount() {
+        return registeredCount.sum();
+    }
+
+    public long getDuplicateCount() {
+        return duplicateCount.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "ApprovalWaiterRegistry{" + "waiting=" + size() +
+                ", registered=" + getRegisteredCount() +
+                ", duplicates=" + getDuplicateCount() +
+        '}';
+    }
+
+    void release(ApprovalWaiter waiter) {
+        waiters.remove(waiter.getExecutionId(), waiter);
+    }
+}
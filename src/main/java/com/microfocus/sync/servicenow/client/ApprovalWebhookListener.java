@@ -0,0 +1,281 @@
+/*
+ *
+ * Copyright (c) 2016 SERENA Software, Inc. All Rights Reserved.
+ *
+ * This software is proprietary information of SERENA Software, Inc.
+ * Use is subject to license terms.
+ *
+ * @author Kevin Lee
+ */
+package com.microfocus.sync.servicenow.client;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Embedded HTTP endpoint receiving approval changes pushed by ServiceNow, from an outbound REST
+ * message or a business rule on change_request and change_task. A notification makes the
+ * ApprovalScheduler poll the matching approval straight away, and only the status read back from
+ * ServiceNow completes it and calls RLC; the scheduler's polling stays on as a safety net for lost
+ * notifications (see ApprovalScheduler.setSafetyNetInterval).
+ * <p>
+ * The endpoint accepts a POST of one JSON object or a JSON array of objects:
+ * <pre>
+ *     {"table": "change_request", "sys_id": "a9e30c7dc61122760116894de7bcc7bd", "approval": "approved"}
+ * </pre>
+ * The table and approval are optional. A notification for another table than the one waited on is
+ * ignored, as is an approval other than approved or rejected, raw or display value, since it cannot
+ * end the wait. An array is checked as a whole before any of its notifications is acted on.
+ * If a shared secret is set the request must carry it in the X-Approval-Token header; without one
+ * the listener only accepts a loopback address.
+ * @author klee@serena.com
+ */
+public class ApprovalWebhookListener {
+    private static final Logger logger = LoggerFactory.getLogger(ApprovalWebhookListener.class);
+
+    public static String DEFAULT_PATH = "/approval";
+    public static String TOKEN_HEADER = "X-Approval-Token";
+    public static int DEFAULT_HANDLER_THREADS = 2;
+    public static int MAX_BODY_SIZE = 64 * 1024;
+
+    private final ApprovalScheduler scheduler;
+    private final InetSocketAddress address;
+    private final String path;
+    private final byte[] sharedSecret;
+    private HttpServer server;
+    private ExecutorService executor;
+
+    private final LongAdder receivedCount = new LongAdder();
+    private final LongAdder matchedCount = new LongAdder();
+    private final LongAdder rejectedCount = new LongAdder();
+
+    /**
+     * Create a new listener on the loopback interface, without a shared secret, e.g. behind a reverse proxy.
+     *
+     * @param scheduler  the scheduler holding the pending approvals
+     * @param port  the port to listen on, 0 for any free port
+     */
+    public ApprovalWebhookListener(ApprovalScheduler scheduler, int port) {
+        this(scheduler, new InetSocketAddress(InetAddress.getLoopbackAddress(), port), DEFAULT_PATH, null);
+    }
+
+    /**
+     * Create a new listener.
+     *
+     * @param scheduler  the scheduler holding the pending approvals
+     * @param address  the address to listen on
+     * @param path  the path notifications are posted to, e.g. /approval
+     * @param sharedSecret  the value expected in the X-Approval-Token header, null to accept any request
+     *                      on a loopback address
+     * @throws IllegalArgumentException  if there is no shared secret and the address is not a loopback address
+     */
+    public ApprovalWebhookListener(ApprovalScheduler scheduler, InetSocketAddress address, String path, String sharedSecret) {
+        if (sharedSecret == null && (address.getAddress() == null || !address.getAddress().isLoopbackAddress())) {
+            throw new IllegalArgumentException("A shared secret is required to listen on " + address);
+        }
+        this.scheduler = scheduler;
+        this.address = address;
+        this.path = path.startsWith("/") ? path : "/" + path;
+        this.sharedSecret = sharedSecret == null ? null : sharedSecret.getBytes(StandardCharsets.UTF_8);
+    }
+
+    public synchronized void start() throws IOException {
+        if (server != null) {
+            return;
+        }
+        executor = Executors.newFixedThreadPool(DEFAULT_HANDLER_THREADS, new DaemonThreadFactory("snow-webhook"));
+        server = HttpServer.create(address, 0);
+        server.createContext(path, new NotificationHandler());
+        server.setExecutor(executor);
+        server.start();
+        logger.info("Listening for ServiceNow approval notifications on port {} at {}", getPort(), path);
+    }
+
+    public synchronized void stop() {
+        if (server == null) {
+            return;
+        }
+        server.stop(0);
+        executor.shutdownNow();
+        server = null;
+        executor = null;
+    }
+
+    /**
+     * @return the port the listener is bound to, useful when it was created with port 0
+     */
+    public synchronized int getPort() {
+        return server == null ? -1 : server.getAddress().getPort();
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public long getReceivedCount() {
+        return receivedCount.sum();
+    }
+
+    /**
+     * @return the number of notifications that completed at least one pending approval
+     */
+    public long getMatchedCount() {
+        return matchedCount.sum();
+    }
+
+    /**
+     * @return the number of requests refused as unauthorized or malformed
+     */
+    public long getRejectedCount() {
+        return rejectedCount.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "ApprovalWebhookListener{" + "port=" + getPort() +
+                ", received=" + getReceivedCount() +
+                ", matched=" + getMatchedCount() +
+                ", rejected=" + getRejectedCount() +
+        '}';
+    }
+
+    static String normalizeApproval(String approval) {
+        if ("approved".equalsIgnoreCase(approval)) {
+            return "Approved";
+        } else if ("rejected".equalsIgnoreCase(approval)) {
+            return "Rejected";
+        }
+        return approval;
+    }
+
+    private static void validate(Object notification) {
+        if (!(notification instanceof JSONObject)) {
+            throw new IllegalArgumentException("notification must be an object");
+        }
+        JSONObject object = (JSONObject) notification;
+        if (!(object.get("sys_id") instanceof String)) {
+            throw new IllegalArgumentException("sys_id is required");
+        }
+        Object table = object.get("table");
+        Object approval = object.get("approval");
+        if ((table != null && !(table instanceof String)) || (approval != null && !(approval instanceof String))) {
+            throw new IllegalArgumentException("table and approval must be strings");
+        }
+    }
+
+    private int apply(JSONObject notification) {
+        String table = (String) notification.get("table");
+        String sysId = (String) notification.get("sys_id");
+        String approval = (String) notification.get("approval");
+        receivedCount.increment();
+        if (table != null && !"change_request".equals(table) && !"change_task".equals(table)) {
+            logger.debug("Ignoring approval notification for table {}", table);
+            return 0;
+        }
+        if (approval != null) {
+            approval = normalizeApproval(approval);
+            if (!"Approved".equals(approval) && !"Rejected".equals(approval)) {
+                logger.debug("Ignoring approval notification {} {}", sysId, approval);
+                return 0;
+            }
+        }
+        int completed = scheduler.notifyApproval(table, sysId);
+        if (completed > 0) {
+            matchedCount.increment();
+        }
+        logger.debug("Approval notification {} {} completed {} pending approvals", sysId, approval, completed);
+        return completed;
+    }
+
+    private class NotificationHandler implements HttpHandler {
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                if (!"POST".equalsIgnoreCase(exchange.getRequestMethod())) {
+                    respond(exchange, 405, "{\"error\":\"POST required\"}");
+                    return;
+                }
+                if (sharedSecret != null) {
+                    String token = exchange.getRequestHeaders().getFirst(TOKEN_HEADER);
+                    if (token == null || !MessageDigest.isEqual(sharedSecret, token.getBytes(StandardCharsets.UTF_8))) {
+                        rejectedCount.increment();
+                        respond(exchange, 401, "{\"error\":\"unauthorized\"}");
+                        return;
+                    }
+                }
+                byte[] body = readBody(exchange.getRequestBody());
+                if (body == null) {
+                    rejectedCount.increment();
+                    respond(exchange, 413, "{\"error\":\"body too large\"}");
+                    return;
+                }
+
+                List<Object> notifications;
+                try {
+                    Object parsed = new JSONParser().parse(new String(body, StandardCharsets.UTF_8));
+                    notifications = parsed instanceof JSONArray ? (JSONArray) parsed : Collections.singletonList(parsed);
+                    // refuse the whole request before acting on any of it
+                    for (Object notification : notifications) {
+                        validate(notification);
+                    }
+                } catch (ParseException | IllegalArgumentException ex) {
+                    rejectedCount.increment();
+                    logger.debug("Malformed approval notification - {}", ex.getMessage());
+                    respond(exchange, 400, "{\"error\":\"malformed notification\"}");
+                    return;
+                }
+                int completed = 0;
+                for (Object notification : notifications) {
+                    completed += apply((JSONObject) notification);
+                }
+                respond(exchange, 200, "{\"completed\":" + completed + "}");
+            } finally {
+                exchange.close();
+            }
+        }
+
+        private byte[] readBody(InputStream in) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                if (out.size() + read > MAX_BODY_SIZE) {
+                    return null;
+                }
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        }
+
+        private void respond(HttpExchange exchange, int status, String body) throws IOException {
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", ServiceNowClient.DEFAULT_HTTP_CONTENT_TYPE);
+            exchange.sendResponseHeaders(status, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        }
+    }
+}
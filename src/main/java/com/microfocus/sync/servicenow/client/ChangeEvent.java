@@ -0,0 +1,56 @@
+/*
+ *
+ * Copyright (c) 2016 SERENA Software, Inc. All Rights Reserved.
+ *
+ * This software is proprietary information of SERENA Software, Inc.
+ * Use is subject to license terms.
+ *
+ * @author Kevin Lee
+ */
+package com.microfocus.sync.servicenow.client;
+
+import com.microfocus.sync.servicenow.domain.ServiceNowObject;
+
+/**
+ * A record created or updated in ServiceNow, as published by ChangeFeed.
+ * @author klee@serena.com
+ */
+public class ChangeEvent<T extends ServiceNowObject> {
+
+    private final String table;
+    private final T record;
+    private final String updatedOn;
+
+    public ChangeEvent(String table, T record, String updatedOn) {
+        this.table = table;
+        this.record = record;
+        this.updatedOn = updatedOn;
+    }
+
+    public String getTable() {
+        return table;
+    }
+
+    /**
+     * @return the record as it was when the change was read, with display values
+     */
+    public T getRecord() {
+        return record;
+    }
+
+    /**
+     * @return the raw (UTC) sys_updated_on of the change, e.g. 2016-01-31 23:59:59
+     */
+    public String getUpdatedOn() {
+        return updatedOn;
+    }
+
+    @Override
+    public String toString() {
+        return "ChangeEvent{" + "table=" + table +
+                ", id=" + record.getId() +
+                ", number=" + record.getNumber() +
+                ", updatedOn=" + updatedOn +
+        '}';
+    }
+}
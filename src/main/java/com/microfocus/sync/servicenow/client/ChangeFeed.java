@@ -0,0 +1,441 @@
+/*
+ *
+ * Copyright (c) 2016 SERENA Software, Inc. All Rights Reserved.
+ *
+ * This software is proprietary information of SERENA Software, Inc.
+ * Use is subject to license terms.
+ *
+ * @author Kevin Lee
+ */
+package com.microfocus.sync.servicenow.client;
+
+import com.microfocus.sync.servicenow.domain.ChangeRequest;
+import com.microfocus.sync.servicenow.domain.ChangeTask;
+import com.microfocus.sync.servicenow.domain.Incident;
+import com.microfocus.sync.servicenow.domain.ServiceNowObject;
+import com.microfocus.sync.servicenow.exception.ServiceNowClientException;
+import org.json.simple.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Publishes the Change Requests, Change Tasks and Incidents created or updated in ServiceNow as
+ * ChangeEvents, so consumers subscribe instead of each running its own polling loop.
+ * Each table is polled by one task, shared by all its subscribers, while it has subscribers. A poll
+ * reads the sys_ids updated since the table's watermark (the raw sys_updated_on and sys_id of the last
+ * change seen, in sys_updated_on then sys_id order), then the complete records with one sys_idIN query,
+ * and advances the watermark.
+ * Every subscriber has a bounded buffer and receives events as it requests them. A poll never reads more
+ * changes than the fullest buffer can take, and is skipped while any buffer is full, so a slow
+ * subscriber pauses the table rather than losing events or growing memory; the changes are read once
+ * it catches up. A record changed again before it was read may be published twice.
+ * Watermarks start at the time the feed was created unless set, and can be saved with getWatermark
+ * to resume a feed later without missing changes.
+ * @author klee@serena.com
+ */
+public class ChangeFeed implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(ChangeFeed.class);
+
+    public static long DEFAULT_POLL_INTERVAL = 10000L;
+    public static int DEFAULT_BUFFER_SIZE = 1000;
+    public static int DEFAULT_PAGE_SIZE = 200;
+
+    private final ServiceNowClient sc;
+    private final long pollInterval;
+    private final int bufferSize;
+    private final ScheduledThreadPoolExecutor poller;
+    private final ExecutorService delivery;
+    private final String createdAt;
+    private final TableFeed<ChangeRequest> changeRequests;
+    private final TableFeed<ChangeTask> changeTasks;
+    private final TableFeed<Incident> incidents;
+    private volatile boolean closed;
+
+    private final LongAdder pollCount = new LongAdder();
+    private final LongAdder pausedCount = new LongAdder();
+    private final LongAdder eventCount = new LongAdder();
+    private final LongAdder errorCount = new LongAdder();
+
+    public ChangeFeed(ServiceNowClient sc) {
+        this(sc, DEFAULT_POLL_INTERVAL, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Create a new change feed.
+     *
+     * @param sc  the client to poll ServiceNow with
+     * @param pollInterval  milliseconds between two polls of a table
+     * @param bufferSize  the number of events buffered per subscriber
+     */
+    public ChangeFeed(ServiceNowClient sc, long pollInterval, int bufferSize) {
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("Buffer size must be positive: " + bufferSize);
+        }
+        this.sc = sc;
+        this.pollInterval = pollInterval;
+        this.bufferSize = bufferSize;
+        this.poller = new ScheduledThreadPoolExecutor(1, new DaemonThreadFactory("snow-change-feed"));
+        this.poller.setRemoveOnCancelPolicy(true);
+        this.delivery = WaitExecutors.newWaitExecutor("snow-change-feed-delivery");
+        this.createdAt = formatWatermark(System.currentTimeMillis());
+        this.changeRequests = new TableFeed<>("change_request", ChangeRequest::parseSingle);
+        this.changeTasks = new TableFeed<>("change_task", ChangeTask::parseSingle);
+        this.incidents = new TableFeed<>("incident", Incident::parseSingle);
+    }
+
+    public Flow.Publisher<ChangeEvent<ChangeRequest>> changeRequests() {
+        return changeRequests;
+    }
+
+    public Flow.Publisher<ChangeEvent<ChangeTask>> changeTasks() {
+        return changeTasks;
+    }
+
+    public Flow.Publisher<ChangeEvent<Incident>> incidents() {
+        return incidents;
+    }
+
+    /**
+     * @param table  change_request, change_task or incident
+     * @return the raw sys_updated_on up to which the changes of the table have been read
+     */
+    public String getWatermark(String table) {
+        return tableFeed(table).watermark;
+    }
+
+    /**
+     * Set where reading the changes of a table starts, e.g. to resume from a saved watermark.
+     *
+     * @param table  change_request, change_task or incident
+     * @param watermark  a raw (UTC) sys_updated_on, e.g. 2016-01-31 23:59:59
+     */
+    public void setWatermark(String table, String watermark) {
+        TableFeed<?> feed = tableFeed(table);
+        synchronized (feed) {
+            feed.watermark = watermark;
+            feed.lastIdAtWatermark = null;
+        }
+    }
+
+    /**
+     * Format a time as a watermark.
+     *
+     * @param millis  milliseconds since the epoch
+     * @return the time as a raw (UTC) sys_updated_on
+     */
+    public static String formatWatermark(long millis) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date(millis));
+    }
+
+    public long getPollCount() {
+        return pollCount.sum();
+    }
+
+    /**
+     * @return the number of polls skipped because a subscriber's buffer was full
+     */
+    public long getPausedCount() {
+        return pausedCount.sum();
+    }
+
+    public long getEventCount() {
+        return eventCount.sum();
+    }
+
+    public long getErrorCount() {
+        return errorCount.sum();
+    }
+
+    /**
+     * Stop polling and complete all subscribers once they have received their buffered events.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        poller.shutdownNow();
+        changeRequests.complete();
+        changeTasks.complete();
+        incidents.complete();
+        delivery.shutdown();
+    }
+
+    @Override
+    public String toString() {
+        return "ChangeFeed{" + "polls=" + getPollCount() +
+                ", paused=" + getPausedCount() +
+                ", events=" + getEventCount() +
+                ", errors=" + getErrorCount() +
+        '}';
+    }
+
+    private TableFeed<?> tableFeed(String table) {
+        if (changeRequests.table.equals(table)) {
+            return changeRequests;
+        } else if (changeTasks.table.equals(table)) {
+            return changeTasks;
+        } else if (incidents.table.equals(table)) {
+            return incidents;
+        }
+        throw new IllegalArgumentException("No change feed for table " + table);
+    }
+
+    /**
+     * The shared upstream poll of one table and its subscribers.
+     */
+    private class TableFeed<T extends ServiceNowObject> implements Flow.Publisher<ChangeEvent<T>> {
+        private final String table;
+        private final Function<JSONObject, T> mapper;
+        private final List<FeedSubscription<T>> subscriptions = new CopyOnWriteArrayList<>();
+        private ScheduledFuture<?> polling;
+        private String watermark = createdAt;
+        // the highest sys_id read with sys_updated_on equal to the watermark, the next poll starts after it
+        private String lastIdAtWatermark;
+
+        TableFeed(String table, Function<JSONObject, T> mapper) {
+            this.table = table;
+            this.mapper = mapper;
+        }
+
+        @Override
+        public void subscribe(Flow.Subscriber<? super ChangeEvent<T>> subscriber) {
+            FeedSubscription<T> subscription = new FeedSubscription<>(this, subscriber);
+            subscriber.onSubscribe(subscription);
+            synchronized (this) {
+                if (closed) {
+                    subscription.complete();
+                    return;
+                }
+                subscriptions.add(subscription);
+                if (polling == null) {
+                    polling = poller.scheduleWithFixedDelay(new Runnable() {
+                        @Override
+                        public void run() {
+                            poll();
+                        }
+                    }, 0, pollInterval, TimeUnit.MILLISECONDS);
+                    logger.debug("Started polling {} changes every {} ms", table, pollInterval);
+                }
+            }
+        }
+
+        synchronized void unsubscribe(FeedSubscription<T> subscription) {
+            subscriptions.remove(subscription);
+            if (subscriptions.isEmpty() && polling != null) {
+                polling.cancel(false);
+                polling = null;
+                logger.debug("Stopped polling {} changes", table);
+            }
+        }
+
+        void complete() {
+            for (FeedSubscription<T> subscription : subscriptions) {
+                subscription.complete();
+            }
+        }
+
+        /**
+         * Read the changes since the watermark, as many as the subscribers can take, page after page.
+         */
+        private void poll() {
+            try {
+                int room;
+                while ((room = room()) > 0 && !closed) {
+                    int limit = Math.min(room, DEFAULT_PAGE_SIZE);
+                    if (pollPage(limit) < limit) {
+                        return;
+                    }
+                }
+                if (room == 0) {
+                    pausedCount.increment();
+                    logger.debug("Subscriber buffer full, paused polling {} changes", table);
+                }
+            } catch (ServiceNowClientException | RuntimeException ex) {
+                errorCount.increment();
+                logger.error("Error polling {} changes since {} - {}", table, watermark, ex.getMessage());
+            }
+        }
+
+        private int pollPage(int limit) throws ServiceNowClientException {
+            String since;
+            String afterId;
+            synchronized (this) {
+                since = watermark;
+                afterId = lastIdAtWatermark;
+            }
+            pollCount.increment();
+            LinkedHashMap<String, String> updated = sc.fetchUpdatedSince(table, since, afterId, limit);
+            if (updated.isEmpty()) {
+                return 0;
+            }
+            Map<String, T> records = new HashMap<>();
+            sc.fetchByIds(table, updated.keySet(), mapper, record -> records.put(record.getId(), record));
+
+            for (Map.Entry<String, String> change : updated.entrySet()) {
+                T record = records.get(change.getKey());
+                // a record deleted since it was listed has no event, the watermark still moves past it
+                if (record != null) {
+                    ChangeEvent<T> event = new ChangeEvent<>(table, record, change.getValue());
+                    eventCount.increment();
+                    for (FeedSubscription<T> subscription : subscriptions) {
+                        subscription.offer(event);
+                    }
+                }
+                synchronized (this) {
+                    if (since.equals(watermark)) {
+                        // changes come in sys_updated_on then sys_id order, so this is the highest sys_id yet
+                        watermark = change.getValue();
+                        lastIdAtWatermark = change.getKey();
+                    }
+                    since = watermark;
+                }
+            }
+            logger.debug("Read {} {} changes, watermark {}", updated.size(), table, since);
+            return updated.size();
+        }
+
+        private int room() {
+            int room = bufferSize;
+            for (FeedSubscription<T> subscription : subscriptions) {
+                room = Math.min(room, subscription.room());
+            }
+            return room;
+        }
+    }
+
+    /**
+     * One subscriber of a table: its buffer, its outstanding demand and the delivery of its signals,
+     * which run on the delivery executor and never concurrently.
+     */
+    private class FeedSubscription<T extends ServiceNowObject> implements Flow.Subscription {
+        private final TableFeed<T> feed;
+        private final Flow.Subscriber<? super ChangeEvent<T>> subscriber;
+        private final Queue<ChangeEvent<T>> buffer = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger buffered = new AtomicInteger();
+        private final AtomicLong requested = new AtomicLong();
+        private final AtomicInteger drains = new AtomicInteger();
+        private volatile boolean cancelled;
+        private volatile boolean completed;
+        private volatile Throwable error;
+
+        FeedSubscription(TableFeed<T> feed, Flow.Subscriber<? super ChangeEvent<T>> subscriber) {
+            this.feed = feed;
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                error = new IllegalArgumentException("Requested items must be positive: " + n);
+            } else {
+                long current;
+                do {
+                    current = requested.get();
+                } while (!requested.compareAndSet(current, current + n < 0 ? Long.MAX_VALUE : current + n));
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            if (!cancelled) {
+                cancelled = true;
+                feed.unsubscribe(this);
+                buffer.clear();
+                buffered.set(0);
+            }
+        }
+
+        void offer(ChangeEvent<T> event) {
+            if (cancelled) {
+                return;
+            }
+            buffer.add(event);
+            buffered.incrementAndGet();
+            drain();
+        }
+
+        void complete() {
+            completed = true;
+            drain();
+        }
+
+        int room() {
+            return bufferSize - buffered.get();
+        }
+
+        private void drain() {
+            if (drains.getAndIncrement() != 0) {
+                return;
+            }
+            try {
+                delivery.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        deliver();
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                logger.debug("Change feed closed, stopped delivering {} changes", feed.table);
+            }
+        }
+
+        private void deliver() {
+            int missed = 1;
+            do {
+                if (error != null) {
+                    Throwable failure = error;
+                    cancel();
+                    subscriber.onError(failure);
+                    return;
+                }
+                long demand = requested.get();
+                long delivered = 0;
+                ChangeEvent<T> event;
+                while (delivered < demand && !cancelled && (event = buffer.poll()) != null) {
+                    buffered.decrementAndGet();
+                    try {
+                        subscriber.onNext(event);
+                    } catch (RuntimeException ex) {
+                        logger.error("Subscriber of {} changes failed, cancelled its subscription - {}", feed.table, ex.getMessage());
+                        cancel();
+                        return;
+                    }
+                    delivered++;
+                }
+                if (delivered > 0 && demand != Long.MAX_VALUE) {
+                    requested.addAndGet(-delivered);
+                }
+                if (completed && !cancelled && buffer.isEmpty()) {
+                    cancelled = true;
+                    feed.unsubscribe(this);
+                    subscriber.onComplete();
+                    return;
+                }
+                missed = drains.addAndGet(-missed);
+            } while (missed != 0);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ *
+ * Copyright (c) 2016 SERENA Software, Inc. All Rights Reserved.
+ *
+ * This software is proprietary information of SERENA Software, Inc.
+ * Use is subject to license terms.
+ *
+ * @author Kevin Lee
+ */
+package com.microfocus.sync.servicenow.client;
+
+/**
+ * The publisher, subscriber and subscription interfaces of java.util.concurrent.Flow (Reactive Streams),
+ * which the tool cannot use as it is built for Java 8. The contracts are the same: a subscriber
+ * receives onSubscribe first, then at most as many onNext as it has requested through its
+ * subscription, one at a time, and finally onComplete or onError unless it cancels.
+ * @author klee@serena.com
+ */
+public final class Flow {
+
+    private Flow() {
+    }
+
+    /**
+     * A source of items for any number of subscribers.
+     */
+    public interface Publisher<T> {
+        void subscribe(Subscriber<? super T> subscriber);
+    }
+
+    /**
+     * A receiver of items.
+     */
+    public interface Subscriber<T> {
+        void onSubscribe(Subscription subscription);
+
+        void onNext(T item);
+
+        void onError(Throwable throwable);
+
+        void onComplete();
+    }
+
+    /**
+     * The link between one publisher and one subscriber, through which the subscriber asks for items.
+     */
+    public interface Subscription {
+        /**
+         * Ask for up to n more items.
+         *
+         * @param n  the number of items, positive
+         */
+        void request(long n);
+
+        /**
+         * Stop receiving items.
+         */
+        void cancel();
+    }
+}
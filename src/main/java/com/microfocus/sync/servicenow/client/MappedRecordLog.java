@@ -0,0 +1,323 @@
+/*
+ *
+ * Copyright (c) 2016 SERENA Software, Inc. All Rights Reserved.
+ *
+ * This software is proprietary information of SERENA Software, Inc.
+ * Use is subject to license terms.
+ *
+ * @author Kevin Lee
+ */
+package com.microfocus.sync.servicenow.client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of opaque records in a memory-mapped file.
+ * Each record is stored as its length, a CRC32 checksum and the record bytes. Appends go to the
+ * mapped pages, so they survive a JVM crash without a system call per record; force() additionally
+ * flushes them to the device. On open the log is scanned up to the first incomplete or corrupt record,
+ * which is where a crash interrupted the last append, and later appends continue from there.
+ * The file only grows; rewrite() replaces the whole content atomically, which is how owners compact it.
+ * Windows refuses to replace a file that is still mapped, so the log unmaps its buffer explicitly
+ * (Unsafe.invokeCleaner on Java 9 and later, the buffer's cleaner on Java 8) before the replacement.
+ * Where neither is reachable the mapping is only released by the garbage collector; rewrite() then
+ * fails with an IOException on Windows, the old content stays in use and the log is not compacted.
+ * The file is created readable and writable by its owner only, as records may hold credentials.
+ * @author klee@serena.com
+ */
+public class MappedRecordLog implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(MappedRecordLog.class);
+
+    public static int DEFAULT_INITIAL_SIZE = 1024 * 1024;
+
+    private static final int MAGIC = 0x534E4C47;
+    private static final int HEADER_SIZE = 8;
+    private static final int RECORD_OVERHEAD = 8;
+
+    private final Path file;
+    private final int version;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int position;
+    private int recordCount;
+
+    /**
+     * Open a log, creating it if it does not exist.
+     *
+     * @param file  the log file
+     * @param version  the record format version written by the owner, a log with another version is rejected
+     * @throws IOException if the file cannot be opened or belongs to another format
+     */
+    public MappedRecordLog(Path file, int version) throws IOException {
+        this.file = file;
+        this.version = version;
+        open(DEFAULT_INITIAL_SIZE);
+    }
+
+    /**
+     * Read all complete records, oldest first.
+     *
+     * @return the records
+     */
+    public synchronized List<byte[]> readAll() {
+        List<byte[]> records = new ArrayList<>(recordCount);
+        int offset = HEADER_SIZE;
+        while (offset < position) {
+            int length = buffer.getInt(offset);
+            records.add(read(offset, length));
+            offset += RECORD_OVERHEAD + length;
+        }
+        return records;
+    }
+
+    /**
+     * Append a record.
+     *
+     * @param record  the record bytes, not empty
+     * @throws IOException if the file cannot be grown
+     */
+    public synchronized void append(byte[] record) throws IOException {
+        ensureOpen();
+        if (record.length == 0) {
+            throw new IllegalArgumentException("Empty record");
+        }
+        int needed = RECORD_OVERHEAD + record.length;
+        if (position + needed + 4 > buffer.capacity()) {
+            remap(Math.max(buffer.capacity() * 2L, position + needed + 4L));
+        }
+        // the length is written last, so a torn append reads as the end of the log
+        buffer.putInt(position + 4, checksum(record, 0, record.length));
+        ByteBuffer target = buffer.duplicate();
+        target.position(position + RECORD_OVERHEAD);
+        target.put(record);
+        buffer.putInt(position + needed, 0);
+        buffer.putInt(position, record.length);
+        position += needed;
+        recordCount++;
+    }
+
+    /**
+     * Replace the content of the log with the given records. The new content is written to a
+     * temporary file which then atomically replaces the log, so a crash leaves either the old
+     * or the new content.
+     *
+     * @param records  the records to keep
+     * @throws IOException if the new content cannot be written
+     */
+    public synchronized void rewrite(List<byte[]> records) throws IOException {
+        ensureOpen();
+        long size = HEADER_SIZE + 4;
+        for (byte[] record : records) {
+            size += RECORD_OVERHEAD + record.length;
+        }
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Record log too large: " + file);
+        }
+        ByteBuffer content = ByteBuffer.allocate((int) size);
+        content.putInt(MAGIC);
+        content.putInt(version);
+        for (byte[] record : records) {
+            content.putInt(record.length);
+            content.putInt(checksum(record, 0, record.length));
+            content.put(record);
+        }
+        content.putInt(0);
+        content.flip();
+
+        // the temporary file is written, not mapped, so no mapping of it outlives the move
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.deleteIfExists(tmp);
+        try (FileChannel out = FileChannel.open(tmp, createOptions(), ownerOnly())) {
+            while (content.hasRemaining()) {
+                out.write(content);
+            }
+            out.force(true);
+        }
+        // release the mapping of the old file before it is replaced; it is mapped afresh from the new file
+        MappedByteBuffer old = buffer;
+        old.force();
+        buffer = null;
+        channel.close();
+        channel = null;
+        unmap(old);
+        try {
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            // reopens the old content if the move failed
+            open(DEFAULT_INITIAL_SIZE);
+        }
+        logger.debug("Rewrote {} with {} records", file, records.size());
+    }
+
+    /**
+     * Flush appended records to the storage device.
+     */
+    public synchronized void force() {
+        if (buffer != null) {
+            buffer.force();
+        }
+    }
+
+    public synchronized int getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * @return the number of bytes in use
+     */
+    public synchronized int getSize() {
+        return position;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            MappedByteBuffer old = buffer;
+            old.force();
+            channel.close();
+            channel = null;
+            buffer = null;
+            unmap(old);
+        }
+    }
+
+    private void open(long minSize) throws IOException {
+        boolean created = !Files.exists(file);
+        channel = FileChannel.open(file, createOptions(), ownerOnly());
+        if (!created && ownerOnly().length > 0) {
+            Files.setPosixFilePermissions(file, PosixFilePermissions.fromString("rw-------"));
+        }
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(channel.size(), minSize));
+        if (created || buffer.getInt(0) == 0) {
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, version);
+        } else if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != version) {
+            channel.close();
+            throw new IOException("Not a record log of version " + version + ": " + file);
+        }
+        scan();
+    }
+
+    private void scan() {
+        position = HEADER_SIZE;
+        recordCount = 0;
+        while (position + RECORD_OVERHEAD <= buffer.capacity()) {
+            int length = buffer.getInt(position);
+            if (length <= 0 || position + RECORD_OVERHEAD + length > buffer.capacity()) {
+                break;
+            }
+            byte[] record = read(position, length);
+            if (checksum(record, 0, length) != buffer.getInt(position + 4)) {
+                logger.warn("Discarding corrupt record at offset {} of {}", position, file);
+                break;
+            }
+            position += RECORD_OVERHEAD + length;
+            recordCount++;
+        }
+        if (position + 4 <= buffer.capacity() && buffer.getInt(position) != 0) {
+            // the tail of an interrupted append, clear it so it cannot be mistaken for a record later;
+            // the end is taken before clearing, which zeroes the length it is computed from
+            long end = Math.min(buffer.capacity(), position + RECORD_OVERHEAD + Math.max(0L, buffer.getInt(position)));
+            for (int i = position; i < end; i++) {
+                buffer.put(i, (byte) 0);
+            }
+            buffer.putInt(position, 0);
+        }
+    }
+
+    private byte[] read(int offset, int length) {
+        byte[] record = new byte[length];
+        ByteBuffer source = buffer.duplicate();
+        source.position(offset + RECORD_OVERHEAD);
+        source.get(record);
+        return record;
+    }
+
+    private void remap(long size) throws IOException {
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Record log too large: " + file);
+        }
+        MappedByteBuffer old = buffer;
+        old.force();
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        unmap(old);
+    }
+
+    /**
+     * Release a mapping now instead of when the buffer is garbage collected. The buffer, and any
+     * duplicate of it, must not be used afterwards; all of them are only used under the log's lock.
+     */
+    private static void unmap(MappedByteBuffer mapped) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner;
+            try {
+                invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            } catch (NoSuchMethodException ex) {
+                // Java 8: DirectBuffer.cleaner().clean()
+                Method cleaner = mapped.getClass().getMethod("cleaner");
+                cleaner.setAccessible(true);
+                Object clean = cleaner.invoke(mapped);
+                if (clean != null) {
+                    clean.getClass().getMethod("clean").invoke(clean);
+                }
+                return;
+            }
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), mapped);
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            logger.debug("Cannot unmap record log buffer, left to the garbage collector - {}", ex.toString());
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (channel == null) {
+            throw new IOException("Record log has been closed: " + file);
+        }
+    }
+
+    private static int checksum(byte[] bytes, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, offset, length);
+        return (int) crc.getValue();
+    }
+
+    private static Set<StandardOpenOption> createOptions() {
+        return EnumSet.of(StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    private static FileAttribute<?>[] ownerOnly() {
+        if (!FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            return new FileAttribute<?>[0];
+        }
+        Set<PosixFilePermission> permissions = PosixFilePermissions.fromString("rw-------");
+        return new FileAttribute<?>[]{PosixFilePermissions.asFileAttribute(permissions)};
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ *
+ * Copyright (c) 2016 SERENA Software, Inc. All Rights Reserved.
+ *
+ * This software is proprietary information of SERENA Software, Inc.
+ * Use is subject to license terms.
+ *
+ * @author Kevin Lee
+ */
+package com.microfocus.sync.servicenow.client;
+
+import com.microfocus.sync.servicenow.domain.ServiceNowObject;
+import com.microfocus.sync.servicenow.exception.ServiceNowClientException;
+import org.apache.commons.lang3.StringUtils;
+import org.json.simple.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Parallel scan of a large ServiceNow table.
+ * The encoded query is split into disjoint partitions (sys_id ranges or sys_created_on time slices),
+ * each partition is paged through with keyset paging on its own worker, at most "parallelism"
+ * partitions are fetched at the same time, and the records are merged back on the calling thread.
+ * Each partition buffers at most a bounded number of records, so slow consumers throttle the workers.
+ * @author klee@serena.com
+ */
+public class PartitionedTableScan<T extends ServiceNowObject> {
+    private static final Logger logger = LoggerFactory.getLogger(PartitionedTableScan.class);
+
+    private static final Object END_OF_PARTITION = new Object();
+
+    private final ServiceNowClient client;
+    private final String table;
+    private final String query;
+    private final String state;
+    private final List<String> partitions;
+    private final int pageSize;
+    private final Function<JSONObject, T> mapper;
+
+    PartitionedTableScan(ServiceNowClient client, String table, String query, String state, List<String> partitions,
+                         int pageSize, Function<JSONObject, T> mapper) {
+        if (partitions.isEmpty()) {
+            throw new IllegalArgumentException("At least one partition is required");
+        }
+        this.client = client;
+        this.table = table;
+        this.query = query == null ? "" : query;
+        this.state = state;
+        this.partitions = partitions;
+        this.pageSize = pageSize;
+        this.mapper = mapper;
+    }
+
+    /**
+     * Split the sys_id space into contiguous, disjoint ranges.
+     *
+     * @param count  the number of partitions
+     * @return encoded query conditions, one per partition, in ascending sys_id order
+     */
+    public static List<String> sysIdPartitions(int count) {
+        List<String> bounds = new ArrayList<>();
+        long space = 1L << 32;
+        for (int i = 1; i < count; i++) {
+            bounds.add(String.format("%08x", space * i / count) + StringUtils.repeat('0', 24));
+        }
+        return rangePartitions("sys_id", bounds);
+    }
+
+    /**
+     * Split a sys_created_on range into equal time slices. The first and the last slice are
+     * open-ended, so records created outside [from, to) are still covered exactly once.
+     *
+     * @param from  the start of the range
+     * @param to  the end of the range
+     * @param count  the number of partitions
+     * @return encoded query conditions, one per partition, in ascending creation order
+     */
+    public static List<String> createdOnPartitions(Date from, Date to, int count) {
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
+        SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm:ss");
+        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        timeFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+        List<String> bounds = new ArrayList<>();
+        long span = to.getTime() - from.getTime();
+        for (int i = 1; i < count; i++) {
+            Date bound = new Date(from.getTime() + span * i / count);
+            bounds.add(String.format("javascript:gs.dateGenerate('%s','%s')", dateFormat.format(bound), timeFormat.format(bound)));
+        }
+        return rangePartitions("sys_created_on", bounds);
+    }
+
+    private static List<String> rangePartitions(String field, List<String> bounds) {
+        List<String> partitions = new ArrayList<>();
+        String lower = null;
+        for (String upper : bounds) {
+            partitions.add(lower == null ? field + "<" + upper : field + ">=" + lower + "^" + field + "<" + upper);
+            lower = upper;
+        }
+        partitions.add(lower == null ? "" : field + ">=" + lower);
+        return partitions;
+    }
+
+    /**
+     * Run the scan.
+     *
+     * @param consumer  receives every record, always on the calling thread
+     * @param parallelism  the maximum number of partitions fetched concurrently
+     * @param ordered  if true records are delivered partition by partition, in partition order;
+     *                 otherwise in whatever order they arrive
+     * @return the number of records scanned
+     * @throws ServiceNowClientException
+     */
+    public long scan(Consumer<? super T> consumer, int parallelism, boolean ordered) throws ServiceNowClientException {
+        int capacity = Math.max(pageSize * 2, 16);
+        List<BlockingQueue<Object>> queues = new ArrayList<>();
+        BlockingQueue<Object> shared = ordered ? null : new ArrayBlockingQueue<Object>(capacity * Math.min(parallelism, partitions.size()));
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, partitions.size()), new DaemonThreadFactory("snow-scan-" + table));
+        try {
+            for (String partition : partitions) {
+                BlockingQueue<Object> queue = ordered ? new ArrayBlockingQueue<Object>(capacity) : shared;
+                queues.add(queue);
+                executor.execute(new PartitionWorker(partition, queue));
+            }
+
+            long count = 0;
+            if (ordered) {
+                for (BlockingQueue<Object> queue : queues) {
+                    count += drain(queue, 1, consumer);
+                }
+            } else {
+                count = drain(shared, partitions.size(), consumer);
+            }
+            logger.debug("Scanned {} records of {} in {} partitions", count, table, partitions.size());
+            return count;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new ServiceNowClientException("Interrupted while scanning " + table, ex);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private long drain(BlockingQueue<Object> queue, int producers, Consumer<? super T> consumer) throws InterruptedException, ServiceNowClientException {
+        long count = 0;
+        int finished = 0;
+        while (finished < producers) {
+            Object element = queue.take();
+            if (element == END_OF_PARTITION) {
+                finished++;
+            } else if (element instanceof PartitionFailure) {
+                throw ((PartitionFailure) element).cause;
+            } else {
+                consumer.accept((T) element);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static class PartitionFailure {
+        final ServiceNowClientException cause;
+
+        PartitionFailure(ServiceNowClientException cause) {
+            this.cause = cause;
+        }
+    }
+
+    private class PartitionWorker implements Runnable {
+        private final String partition;
+        private final BlockingQueue<Object> queue;
+
+        PartitionWorker(String partition, BlockingQueue<Object> queue) {
+            this.partition = partition;
+            this.queue = queue;
+        }
+
+        @Override
+        public void run() {
+            String partitionQuery = query;
+            if (StringUtils.isNotEmpty(partition)) {
+                partitionQuery = TablePager.andCondition(query, partition);
+            }
+            TablePager<T> pager = new TablePager<>(client, table, partitionQuery, state, pageSize, TablePager.Mode.KEYSET, mapper, null);
+            try {
+                while (pager.hasNext()) {
+                    queue.put(pager.next());
+                }
+                queue.put(END_OF_PARTITION);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException ex) {
+                logger.error("Error scanning partition \"{}\" of {} - {}", partition, table, ex.getMessage());
+                ServiceNowClientException cause = ex.getCause() instanceof ServiceNowClientException
+                        ? (ServiceNowClientException) ex.getCause()
+                        : new ServiceNowClientException("Error scanning partition " + partition, ex);
+                try {
+                    queue.put(new PartitionFailure(cause));
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+            } finally {
+                pager.close();
+            }
+        }
+    }
+}
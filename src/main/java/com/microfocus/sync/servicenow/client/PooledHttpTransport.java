@@ -0,0 +1,164 @@
+/*
+ *
+ * Copyright (c) 2016 SERENA Software, Inc. All Rights Reserved.
+ *
+ * This software is proprietary information of SERENA Software, Inc.
+ * Use is subject to license terms.
+ *
+ * @author Kevin Lee
+ */
+package com.microfocus.sync.servicenow.client;
+
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.params.ClientPNames;
+import org.apache.http.client.params.CookiePolicy;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.impl.conn.SchemeRegistryFactory;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.pool.PoolStats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Long-lived, thread-safe HTTP transport backed by a pooled keep-alive connection manager.
+ * Shared by the ServiceNow client and the RLC callback path so that connections (and their
+ * TLS sessions) are reused across requests instead of being re-established per call.
+ * Cookies are ignored, so a session cookie of one client's credentials is never sent with another
+ * client's requests, and connect and socket timeouts keep a stalled node from holding a pooled
+ * connection forever.
+ * @author klee@serena.com
+ */
+public class PooledHttpTransport {
+    private static final Logger logger = LoggerFactory.getLogger(PooledHttpTransport.class);
+
+    public static int DEFAULT_MAX_TOTAL = 50;
+    public static int DEFAULT_MAX_PER_ROUTE = 20;
+    public static long DEFAULT_IDLE_TIMEOUT = 30000L;
+    public static long DEFAULT_EVICTION_INTERVAL = 5000L;
+    public static int DEFAULT_CONNECT_TIMEOUT = 10000;
+    public static int DEFAULT_SOCKET_TIMEOUT = 120000;
+
+    private static PooledHttpTransport sharedInstance;
+
+    private final PoolingClientConnectionManager connectionManager;
+    private final DefaultHttpClient httpClient;
+    private final ScheduledExecutorService evictor;
+    private final long idleTimeout;
+
+    //================================================================================
+    // Public Methods
+    //================================================================================
+
+    public PooledHttpTransport() {
+        this(DEFAULT_MAX_TOTAL, DEFAULT_MAX_PER_ROUTE, DEFAULT_IDLE_TIMEOUT, DEFAULT_EVICTION_INTERVAL);
+    }
+
+    /**
+     * Create a new pooled transport.
+     *
+     * @param maxTotal  the maximum number of connections across all routes
+     * @param maxPerRoute  the maximum number of connections to a single host
+     * @param idleTimeout  milliseconds a connection may stay idle before it is evicted
+     * @param evictionInterval  milliseconds between idle/expired connection sweeps
+     */
+    public PooledHttpTransport(int maxTotal, int maxPerRoute, long idleTimeout, long evictionInterval) {
+        this.idleTimeout = idleTimeout;
+        this.connectionManager = new PoolingClientConnectionManager(SchemeRegistryFactory.createDefault());
+        this.connectionManager.setMaxTotal(maxTotal);
+        this.connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+        this.httpClient = new DefaultHttpClient(connectionManager);
+        HttpParams params = httpClient.getParams();
+        params.setParameter(ClientPNames.COOKIE_POLICY, CookiePolicy.IGNORE_COOKIES);
+        HttpConnectionParams.setConnectionTimeout(params, DEFAULT_CONNECT_TIMEOUT);
+        HttpConnectionParams.setSoTimeout(params, DEFAULT_SOCKET_TIMEOUT);
+
+        this.evictor = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("snow-http-evictor"));
+        this.evictor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                evictIdleConnections();
+            }
+        }, evictionInterval, evictionInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Get the process-wide transport, creating it with default limits on first use.
+     *
+     * @return the shared transport
+     */
+    public static synchronized PooledHttpTransport getSharedInstance() {
+        if (sharedInstance == null) {
+            sharedInstance = new PooledHttpTransport();
+        }
+        return sharedInstance;
+    }
+
+    public HttpClient getHttpClient() {
+        return httpClient;
+    }
+
+    public int getMaxTotal() {
+        return connectionManager.getMaxTotal();
+    }
+
+    public void setMaxTotal(int maxTotal) {
+        connectionManager.setMaxTotal(maxTotal);
+    }
+
+    public int getMaxPerRoute() {
+        return connectionManager.getDefaultMaxPerRoute();
+    }
+
+    public void setMaxPerRoute(int maxPerRoute) {
+        connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+    }
+
+    /**
+     * @param connectTimeout  milliseconds to wait for a connection to be established
+     * @param socketTimeout  milliseconds to wait for data on an open connection
+     */
+    public void setTimeouts(int connectTimeout, int socketTimeout) {
+        HttpConnectionParams.setConnectionTimeout(httpClient.getParams(), connectTimeout);
+        HttpConnectionParams.setSoTimeout(httpClient.getParams(), socketTimeout);
+    }
+
+    /**
+     * Get a snapshot of the connection pool usage.
+     *
+     * @return leased, pending, available and max connection counts across all routes
+     */
+    public PoolStats getPoolStats() {
+        return connectionManager.getTotalStats();
+    }
+
+    /**
+     * Close expired connections and connections idle for longer than the idle timeout.
+     */
+    public void evictIdleConnections() {
+        try {
+            connectionManager.closeExpiredConnections();
+            connectionManager.closeIdleConnections(idleTimeout, TimeUnit.MILLISECONDS);
+        } catch (RuntimeException ex) {
+            logger.warn("Error evicting idle connections - {}", ex.getMessage());
+        }
+    }
+
+    /**
+     * Stop the eviction thread and close all pooled connections.
+     */
+    public void shutdown() {
+        evictor.shutdownNow();
+        connectionManager.shutdown();
+    }
+
+    @Override
+    public String toString() {
+        return "PooledHttpTransport{" + getPoolStats() + '}';
+    }
+}
@@ -0,0 +1,403 @@
+/*
+ *
+ * Copyright (c) 2016 SERENA Software, Inc. All Rights Reserved.
+ *
+ * This software is proprietary information of SERENA Software, Inc.
+ * Use is subject to license terms.
+ *
+ * @author Kevin Lee
+ */
+package com.microfocus.sync.servicenow.client;
+
+import com.microfocus.sync.servicenow.exception.ServiceNowClientException;
+import org.apache.http.HttpResponse;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.impl.auth.BasicScheme;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Delivers RLC callbacks (PUT {callbackUrl}{executionId}/{status}) in the background, so approval
+ * completion never waits for a slow or unavailable RLC server.
+ * Callbacks are sent over the pooled transport by a bounded number of threads. Connection errors,
+ * 408, 429 and 5xx responses are retried with exponential backoff and jitter until the callback
+ * is delivered or older than the maximum age; other 4xx responses are not retried.
+ * With an outbox file every callback is recorded before dispatch returns and removed once it has been
+ * delivered or given up, and callbacks left in the outbox are sent again on start, so delivery is
+ * at least once across restarts. The outbox holds the callback credentials, its file is only
+ * accessible by its owner.
+ * @author klee@serena.com
+ */
+public class RlcCallbackDispatcher implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(RlcCallbackDispatcher.class);
+
+    public static int DEFAULT_PARALLELISM = 4;
+    public static long DEFAULT_INITIAL_BACKOFF = 1000L;
+    public static long DEFAULT_MAX_BACKOFF = 300000L;
+    public static long DEFAULT_MAX_AGE = TimeUnit.DAYS.toMillis(1);
+    public static int DEFAULT_COMPACTION_THRESHOLD = 1024;
+
+    private static final int OUTBOX_VERSION = 1;
+    private static final byte ENQUEUED = 1;
+    private static final byte DONE = 2;
+
+    private final PooledHttpTransport transport;
+    private final ScheduledThreadPoolExecutor executor;
+    private final MappedRecordLog outbox;
+    private final Map<Long, Callback> pending = new LinkedHashMap<>();
+    private long nextCallbackId = 1;
+    private int doneRecords;
+
+    private long initialBackoff = DEFAULT_INITIAL_BACKOFF;
+    private long maxBackoff = DEFAULT_MAX_BACKOFF;
+    private long maxAge = DEFAULT_MAX_AGE;
+
+    private final LongAdder deliveredCount = new LongAdder();
+    private final LongAdder retryCount = new LongAdder();
+    private final LongAdder failedCount = new LongAdder();
+    private final LongAdder totalLatency = new LongAdder();
+    private final LongAccumulator maxLatency = new LongAccumulator(Math::max, 0L);
+
+    /**
+     * Create a dispatcher keeping undelivered callbacks in memory only.
+     *
+     * @param transport  the pooled transport to send the callbacks with
+     */
+    public RlcCallbackDispatcher(PooledHttpTransport transport) {
+        this.transport = transport;
+        this.executor = createExecutor(DEFAULT_PARALLELISM);
+        this.outbox = null;
+    }
+
+    /**
+     * Create a dispatcher with a persistent outbox, and resend the callbacks left in it.
+     *
+     * @param transport  the pooled transport to send the callbacks with
+     * @param outboxFile  the outbox file, created if it does not exist
+     * @param parallelism  the maximum number of callbacks sent at the same time
+     * @throws IOException if the outbox cannot be opened
+     */
+    public RlcCallbackDispatcher(PooledHttpTransport transport, Path outboxFile, int parallelism) throws IOException {
+        this.transport = transport;
+        this.executor = createExecutor(parallelism);
+        this.outbox = new MappedRecordLog(outboxFile, OUTBOX_VERSION);
+        for (byte[] record : outbox.readAll()) {
+            replay(record);
+        }
+        if (!pending.isEmpty()) {
+            logger.info("Resending {} RLC callbacks from {}", pending.size(), outboxFile);
+        }
+        for (Callback callback : new ArrayList<>(pending.values())) {
+            schedule(callback, 0);
+        }
+    }
+
+    /**
+     * Queue a callback. The callback is in the outbox, if there is one, when this method returns.
+     *
+     * @param uri  the callback URL
+     * @param username  the RLC user
+     * @param password  the RLC password
+     * @return a future completed with the HTTP status once the callback has been delivered, or
+     * completed exceptionally if it has been given up
+     */
+    public CompletableFuture<Integer> dispatch(String uri, String username, String password) {
+        Callback callback;
+        synchronized (pending) {
+            callback = new Callback(nextCallbackId++, System.currentTimeMillis(), uri, username, password);
+            pending.put(callback.id, callback);
+            if (outbox != null) {
+                try {
+                    outbox.append(callback.encode());
+                } catch (IOException ex) {
+                    logger.error("Error writing RLC callback to outbox, delivering from memory - {}", ex.getMessage());
+                }
+            }
+        }
+        schedule(callback, 0);
+        return callback.result;
+    }
+
+    /**
+     * Send a callback once, on the calling thread.
+     *
+     * @param transport  the pooled transport to send the callback with
+     * @param uri  the callback URL
+     * @param username  the RLC user
+     * @param password  the RLC password
+     * @return the HTTP status of the response
+     * @throws IOException if RLC could not be reached
+     */
+    static int send(PooledHttpTransport transport, String uri, String username, String password) throws IOException {
+        logger.debug("Start executing RLC PUT request to url=\"{}\"", uri);
+        HttpPut put = new HttpPut(uri);
+        HttpResponse response = null;
+        try {
+            UsernamePasswordCredentials credentials = new UsernamePasswordCredentials(username, password);
+            put.addHeader(BasicScheme.authenticate(credentials, "US-ASCII", false));
+            response = transport.getHttpClient().execute(put);
+            return response.getStatusLine().getStatusCode();
+        } catch (IOException ex) {
+            put.abort();
+            throw ex;
+        } finally {
+            if (response != null) {
+                try {
+                    EntityUtils.consume(response.getEntity());
+                } catch (IOException ex) {
+                    logger.debug("Error releasing RLC connection - {}", ex.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of callbacks not yet delivered or given up
+     */
+    public int getBacklog() {
+        synchronized (pending) {
+            return pending.size();
+        }
+    }
+
+    /**
+     * @return milliseconds the oldest undelivered callback has been waiting, 0 if there is none
+     */
+    public long getOldestPendingAge() {
+        synchronized (pending) {
+            return pending.isEmpty() ? 0 : System.currentTimeMillis() - pending.values().iterator().next().createdAt;
+        }
+    }
+
+    public long getDeliveredCount() {
+        return deliveredCount.sum();
+    }
+
+    public long getRetryCount() {
+        return retryCount.sum();
+    }
+
+    /**
+     * @return the number of callbacks given up, because RLC rejected them or they exceeded the maximum age
+     */
+    public long getFailedCount() {
+        return failedCount.sum();
+    }
+
+    /**
+     * @return the mean milliseconds from dispatch to delivery
+     */
+    public long getAverageLatency() {
+        long delivered = deliveredCount.sum();
+        return delivered == 0 ? 0 : totalLatency.sum() / delivered;
+    }
+
+    public long getMaxLatency() {
+        return maxLatency.get();
+    }
+
+    public void setInitialBackoff(long initialBackoff) {
+        this.initialBackoff = initialBackoff;
+    }
+
+    public void setMaxBackoff(long maxBackoff) {
+        this.maxBackoff = maxBackoff;
+    }
+
+    /**
+     * Set how long an undelivered callback is retried before it is given up.
+     *
+     * @param maxAge  the maximum age in milliseconds
+     */
+    public void setMaxAge(long maxAge) {
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * Stop delivering. Callbacks still pending stay in the outbox and are resent by the next dispatcher.
+     */
+    @Override
+    public void close() throws IOException {
+        executor.shutdownNow();
+        synchronized (pending) {
+            if (!pending.isEmpty()) {
+                logger.warn("RlcCallbackDispatcher closed with {} callbacks undelivered", pending.size());
+            }
+            if (outbox != null) {
+                outbox.close();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "RlcCallbackDispatcher{" + "backlog=" + getBacklog() +
+                ", delivered=" + getDeliveredCount() +
+                ", retries=" + getRetryCount() +
+                ", failed=" + getFailedCount() +
+                ", avgLatency=" + getAverageLatency() +
+                ", maxLatency=" + getMaxLatency() +
+        '}';
+    }
+
+    private static ScheduledThreadPoolExecutor createExecutor(int parallelism) {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(parallelism, new DaemonThreadFactory("rlc-callback"));
+        executor.setRemoveOnCancelPolicy(true);
+        return executor;
+    }
+
+    private void schedule(final Callback callback, long delay) {
+        try {
+            executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    attempt(callback);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ex) {
+            logger.warn("RlcCallbackDispatcher closed, callback to {} left undelivered", callback.uri);
+        }
+    }
+
+    private void attempt(Callback callback) {
+        int status;
+        try {
+            status = send(transport, callback.uri, callback.username, callback.password);
+        } catch (IOException ex) {
+            retry(callback, ex.getMessage());
+            return;
+        } catch (RuntimeException ex) {
+            // not expected, but a scheduled task failing silently would lose the callback
+            logger.error("Unexpected error sending RLC callback to " + callback.uri, ex);
+            retry(callback, ex.toString());
+            return;
+        }
+
+        if (status >= 200 && status < 300) {
+            long latency = System.currentTimeMillis() - callback.createdAt;
+            deliveredCount.increment();
+            totalLatency.add(latency);
+            maxLatency.accumulate(latency);
+            done(callback);
+            callback.result.complete(status);
+        } else if (status == 408 || status == 429 || status >= 500) {
+            retry(callback, "HTTP Status Code: " + status);
+        } else {
+            logger.error("RLC rejected callback to {} - HTTP Status Code: {}", callback.uri, status);
+            giveUp(callback, new ServiceNowClientException("RLC rejected callback: HTTP Status Code " + status));
+        }
+    }
+
+    private void retry(Callback callback, String reason) {
+        callback.attempts++;
+        if (System.currentTimeMillis() - callback.createdAt > maxAge) {
+            logger.error("Giving up RLC callback to {} after {} attempts - {}", callback.uri, callback.attempts, reason);
+            giveUp(callback, new ServiceNowClientException("RLC callback not delivered: " + reason));
+            return;
+        }
+        long backoff = Math.min(maxBackoff, initialBackoff << Math.min(callback.attempts - 1, 30));
+        long delay = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+        retryCount.increment();
+        logger.warn("RLC callback to {} failed ({}), retry {} in {} ms", callback.uri, reason, callback.attempts, delay);
+        schedule(callback, delay);
+    }
+
+    private void giveUp(Callback callback, ServiceNowClientException cause) {
+        failedCount.increment();
+        done(callback);
+        callback.result.completeExceptionally(cause);
+    }
+
+    private void done(Callback callback) {
+        synchronized (pending) {
+            pending.remove(callback.id);
+            if (outbox == null) {
+                return;
+            }
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(9);
+                DataOutputStream out = new DataOutputStream(bytes);
+                out.writeByte(DONE);
+                out.writeLong(callback.id);
+                outbox.append(bytes.toByteArray());
+                doneRecords++;
+                if (doneRecords >= DEFAULT_COMPACTION_THRESHOLD && doneRecords > pending.size()) {
+                    List<byte[]> records = new ArrayList<>(pending.size());
+                    for (Callback remaining : pending.values()) {
+                        records.add(remaining.encode());
+                    }
+                    outbox.rewrite(records);
+                    doneRecords = 0;
+                }
+            } catch (IOException ex) {
+                logger.error("Error updating RLC callback outbox - {}", ex.getMessage());
+            }
+        }
+    }
+
+    private void replay(byte[] record) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        byte type = in.readByte();
+        if (type == ENQUEUED) {
+            Callback callback = new Callback(in.readLong(), in.readLong(), in.readUTF(), in.readUTF(), in.readUTF());
+            pending.put(callback.id, callback);
+            nextCallbackId = Math.max(nextCallbackId, callback.id + 1);
+        } else if (type == DONE) {
+            pending.remove(in.readLong());
+            doneRecords++;
+        } else {
+            throw new IOException("Unknown RLC outbox record type " + type);
+        }
+    }
+
+    private static class Callback {
+        final long id;
+        final long createdAt;
+        final String uri;
+        final String username;
+        final String password;
+        final CompletableFuture<Integer> result = new CompletableFuture<>();
+        int attempts;
+
+        Callback(long id, long createdAt, String uri, String username, String password) {
+            this.id = id;
+            this.createdAt = createdAt;
+            this.uri = uri;
+            this.username = username == null ? "" : username;
+            this.password = password == null ? "" : password;
+        }
+
+        byte[] encode() throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(ENQUEUED);
+            out.writeLong(id);
+            out.writeLong(createdAt);
+            out.writeUTF(uri);
+            out.writeUTF(username);
+            out.writeUTF(password);
+            return bytes.toByteArray();
+        }
+    }
+}
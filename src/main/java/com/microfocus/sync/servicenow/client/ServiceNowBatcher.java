@@ -0,0 +1,246 @@
+/*
+ *
+ * Copyright (c) 2016 SERENA Software, Inc. All Rights Reserved.
+ *
+ * This software is proprietary information of SERENA Software, Inc.
+ * Use is subject to license terms.
+ *
+ * @author Kevin Lee
+ */
+package com.microfocus.sync.servicenow.client;
+
+import com.microfocus.sync.servicenow.exception.ServiceNowClientException;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects ServiceNow write requests and sends them as one round trip through the Batch API
+ * (/api/now/v1/batch). A batch is flushed when it reaches the maximum batch size or when the
+ * oldest queued request has waited for the flush window, whichever comes first. The result of
+ * each request is delivered to the future returned when it was queued.
+ * @author klee@serena.com
+ */
+public class ServiceNowBatcher implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(ServiceNowBatcher.class);
+
+    public static int DEFAULT_MAX_BATCH_SIZE = 50;
+    public static long DEFAULT_FLUSH_WINDOW = 200L;
+
+    private final ServiceNowClient client;
+    private final int maxBatchSize;
+    private final long flushWindow;
+    private final ScheduledExecutorService scheduler;
+    private final Object lock = new Object();
+    private List<BatchItem> pending = new ArrayList<>();
+    private long nextItemId;
+    private boolean closed;
+
+    public ServiceNowBatcher(ServiceNowClient client) {
+        this(client, DEFAULT_MAX_BATCH_SIZE, DEFAULT_FLUSH_WINDOW);
+    }
+
+    /**
+     * Create a new batcher.
+     *
+     * @param client  the client used to send the batches
+     * @param maxBatchSize  the maximum number of requests sent in one batch
+     * @param flushWindow  milliseconds a queued request may wait before its batch is sent
+     */
+    public ServiceNowBatcher(ServiceNowClient client, int maxBatchSize, long flushWindow) {
+        this.client = client;
+        this.maxBatchSize = maxBatchSize;
+        this.flushWindow = flushWindow;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("snow-batch"));
+    }
+
+    /**
+     * Queue a request for the next batch.
+     *
+     * @param method  the HTTP method, e.g. PUT or POST
+     * @param path  the path for the specific request, e.g. /table/change_task/{sys_id}
+     * @param parameters  parameters to send with the request
+     * @param body  the JSON body to send with the request
+     * @return a future completed with the response body of this request
+     */
+    public CompletableFuture<String> submit(String method, String path, String parameters, String body) {
+        BatchItem item = new BatchItem(method, path, parameters, body);
+        boolean full;
+        boolean first;
+        synchronized (lock) {
+            if (closed) {
+                item.result.completeExceptionally(new ServiceNowClientException("ServiceNow: batcher has been closed"));
+                return item.result;
+            }
+            item.id = Long.toString(++nextItemId);
+            first = pending.isEmpty();
+            pending.add(item);
+            full = pending.size() >= maxBatchSize;
+        }
+        if (full) {
+            scheduler.execute(flushTask);
+        } else if (first) {
+            scheduler.schedule(flushTask, flushWindow, TimeUnit.MILLISECONDS);
+        }
+        return item.result;
+    }
+
+    /**
+     * Send all queued requests now, on the calling thread.
+     */
+    public void flush() {
+        List<BatchItem> batch;
+        synchronized (lock) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            batch = pending;
+            pending = new ArrayList<>();
+        }
+        for (int from = 0; from < batch.size(); from += maxBatchSize) {
+            send(batch.subList(from, Math.min(batch.size(), from + maxBatchSize)));
+        }
+    }
+
+    public int getPendingCount() {
+        synchronized (lock) {
+            return pending.size();
+        }
+    }
+
+    /**
+     * Flush the remaining requests and stop the flush thread.
+     */
+    @Override
+    public void close() {
+        synchronized (lock) {
+            closed = true;
+        }
+        flush();
+        scheduler.shutdown();
+    }
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    @SuppressWarnings("unchecked")
+    private void send(List<BatchItem> batch) {
+        try {
+            Map<String, BatchItem> byId = new HashMap<>();
+            JSONArray restRequests = new JSONArray();
+            for (BatchItem item : batch) {
+                byId.put(item.id, item);
+                restRequests.add(item.toJSON(client.createApiPath(item.path, item.parameters)));
+            }
+            JSONObject jsonBody = new JSONObject();
+            jsonBody.put("batch_request_id", UUID.randomUUID().toString());
+            jsonBody.put("rest_requests", restRequests);
+
+            logger.debug("Sending ServiceNow batch of {} requests", batch.size());
+            String response = client.processPost("/batch", "", jsonBody.toJSONString());
+            JSONObject parsed = (JSONObject) new JSONParser().parse(response);
+
+            JSONArray serviced = (JSONArray) parsed.get("serviced_requests");
+            if (serviced != null) {
+                for (Object object : serviced) {
+                    JSONObject servicedRequest = (JSONObject) object;
+                    BatchItem item = byId.remove(String.valueOf(servicedRequest.get("id")));
+                    if (item != null) {
+                        item.complete(servicedRequest);
+                    }
+                }
+            }
+            for (BatchItem item : byId.values()) {
+                item.result.completeExceptionally(new ServiceNowClientException("ServiceNow: batch request " + item.id + " was not serviced"));
+            }
+        } catch (ServiceNowClientException ex) {
+            logger.error("Error sending ServiceNow batch - {}", ex.getMessage());
+            failAll(batch, ex);
+        } catch (ParseException | RuntimeException ex) {
+            // e.g. a malformed or undecodable response; no request of the batch may be left pending
+            logger.error("Error processing ServiceNow batch", ex);
+            failAll(batch, new ServiceNowClientException("Error processing ServiceNow batch", ex));
+        }
+    }
+
+    private static void failAll(List<BatchItem> batch, ServiceNowClientException ex) {
+        for (BatchItem item : batch) {
+            item.result.completeExceptionally(ex);
+        }
+    }
+
+    private static class BatchItem {
+        final String method;
+        final String path;
+        final String parameters;
+        final String body;
+        final CompletableFuture<String> result = new CompletableFuture<>();
+        String id;
+
+        BatchItem(String method, String path, String parameters, String body) {
+            this.method = method;
+            this.path = path;
+            this.parameters = parameters;
+            this.body = body;
+        }
+
+        @SuppressWarnings("unchecked")
+        JSONObject toJSON(String url) {
+            JSONArray headers = new JSONArray();
+            headers.add(header("Content-Type", ServiceNowClient.DEFAULT_HTTP_CONTENT_TYPE));
+            headers.add(header("Accept", ServiceNowClient.DEFAULT_HTTP_CONTENT_TYPE));
+
+            JSONObject request = new JSONObject();
+            request.put("id", id);
+            request.put("method", method);
+            request.put("url", url);
+            request.put("headers", headers);
+            if (body != null) {
+                request.put("body", Base64.getEncoder().encodeToString(body.getBytes(StandardCharsets.UTF_8)));
+            }
+            return request;
+        }
+
+        void complete(JSONObject servicedRequest) {
+            Object statusCode = servicedRequest.get("status_code");
+            Object encodedBody = servicedRequest.get("body");
+            String responseBody = encodedBody == null ? "" : new String(Base64.getDecoder().decode((String) encodedBody), StandardCharsets.UTF_8);
+
+            int status = statusCode instanceof Number ? ((Number) statusCode).intValue() : 0;
+            if (status >= 200 && status < 300) {
+                result.complete(responseBody);
+            } else {
+                result.completeExceptionally(new ServiceNowClientException(String.format("ServiceNow: batch request %s not successful: %s %s. Reason: %s",
+                        id, statusCode, servicedRequest.get("status_text"), responseBody)));
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private static JSONObject header(String name, String value) {
+            JSONObject header = new JSONObject();
+            header.put("name", name);
+            header.put("value", value);
+            return header;
+        }
+    }
+}
@@ -0,0 +1,21 @@
+/*
+ *
+ * Copyright (c) 2016 SERENA Software, Inc. All Rights Reserved.
+ *
+ * This software is proprietary information of SERENA Software, Inc.
+ * Use is subject to license terms.
+ *
+ * @author Kevin Lee
+ */
+package com.microfocus.sync.servicenow.client;
+
+import com.microfocus.sync.servicenow.exception.ServiceNowClientException;
+
+/**
+ * A call to ServiceNow that produces a value.
+ * @author klee@serena.com
+ */
+public interface ServiceNowCall<V> {
+
+    V call() throws ServiceNowClientException;
+}
@@ -12,6 +12,8 @@ package com.microfocus.sync.servicenow.client;
 import com.microfocus.sync.servicenow.domain.Incident;
 import com.microfocus.sync.servicenow.domain.ChangeRequest;
 import com.microfocus.sync.servicenow.domain.ChangeTask;
+import com.microfocus.sync.servicenow.domain.ServiceNowObject;
+import com.microfocus.sync.servicenow.domain.ServiceNowObjectReader;
 import com.microfocus.sync.servicenow.exception.ServiceNowClientException;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.http.HttpHeaders;
@@ -22,20 +24,33 @@ import org.apache.http.auth.UsernamePasswordCredentials;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.auth.BasicScheme;
-import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.util.EntityUtils;
 import org.json.simple.JSONObject;
+import org.json.simple.parser.ParseException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Component;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 /**
  * ServiceNow Client
@@ -45,13 +60,44 @@ import java.util.List;
 public class ServiceNowClient {
     private static final Logger logger = LoggerFactory.getLogger(ServiceNowClient.class);
 
+    private static final int SC_TOO_MANY_REQUESTS = 429;
+
     public static String DEFAULT_HTTP_CONTENT_TYPE = "application/json";
-    public static String SNOW_FIELDS  = "sys_id,type,impact,urgency,priority,description,number,short_description,state,approval,sys_created_by,sys_created_on,sys_updated_on,sys_updated_by";
+    public static int DEFAULT_MAX_RATE_LIMIT_RETRIES = 5;
+    public static String SNOW_FIELDS  = "sys_id,type,impact,urgency,priority,description,number,short_description,state,approval,risk,sys_created_by,sys_created_on,sys_updated_on,sys_updated_by";
 
     private String snowUrl;
     private String snowUsername;
     private String snowPassword;
     private String snowApiVersion;
+    private PooledHttpTransport transport;
+    private ExecutorService prefetchExecutor;
+    private ServiceNowBatcher batcher;
+    private final SingleFlight singleFlight = new SingleFlight();
+    private volatile ServiceNowRecordCache recordCache;
+    private ServiceNowRateLimiter rateLimiter;
+    private int maxRateLimitRetries = DEFAULT_MAX_RATE_LIMIT_RETRIES;
+    private volatile TableQueryOptions writeOptions = TableQueryOptions.DEFAULT;
+
+    /**
+     * Reads the body of a successful response.
+     */
+    protected interface ResponseReader<R> {
+        R read(InputStream content) throws IOException, ServiceNowClientException;
+    }
+
+    private static final ResponseReader<String> STRING_RESPONSE_READER = new ResponseReader<String>() {
+        @Override
+        public String read(InputStream content) throws IOException {
+            BufferedReader br = new BufferedReader(new InputStreamReader(content, "UTF-8"));
+            StringBuilder sb = new StringBuilder(1024);
+            String output;
+            while ((output = br.readLine()) != null) {
+                sb.append(output);
+            }
+            return sb.toString();
+        }
+    };
 
     //================================================================================
     // Public Methods
@@ -96,6 +142,132 @@ public class ServiceNowClient {
         this.snowPassword = password;
     }
 
+    /**
+     * Get the HTTP transport used for ServiceNow requests, defaulting to the shared pooled transport.
+     *
+     * @return the transport
+     */
+    public PooledHttpTransport getTransport() {
+        if (transport == null) {
+            transport = PooledHttpTransport.getSharedInstance();
+        }
+        return transport;
+    }
+
+    public void setTransport(PooledHttpTransport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * Get the executor used to prefetch result pages in the background. Prefetches run on virtual
+     * threads in the virtual thread mode of WaitExecutors.
+     *
+     * @return the prefetch executor
+     */
+    public synchronized ExecutorService getPrefetchExecutor() {
+        if (prefetchExecutor == null) {
+            prefetchExecutor = WaitExecutors.newWaitExecutor("snow-prefetch");
+        }
+        return prefetchExecutor;
+    }
+
+    public synchronized void setPrefetchExecutor(ExecutorService prefetchExecutor) {
+        this.prefetchExecutor = prefetchExecutor;
+    }
+
+    /**
+     * Get the batcher used by the *Batched write methods, creating one with default limits on first use.
+     *
+     * @return the batcher
+     */
+    public synchronized ServiceNowBatcher getBatcher() {
+        if (batcher == null) {
+            batcher = new ServiceNowBatcher(this);
+        }
+        return batcher;
+    }
+
+    public synchronized void setBatcher(ServiceNowBatcher batcher) {
+        this.batcher = batcher;
+    }
+
+    /**
+     * Get the rate limiter applied to every ServiceNow request. Unless one has been set, this is the
+     * limiter of the instance URL, shared by all clients talking to the same instance.
+     *
+     * @return the rate limiter
+     */
+    public synchronized ServiceNowRateLimiter getRateLimiter() {
+        if (rateLimiter != null) {
+            return rateLimiter;
+        }
+        return ServiceNowRateLimiter.forInstance(snowUrl);
+    }
+
+    public synchronized void setRateLimiter(ServiceNowRateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    public int getMaxRateLimitRetries() {
+        return maxRateLimitRetries;
+    }
+
+    /**
+     * Set how many times a request rejected with HTTP 429 is queued again before the error is returned.
+     *
+     * @param maxRateLimitRetries  the maximum number of retries
+     */
+    public void setMaxRateLimitRetries(int maxRateLimitRetries) {
+        this.maxRateLimitRetries = maxRateLimitRetries;
+    }
+
+    public TableQueryOptions getWriteOptions() {
+        return writeOptions;
+    }
+
+    /**
+     * Set what the create and update methods ask ServiceNow to return, e.g. TableQueryOptions.SYS_ID_ONLY
+     * when the caller only needs the identifier of the written record. Records returned with anything
+     * less than the full field set are not cached.
+     *
+     * @param writeOptions  the options sent with every write
+     */
+    public void setWriteOptions(TableQueryOptions writeOptions) {
+        this.writeOptions = writeOptions;
+    }
+
+    public ServiceNowRecordCache getRecordCache() {
+        return recordCache;
+    }
+
+    /**
+     * Enable the read-through record cache for lookups by sys_id and number.
+     *
+     * @param recordCache  the cache to use, or null to disable caching
+     */
+    public void setRecordCache(ServiceNowRecordCache recordCache) {
+        this.recordCache = recordCache;
+    }
+
+    /**
+     * Get the number of lookups that shared the result of an identical lookup already in flight
+     * instead of making their own request.
+     *
+     * @return the number of coalesced lookups
+     */
+    public long getCoalescedRequestCount() {
+        return singleFlight.getCoalescedCount();
+    }
+
+    /**
+     * Get the connection pool statistics of the underlying transport.
+     *
+     * @return leased, pending, available and max connection counts
+     */
+    public PoolStats getPoolStats() {
+        return getTransport().getPoolStats();
+    }
+
     /**
      * Create a new connection to ServiceNow.
      *
@@ -124,12 +296,48 @@ public class ServiceNowClient {
         logger.debug("Limiting to state: " + state);
         logger.debug("Limiting results to: " + resultLimit.toString());
 
-        String queryResponse = snowGetByTable("change_request", query, state, resultLimit);
-        List<ChangeRequest> changeRequests = ChangeRequest.parse(queryResponse);
+        List<ChangeRequest> changeRequests = new ArrayList<>();
+        snowGetByTable("change_request", query, state, resultLimit, TableQueryOptions.DEFAULT, ChangeRequest::parseSingle, changeRequests::add);
 
         return changeRequests;
     }
 
+    /**
+     * Get a list of Change Requests using a query, returning only the fields and value format in options.
+     *
+     * @param query  the id of the query to run
+     * @param state  the state to limit the results to
+     * @param resultLimit  the maximum number of Change Requests to return
+     * @param options  the fields and value format to return
+     * @return  a list of Change Requests
+     * @throws ServiceNowClientException
+     */
+    public List<ChangeRequest> getChangeRequests(String query, String state, Integer resultLimit, TableQueryOptions options) throws ServiceNowClientException {
+        logger.debug("Retrieving ServiceNow Change Requests using query \"{}\" with {}", query, options);
+
+        List<ChangeRequest> changeRequests = new ArrayList<>();
+        snowGetByTable("change_request", query, state, resultLimit, options, ChangeRequest::parseSingle, changeRequests::add);
+
+        return changeRequests;
+    }
+
+    /**
+     * Stream Change Requests matching a query to a consumer, one record at a time,
+     * without holding the response body or the full result list in memory.
+     *
+     * @param query  the id of the query to run
+     * @param state  the state to limit the results to
+     * @param resultLimit  the maximum number of Change Requests to return
+     * @param consumer  the consumer receiving each Change Request
+     * @return the number of Change Requests read
+     * @throws ServiceNowClientException
+     */
+    public int forEachChangeRequest(String query, String state, Integer resultLimit, Consumer<? super ChangeRequest> consumer) throws ServiceNowClientException {
+        logger.debug("Streaming ServiceNow Change Requests using query \"{}\"", query);
+
+        return snowGetByTable("change_request", query, state, resultLimit, TableQueryOptions.DEFAULT, ChangeRequest::parseSingle, consumer);
+    }
+
     /**
      * Get a list of Change Tasks using a query.
      *
@@ -144,15 +352,56 @@ public class ServiceNowClient {
         logger.debug("Limiting to state: " + state);
         logger.debug("Limiting results to: " + resultLimit.toString());
 
+        List<ChangeTask> changeTasks = new ArrayList<>();
+        forEachChangeTask(query, crNumber, state, resultLimit, TableQueryOptions.DEFAULT, changeTasks::add);
+
+        return changeTasks;
+    }
+
+    /**
+     * Get a list of Change Tasks using a query, returning only the fields and value format in options.
+     *
+     * @param query  the id of the query to run
+     * @param crNumber  the number of the parent Change Request, if any
+     * @param state  the state to limit the results to
+     * @param resultLimit  the maximum number of Change Tasks to return
+     * @param options  the fields and value format to return
+     * @return  a list of Change Tasks
+     * @throws ServiceNowClientException
+     */
+    public List<ChangeTask> getChangeTasks(String query, String crNumber, String state, Integer resultLimit, TableQueryOptions options) throws ServiceNowClientException {
+        logger.debug("Retrieving ServiceNow Change Tasks using query \"{}\" with {}", query, options);
+
+        List<ChangeTask> changeTasks = new ArrayList<>();
+        forEachChangeTask(query, crNumber, state, resultLimit, options, changeTasks::add);
+
+        return changeTasks;
+    }
+
+    /**
+     * Stream Change Tasks matching a query to a consumer, one record at a time,
+     * without holding the response body or the full result list in memory.
+     *
+     * @param query  the id of the query to run
+     * @param crNumber  the number of the parent Change Request, if any
+     * @param state  the state to limit the results to
+     * @param resultLimit  the maximum number of Change Tasks to return
+     * @param consumer  the consumer receiving each Change Task
+     * @return the number of Change Tasks read
+     * @throws ServiceNowClientException
+     */
+    public int forEachChangeTask(String query, String crNumber, String state, Integer resultLimit, Consumer<? super ChangeTask> consumer) throws ServiceNowClientException {
+        return forEachChangeTask(query, crNumber, state, resultLimit, TableQueryOptions.DEFAULT, consumer);
+    }
+
+    private int forEachChangeTask(String query, String crNumber, String state, Integer resultLimit, TableQueryOptions options,
+                                  Consumer<? super ChangeTask> consumer) throws ServiceNowClientException {
         String myQuery = query;
         if (crNumber != null && StringUtils.isNotEmpty(crNumber)) {
             myQuery += "^change_request.number="+crNumber;
         }
 
-        String queryResponse = snowGetByTable("change_task", myQuery, state, resultLimit);
-        List<ChangeTask> changeTasks = ChangeTask.parse(queryResponse);
-
-        return changeTasks;
+        return snowGetByTable("change_task", myQuery, state, resultLimit, options, ChangeTask::parseSingle, consumer);
     }
 
     /**
@@ -168,12 +417,134 @@ public class ServiceNowClient {
         logger.debug("Limiting to state: " + state);
         logger.debug("Limiting results to: " + resultLimit.toString());
 
-        String queryResponse = snowGetByTable("incident", query, state, resultLimit);
-        List<Incident> incidents = Incident.parse(queryResponse);
+        List<Incident> incidents = new ArrayList<>();
+        snowGetByTable("incident", query, state, resultLimit, TableQueryOptions.DEFAULT, Incident::parseSingle, incidents::add);
 
         return incidents;
     }
 
+    /**
+     * Get a list of Incidents using a query, returning only the fields and value format in options.
+     *
+     * @param query  the id of the query to run
+     * @param state  the state to limit the results to
+     * @param resultLimit  the maximum number of Incidents to return
+     * @param options  the fields and value format to return
+     * @return  a list of Incidents
+     * @throws ServiceNowClientException
+     */
+    public List<Incident> getIncidents(String query, String state, Integer resultLimit, TableQueryOptions options) throws ServiceNowClientException {
+        logger.debug("Retrieving ServiceNow Incidents using query \"{}\" with {}", query, options);
+
+        List<Incident> incidents = new ArrayList<>();
+        snowGetByTable("incident", query, state, resultLimit, options, Incident::parseSingle, incidents::add);
+
+        return incidents;
+    }
+
+    /**
+     * Stream Incidents matching a query to a consumer, one record at a time,
+     * without holding the response body or the full result list in memory.
+     *
+     * @param query  the id of the query to run
+     * @param state  the state to limit the results to
+     * @param resultLimit  the maximum number of Incidents to return
+     * @param consumer  the consumer receiving each Incident
+     * @return the number of Incidents read
+     * @throws ServiceNowClientException
+     */
+    public int forEachIncident(String query, String state, Integer resultLimit, Consumer<? super Incident> consumer) throws ServiceNowClientException {
+        logger.debug("Streaming ServiceNow Incidents using query \"{}\"", query);
+
+        return snowGetByTable("incident", query, state, resultLimit, TableQueryOptions.DEFAULT, Incident::parseSingle, consumer);
+    }
+
+    /**
+     * Lazily iterate over all Change Requests matching a query, page by page,
+     * prefetching the next page while the current one is consumed.
+     *
+     * @param query  the encoded query to run
+     * @param state  the state to limit the results to
+     * @param pageSize  the number of Change Requests to fetch per request
+     * @param mode  how to page through the result set
+     * @return an iterator over the Change Requests
+     */
+    public TablePager<ChangeRequest> iterateChangeRequests(String query, String state, int pageSize, TablePager.Mode mode) {
+        return new TablePager<>(this, "change_request", query, state, pageSize, mode, ChangeRequest::parseSingle, getPrefetchExecutor());
+    }
+
+    /**
+     * Lazily iterate over all Change Tasks matching a query, page by page,
+     * prefetching the next page while the current one is consumed.
+     *
+     * @param query  the encoded query to run
+     * @param crNumber  the number of the parent Change Request, if any
+     * @param state  the state to limit the results to
+     * @param pageSize  the number of Change Tasks to fetch per request
+     * @param mode  how to page through the result set
+     * @return an iterator over the Change Tasks
+     */
+    public TablePager<ChangeTask> iterateChangeTasks(String query, String crNumber, String state, int pageSize, TablePager.Mode mode) {
+        String myQuery = query;
+        if (crNumber != null && StringUtils.isNotEmpty(crNumber)) {
+            myQuery += "^change_request.number="+crNumber;
+        }
+        return new TablePager<>(this, "change_task", myQuery, state, pageSize, mode, ChangeTask::parseSingle, getPrefetchExecutor());
+    }
+
+    /**
+     * Lazily iterate over all Incidents matching a query, page by page,
+     * prefetching the next page while the current one is consumed.
+     *
+     * @param query  the encoded query to run
+     * @param state  the state to limit the results to
+     * @param pageSize  the number of Incidents to fetch per request
+     * @param mode  how to page through the result set
+     * @return an iterator over the Incidents
+     */
+    public TablePager<Incident> iterateIncidents(String query, String state, int pageSize, TablePager.Mode mode) {
+        return new TablePager<>(this, "incident", query, state, pageSize, mode, Incident::parseSingle, getPrefetchExecutor());
+    }
+
+    /**
+     * Prepare a parallel scan over all Change Requests matching a query.
+     *
+     * @param query  the encoded query to run
+     * @param state  the state to limit the results to
+     * @param partitions  disjoint encoded query conditions, e.g. from {@link PartitionedTableScan#sysIdPartitions(int)}
+     * @param pageSize  the number of Change Requests to fetch per request
+     * @return the scan, started with {@link PartitionedTableScan#scan}
+     */
+    public PartitionedTableScan<ChangeRequest> scanChangeRequests(String query, String state, List<String> partitions, int pageSize) {
+        return new PartitionedTableScan<>(this, "change_request", query, state, partitions, pageSize, ChangeRequest::parseSingle);
+    }
+
+    /**
+     * Prepare a parallel scan over all Change Tasks matching a query.
+     *
+     * @param query  the encoded query to run
+     * @param state  the state to limit the results to
+     * @param partitions  disjoint encoded query conditions, e.g. from {@link PartitionedTableScan#sysIdPartitions(int)}
+     * @param pageSize  the number of Change Tasks to fetch per request
+     * @return the scan, started with {@link PartitionedTableScan#scan}
+     */
+    public PartitionedTableScan<ChangeTask> scanChangeTasks(String query, String state, List<String> partitions, int pageSize) {
+        return new PartitionedTableScan<>(this, "change_task", query, state, partitions, pageSize, ChangeTask::parseSingle);
+    }
+
+    /**
+     * Prepare a parallel scan over all Incidents matching a query.
+     *
+     * @param query  the encoded query to run
+     * @param state  the state to limit the results to
+     * @param partitions  disjoint encoded query conditions, e.g. from {@link PartitionedTableScan#sysIdPartitions(int)}
+     * @param pageSize  the number of Incidents to fetch per request
+     * @return the scan, started with {@link PartitionedTableScan#scan}
+     */
+    public PartitionedTableScan<Incident> scanIncidents(String query, String state, List<String> partitions, int pageSize) {
+        return new PartitionedTableScan<>(this, "incident", query, state, partitions, pageSize, Incident::parseSingle);
+    }
+
     /**
      * Get the details of a specific Change Request.
      *
@@ -184,10 +555,7 @@ public class ServiceNowClient {
     public ChangeRequest getChangeRequestById(String crId) throws ServiceNowClientException {
         logger.debug("Retrieving ServiceNow Change Request by Id \"{}\"", crId);
 
-        String queryResponse = snowGetById("change_request", crId);
-        ChangeRequest cr = ChangeRequest.parseSingle(queryResponse);
-
-        return cr;
+        return lookupById("change_request", crId, ChangeRequest.class, ChangeRequest::parseSingle);
     }
 
     /**
@@ -200,10 +568,7 @@ public class ServiceNowClient {
     public ChangeTask getChangeTaskById(String ctId) throws ServiceNowClientException {
         logger.debug("Retrieving ServiceNow Change Task by Id \"{}\"", ctId);
 
-        String queryResponse = snowGetById("change_task", ctId);
-        ChangeTask ct = ChangeTask.parseSingle(queryResponse);
-
-        return ct;
+        return lookupById("change_task", ctId, ChangeTask.class, ChangeTask::parseSingle);
     }
 
 
@@ -217,7 +582,7 @@ public class ServiceNowClient {
     public ChangeTask getChangeTaskByNumber(String ctNumber) throws ServiceNowClientException {
         logger.debug("Retrieving ServiceNow Change Task by Number \"{}\"", ctNumber);
 
-        String queryResponse = snowGetByNumber("change_task", ctNumber);
+        String queryResponse = snowGetByNumber("change_task", ctNumber, TableQueryOptions.DEFAULT);
         ChangeTask ct = ChangeTask.parse(queryResponse).get(0);
 
         return ct;
@@ -233,10 +598,7 @@ public class ServiceNowClient {
     public ChangeRequest getChangeRequestByNumber(String crNumber) throws ServiceNowClientException {
         logger.debug("Retrieving ServiceNow Change Request by Number \"{}\"", crNumber);
 
-        String queryResponse = snowGetByNumber("change_request", crNumber);
-        ChangeRequest cr = ChangeRequest.parse(queryResponse).get(0);
-
-        return cr;
+        return lookupByNumber("change_request", crNumber, ChangeRequest.class, ChangeRequest::parseSingle, ChangeRequest::parse);
     }
 
     /**
@@ -249,12 +611,40 @@ public class ServiceNowClient {
     public String getChangeRequestApproval(String crNumber) throws ServiceNowClientException {
         logger.debug("Retrieving Approval Status of ServiceNow Change Request \"{}\"", crNumber);
 
-        String queryResponse = snowGetByNumber("change_request", crNumber);
-        ChangeRequest cr = ChangeRequest.parse(queryResponse).get(0);
+        ChangeRequest cr = lookupFieldsByNumber("change_request", crNumber, ChangeRequest.class, ChangeRequest::parse, "approval");
 
         return cr.getApproval();
     }
 
+    /**
+     * Get the approval status of many Change Requests or Change Tasks with one sys_idIN query,
+     * returning only sys_id and approval.
+     *
+     * @param table  change_request or change_task
+     * @param sysIds  the sys_ids of the records
+     * @return the approval status by sys_id, records that were not found are left out
+     * @throws ServiceNowClientException
+     */
+    public Map<String, String> getApprovalStatuses(String table, Collection<String> sysIds) throws ServiceNowClientException {
+        logger.debug("Retrieving Approval Status of {} ServiceNow {} records", sysIds.size(), table);
+
+        Map<String, String> statuses = new HashMap<>();
+        if (sysIds.isEmpty()) {
+            return statuses;
+        }
+        TableQueryOptions options = TableQueryOptions.fields("sys_id", "approval").withExcludeReferenceLink(true).withNoCount(true);
+        String parameters = tableParameters("sys_idIN" + StringUtils.join(sysIds, ','), null, sysIds.size(), 0, options);
+        // change tasks carry the same two fields, a ChangeRequest is only used as the holder
+        processGet("/table/" + table, parameters, json -> {
+            ChangeRequest approval = new ChangeRequest();
+            approval.setId((String) ServiceNowObject.getJSONValue(json, "sys_id"));
+            approval.setApproval((String) ServiceNowObject.getJSONValue(json, "approval"));
+            return approval;
+        }, approval -> statuses.put(approval.getId(), approval.getApproval()));
+
+        return statuses;
+    }
+
     /**
      * Get the approval status of a specific Change Request.
      *
@@ -265,8 +655,7 @@ public class ServiceNowClient {
     public String getChangeRequestState(String crNumber) throws ServiceNowClientException {
         logger.debug("Retrieving Status of ServiceNow Change Request \"{}\"", crNumber);
 
-        String queryResponse = snowGetByNumber("change_request", crNumber);
-        ChangeRequest cr = ChangeRequest.parse(queryResponse).get(0);
+        ChangeRequest cr = lookupFieldsByNumber("change_request", crNumber, ChangeRequest.class, ChangeRequest::parse, "state");
 
         return cr.getState();
     }
@@ -281,7 +670,7 @@ public class ServiceNowClient {
     public Incident getIncidentById(String incId) throws ServiceNowClientException {
         logger.debug("Retrieving ServiceNow Incident by Id \"{}\"", incId);
 
-        String queryResponse = snowGetById("incident", incId);
+        String queryResponse = snowGetById("incident", incId, TableQueryOptions.DEFAULT);
         Incident inc = Incident.parseSingle(queryResponse);
 
         return inc;
@@ -297,10 +686,7 @@ public class ServiceNowClient {
     public Incident getIncidentByNumber(String incNumber) throws ServiceNowClientException {
         logger.debug("Retrieving ServiceNow Incident by Number \"{}\"", incNumber);
 
-        String queryResponse = snowGetByNumber("incident", incNumber);
-        Incident inc = Incident.parse(queryResponse).get(0);
-
-        return inc;
+        return lookupByNumber("incident", incNumber, Incident.class, Incident::parseSingle, Incident::parse);
     }
 
     /*
@@ -321,7 +707,7 @@ public class ServiceNowClient {
         logger.debug(queryResponse);
 
         ChangeRequest cr = ChangeRequest.parseSingle(queryResponse);
-        return cr;
+        return cachedWrite("change_request", cr);
     }
 
     /*
@@ -335,14 +721,11 @@ public class ServiceNowClient {
     public ChangeRequest setChangeRequestStatus(String crId, String status) throws ServiceNowClientException {
         logger.debug("Settings Change Request \"{}\" Status to \"{}\"", crId, status);
 
-        JSONObject jsonBody = new JSONObject();
-        jsonBody.put("state", status);
-
-        String queryResponse = snowPutById("change_request", crId, jsonBody.toJSONString());
+        String queryResponse = snowPutById("change_request", crId, stateBody(status));
         logger.debug(queryResponse);
 
         ChangeRequest cr = ChangeRequest.parseSingle(queryResponse);
-        return cr;
+        return cachedWrite("change_request", cr);
     }
 
     /*
@@ -356,14 +739,11 @@ public class ServiceNowClient {
     public ChangeTask setChangeTaskStatus(String ctId, String status) throws ServiceNowClientException {
         logger.debug("Settings Change Task \"{}\" Status to \"{}\"", ctId, status);
 
-        JSONObject jsonBody = new JSONObject();
-        jsonBody.put("state", status);
-
-        String queryResponse = snowPutById("change_task", ctId, jsonBody.toJSONString());
+        String queryResponse = snowPutById("change_task", ctId, stateBody(status));
         logger.debug(queryResponse);
 
         ChangeTask ct = ChangeTask.parseSingle(queryResponse);
-        return ct;
+        return cachedWrite("change_task", ct);
     }
 
     /*
@@ -383,20 +763,11 @@ public class ServiceNowClient {
                                              String category, String priority, String risk, String impact) throws ServiceNowClientException {
         logger.debug("Creating Change Request \"{}\" of Type \"{}\"", summary, type);
 
-        JSONObject jsonBody = new JSONObject();
-        jsonBody.put("short_description", summary);
-        jsonBody.put("description", description);
-        jsonBody.put("type", type);
-        jsonBody.put("category", category);
-        jsonBody.put("priority", priority);
-        jsonBody.put("risk", risk);
-        jsonBody.put("impact", impact);
-
-        String queryResponse = snowPost("change_request", jsonBody.toJSONString());
+        String queryResponse = snowPost("change_request", changeRequestBody(summary, description, type, category, priority, risk, impact));
         logger.debug(queryResponse);
 
         ChangeRequest cr = ChangeRequest.parseSingle(queryResponse);
-        return cr;
+        return cachedWrite("change_request", cr);
     }
 
     /*
@@ -414,19 +785,73 @@ public class ServiceNowClient {
                                              String priority, String urgency) throws ServiceNowClientException {
         logger.debug("Creating Change Task \"{}\" for Change Request \"{}\"", summary, crId);
 
-        JSONObject jsonBody = new JSONObject();
-        jsonBody.put("short_description", summary);
-        jsonBody.put("description", description);
-        jsonBody.put("parent", crId);
-        jsonBody.put("change_request", crId);
-        jsonBody.put("urgency", urgency);
-        jsonBody.put("priority", priority);
-
-        String queryResponse = snowPost("change_task", jsonBody.toJSONString());
+        String queryResponse = snowPost("change_task", changeTaskBody(crId, summary, description, priority, urgency));
         logger.debug(queryResponse);
 
         ChangeTask ct = ChangeTask.parseSingle(queryResponse);
-        return ct;
+        return cachedWrite("change_task", ct);
+    }
+
+    /*
+     * Queue a status update of a change request for the next Batch API round trip.
+     *
+     * @param crId  the identifier of the change request
+     * @param status  the status to set
+     * @return a future completed with the updated Change Request
+     */
+    public CompletableFuture<ChangeRequest> setChangeRequestStatusBatched(String crId, String status) {
+        logger.debug("Queueing Change Request \"{}\" Status \"{}\"", crId, status);
+
+        return getBatcher().submit("PUT", String.format("/table/%s/%s", "change_request", crId), writeParameters(), stateBody(status))
+                .thenApply(ChangeRequest::parseSingle)
+                .thenApply(cr -> cachedWrite("change_request", cr));
+    }
+
+    /*
+     * Queue a status update of a change task for the next Batch API round trip.
+     *
+     * @param ctId  the identifier of the change task
+     * @param status  the status to set
+     * @return a future completed with the updated Change Task
+     */
+    public CompletableFuture<ChangeTask> setChangeTaskStatusBatched(String ctId, String status) {
+        logger.debug("Queueing Change Task \"{}\" Status \"{}\"", ctId, status);
+
+        return getBatcher().submit("PUT", String.format("/table/%s/%s", "change_task", ctId), writeParameters(), stateBody(status))
+                .thenApply(ChangeTask::parseSingle)
+                .thenApply(ct -> cachedWrite("change_task", ct));
+    }
+
+    /*
+     * Queue the creation of a Change Request for the next Batch API round trip.
+     *
+     * @return a future completed with the created Change Request
+     * @see #createChangeRequest(String, String, String, String, String, String, String)
+     */
+    public CompletableFuture<ChangeRequest> createChangeRequestBatched(String summary, String description, String type,
+                                                                      String category, String priority, String risk, String impact) {
+        logger.debug("Queueing creation of Change Request \"{}\" of Type \"{}\"", summary, type);
+
+        return getBatcher().submit("POST", String.format("/table/%s", "change_request"), writeParameters(),
+                changeRequestBody(summary, description, type, category, priority, risk, impact))
+                .thenApply(ChangeRequest::parseSingle)
+                .thenApply(cr -> cachedWrite("change_request", cr));
+    }
+
+    /*
+     * Queue the creation of a Change Task for the next Batch API round trip.
+     *
+     * @return a future completed with the created Change Task
+     * @see #createChangeTask(String, String, String, String, String)
+     */
+    public CompletableFuture<ChangeTask> createChangeTaskBatched(String crId, String summary, String description,
+                                                                String priority, String urgency) {
+        logger.debug("Queueing creation of Change Task \"{}\" for Change Request \"{}\"", summary, crId);
+
+        return getBatcher().submit("POST", String.format("/table/%s", "change_task"), writeParameters(),
+                changeTaskBody(crId, summary, description, priority, urgency))
+                .thenApply(ChangeTask::parseSingle)
+                .thenApply(ct -> cachedWrite("change_task", ct));
     }
 
     //================================================================================
@@ -446,37 +871,57 @@ public class ServiceNowClient {
 
         logger.debug("Start executing ServiceNow GET request to url=\"{}\"", uri);
 
-        DefaultHttpClient httpClient = new DefaultHttpClient();
         HttpGet getRequest = new HttpGet(uri);
-        UsernamePasswordCredentials creds = new UsernamePasswordCredentials(getSnowUsername(), getSnowPassword());
-        getRequest.addHeader(BasicScheme.authenticate(creds, "US-ASCII", false) );
-        getRequest.addHeader(HttpHeaders.CONTENT_TYPE, DEFAULT_HTTP_CONTENT_TYPE);
-        getRequest.addHeader(HttpHeaders.ACCEPT, DEFAULT_HTTP_CONTENT_TYPE);
-        String result = "";
+        String result = executeRequest(getRequest, HttpStatus.SC_OK);
 
-        try {
-            HttpResponse response = httpClient.execute(getRequest);
-            if (response.getStatusLine().getStatusCode() != org.apache.http.HttpStatus.SC_OK) {
-                throw createHttpError(response);
-            }
+        logger.debug("End executing ServiceNow GET request to url=\"{}\" and received this result={}", uri, result);
 
-            BufferedReader br = new BufferedReader(new InputStreamReader((response.getEntity().getContent())));
-            StringBuilder sb = new StringBuilder(1024);
-            String output;
-            while ((output = br.readLine()) != null) {
-                sb.append(output);
+        return result;
+    }
+
+    /**
+     * Execute a get request to ServiceNow and stream the records of the response to a consumer.
+     * Records are parsed straight from the response stream, one at a time.
+     *
+     * @param path  the path for the specific request
+     * @param parameters  parameters to send with the query
+     * @param mapper  maps a single JSON record to its domain object
+     * @param consumer  the consumer receiving each record
+     * @return the number of records read
+     * @throws ServiceNowClientException
+     */
+    protected <T extends ServiceNowObject> int processGet(String path, String parameters,
+                                                          final Function<JSONObject, T> mapper,
+                                                          final Consumer<? super T> consumer) throws ServiceNowClientException {
+        String uri = createUrl(path, parameters);
+
+        logger.debug("Start executing ServiceNow streaming GET request to url=\"{}\"", uri);
+
+        HttpGet getRequest = new HttpGet(uri);
+        Integer count = executeRequest(getRequest, new ResponseReader<Integer>() {
+            @Override
+            public Integer read(InputStream content) throws IOException, ServiceNowClientException {
+                ServiceNowObjectReader<T> reader = new ServiceNowObjectReader<>(new InputStreamReader(content, "UTF-8"), mapper);
+                int read = 0;
+                try {
+                    T record;
+                    while ((record = reader.read()) != null) {
+                        consumer.accept(record);
+                        read++;
+                    }
+                } catch (ParseException ex) {
+                    logger.error("Error while parsing response JSON at record " + read, ex);
+                    throw new ServiceNowClientException("Error while parsing ServiceNow response", ex);
+                } finally {
+                    reader.close();
+                }
+                return read;
             }
-            result = sb.toString();
-        } catch (IOException ex) {
-            logger.error(ex.getMessage(), ex);
-            throw new ServiceNowClientException("Server not available", ex);
-        } finally {
-            httpClient.getConnectionManager().shutdown();
-        }
+        }, HttpStatus.SC_OK);
 
-        logger.debug("End executing ServiceNow GET request to url=\"{}\" and received this result={}", uri, result);
+        logger.debug("End executing ServiceNow streaming GET request to url=\"{}\" and read {} records", uri, count);
 
-        return result;
+        return count;
     }
 
     /**
@@ -493,39 +938,14 @@ public class ServiceNowClient {
 
         logger.debug("Start executing ServiceNow PUT request to url=\"{}\" with data: {}", uri, body);
 
-        DefaultHttpClient httpClient = new DefaultHttpClient();
         HttpPut putRequest = new HttpPut(uri);
-        UsernamePasswordCredentials creds = new UsernamePasswordCredentials(getSnowUsername(), getSnowPassword());
-        putRequest.addHeader(BasicScheme.authenticate(creds, "US-ASCII", false) );
-        putRequest.addHeader(HttpHeaders.CONTENT_TYPE, DEFAULT_HTTP_CONTENT_TYPE);
-        putRequest.addHeader(HttpHeaders.ACCEPT, DEFAULT_HTTP_CONTENT_TYPE);
-
         try {
             putRequest.setEntity(new StringEntity(body,"UTF-8"));
         } catch (UnsupportedEncodingException ex) {
             logger.error(ex.getMessage(), ex);
             throw new ServiceNowClientException("Error creating body for PUT request", ex);
         }
-        String result = "";
-
-        try {
-            HttpResponse response = httpClient.execute(putRequest);
-            if (response.getStatusLine().getStatusCode() != org.apache.commons.httpclient.HttpStatus.SC_OK &&
-                    response.getStatusLine().getStatusCode() != org.apache.commons.httpclient.HttpStatus.SC_ACCEPTED) {
-                throw createHttpError(response);
-            }
-
-            BufferedReader br = new BufferedReader(new InputStreamReader((response.getEntity().getContent())));
-            StringBuilder sb = new StringBuilder(1024);
-            String output;
-            while ((output = br.readLine()) != null) {
-                sb.append(output);
-            }
-            result = sb.toString();
-        } catch (IOException e) {
-            logger.error(e.getMessage(), e);
-            throw new ServiceNowClientException("Server not available", e);
-        }
+        String result = executeRequest(putRequest, HttpStatus.SC_OK, HttpStatus.SC_ACCEPTED);
 
         logger.debug("End executing ServiceNow PUT request to url=\"{}\" and received this result={}", uri, result);
 
@@ -546,39 +966,14 @@ public class ServiceNowClient {
 
         logger.debug("Start executing ServiceNow POST request to url=\"{}\" with data: {}", uri, body);
 
-        DefaultHttpClient httpClient = new DefaultHttpClient();
         HttpPost postRequest = new HttpPost(uri);
-        UsernamePasswordCredentials creds = new UsernamePasswordCredentials(getSnowUsername(), getSnowPassword());
-        postRequest.addHeader(BasicScheme.authenticate(creds, "US-ASCII", false) );
-        postRequest.addHeader(HttpHeaders.CONTENT_TYPE, DEFAULT_HTTP_CONTENT_TYPE);
-        postRequest.addHeader(HttpHeaders.ACCEPT, DEFAULT_HTTP_CONTENT_TYPE);
-
         try {
             postRequest.setEntity(new StringEntity(body,"UTF-8"));
         } catch (UnsupportedEncodingException ex) {
             logger.error(ex.getMessage(), ex);
             throw new ServiceNowClientException("Error creating body for POST request", ex);
         }
-        String result = "";
-
-        try {
-            HttpResponse response = httpClient.execute(postRequest);
-            if (response.getStatusLine().getStatusCode() != org.apache.commons.httpclient.HttpStatus.SC_OK && response.getStatusLine().getStatusCode() != org.apache.commons.httpclient.HttpStatus.SC_CREATED &&
-                    response.getStatusLine().getStatusCode() != org.apache.commons.httpclient.HttpStatus.SC_ACCEPTED) {
-                throw createHttpError(response);
-            }
-
-            BufferedReader br = new BufferedReader(new InputStreamReader((response.getEntity().getContent())));
-            StringBuilder sb = new StringBuilder(1024);
-            String output;
-            while ((output = br.readLine()) != null) {
-                sb.append(output);
-            }
-            result = sb.toString();
-        } catch (IOException e) {
-            logger.error(e.getMessage(), e);
-            throw new ServiceNowClientException("Server not available", e);
-        }
+        String result = executeRequest(postRequest, HttpStatus.SC_OK, HttpStatus.SC_CREATED, HttpStatus.SC_ACCEPTED);
 
         logger.debug("End executing ServiceNow POST request to url=\"{}\" and received this result={}", uri, result);
 
@@ -593,7 +988,18 @@ public class ServiceNowClient {
      * @return a String containing a complete Snow path
      */
     protected String createUrl(String path, String parameters) throws ServiceNowClientException {
-        String base = getSnowUrl() + "/api/now/" + getSnowApiVersion();
+        return getSnowUrl() + createApiPath(path, parameters);
+    }
+
+    /**
+     * Create a ServiceNow REST API path, relative to the instance, from path and parameters.
+     *
+     * @param path  the path to the request
+     * @param parameters  the parameters to send with the request
+     * @return a String containing the API path, e.g. /api/now/v1/table/incident?sysparm_limit=1
+     */
+    protected String createApiPath(String path, String parameters) {
+        String base = "/api/now/" + getSnowApiVersion();
         String query = parameters.trim();
 
         // trim and encode path
@@ -611,33 +1017,196 @@ public class ServiceNowClient {
     // Private Methods
     //================================================================================
 
-    private String snowGetByTable(String table, String query, String state, Integer limit) throws ServiceNowClientException {
+    private <T extends ServiceNowObject> int snowGetByTable(String table, String query, String state, Integer limit, TableQueryOptions options,
+                                                            Function<JSONObject, T> mapper, Consumer<? super T> consumer) throws ServiceNowClientException {
+        return processGet("/table/" + table, tableParameters(query, state, limit, 0, options), mapper, consumer);
+    }
+
+    /**
+     * Fetch a single page of a table query, streaming its records to a consumer.
+     *
+     * @param table  the table to query
+     * @param query  the encoded query to run
+     * @param state  the state to limit the results to
+     * @param limit  the page size
+     * @param offset  the index of the first record to return
+     * @param mapper  maps a single JSON record to its domain object
+     * @param consumer  the consumer receiving each record
+     * @return the number of records read
+     * @throws ServiceNowClientException
+     */
+    <T extends ServiceNowObject> int fetchTablePage(String table, String query, String state, int limit, int offset,
+                                                    Function<JSONObject, T> mapper, Consumer<? super T> consumer) throws ServiceNowClientException {
+        // pages are read until a short page, the total count is never needed
+        return processGet("/table/" + table, tableParameters(query, state, limit, offset, TableQueryOptions.DEFAULT.withNoCount(true)), mapper, consumer);
+    }
+
+    private String tableParameters(String query, String state, Integer limit, int offset, TableQueryOptions options) {
         String stateQuery = "";
         if (state != null && StringUtils.isNotEmpty(state)) {
             stateQuery = "&state="+state;
         }
-        String parameters = String.format("?sysparm_limit=%d&sysparm_display_value=true&sysparm_query=%s&sysparm_fields=%s%s",
-                limit, URLEncoder.encode(query), URLEncoder.encode(SNOW_FIELDS), stateQuery);
-        String queryResponse = processGet("/table/" + table, parameters);
-        logger.debug(queryResponse);
-        //System.out.println(queryResponse);
-        return queryResponse;
+        String offsetQuery = "";
+        if (offset > 0) {
+            offsetQuery = "&sysparm_offset="+offset;
+        }
+        return String.format("?sysparm_limit=%d&sysparm_query=%s&%s%s%s",
+                limit, URLEncoder.encode(query), options.toParameters(), stateQuery, offsetQuery);
+    }
+
+    private <T extends ServiceNowObject> T lookupById(final String table, final String id, Class<T> type,
+                                                      final Function<String, T> parser) throws ServiceNowClientException {
+        ServiceNowRecordCache cache = recordCache;
+        if (cache != null) {
+            T cached = cache.get(table, id, type, this);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        T record = singleFlight.execute(table + "/" + id, () -> parser.apply(snowGetById(table, id, TableQueryOptions.DEFAULT)));
+        return cached(table, record);
     }
 
-    private String snowGetById(String tableName, String id) throws ServiceNowClientException {
+    private <T extends ServiceNowObject> T lookupByNumber(final String table, final String number, Class<T> type,
+                                                          Function<String, T> singleParser,
+                                                          final Function<String, List<T>> parser) throws ServiceNowClientException {
+        ServiceNowRecordCache cache = recordCache;
+        if (cache != null) {
+            String sysId = cache.getSysIdByNumber(table, number);
+            if (sysId != null) {
+                return lookupById(table, sysId, type, singleParser);
+            }
+        }
+        T record = singleFlight.execute(table + "?number=" + number, () -> parser.apply(snowGetByNumber(table, number, TableQueryOptions.DEFAULT)).get(0));
+        return cached(table, record);
+    }
+
+    /**
+     * Look up a record by number, fetching only sys_id, number and the given fields unless
+     * a fresh full copy is already cached. The partial record is not cached.
+     */
+    private <T extends ServiceNowObject> T lookupFieldsByNumber(final String table, final String number, Class<T> type,
+                                                                final Function<String, List<T>> parser, String... fields) throws ServiceNowClientException {
+        ServiceNowRecordCache cache = recordCache;
+        if (cache != null) {
+            String sysId = cache.getSysIdByNumber(table, number);
+            T cached = sysId == null ? null : cache.get(table, sysId, type, this);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        final TableQueryOptions options = TableQueryOptions.fields("sys_id,number," + StringUtils.join(fields, ','))
+                .withExcludeReferenceLink(true);
+        return singleFlight.execute(table + "?number=" + number + "&fields=" + options.getFields(),
+                () -> parser.apply(snowGetByNumber(table, number, options)).get(0));
+    }
+    private <T extends ServiceNowObject> T cached(String table, T record) {
+        ServiceNowRecordCache cache = recordCache;
+        if (cache != null) {
+            cache.put(table, record);
+        }
+        return record;
+    }
+
+    private <T extends ServiceNowObject> T cachedWrite(String table, T record) {
+        if (writeOptions.isFullRecord()) {
+            return cached(table, record);
+        }
+        ServiceNowRecordCache cache = recordCache;
+        if (cache != null && record != null && record.getId() != null) {
+            // the cached copy is stale and the response is too thin to replace it
+            cache.invalidate(table, record.getId());
+        }
+        return record;
+    }
+
+    /**
+     * Get only the sys_updated_on value of a record, used to revalidate cached copies.
+     *
+     * @param table  the table of the record
+     * @param id  the sys_id of the record
+     * @return the sys_updated_on value, or null if the record was not found
+     * @throws ServiceNowClientException
+     */
+    String fetchUpdatedOn(String table, String id) throws ServiceNowClientException {
+        final String[] updatedOn = new String[1];
+        String query = String.format("/table/%s/%s", table, id);
+        String parameters = "?" + TableQueryOptions.fields("sys_id", "sys_updated_on").withExcludeReferenceLink(true).toParameters();
+        processGet(query, parameters, json -> {
+            ServiceNowObject obj = new ServiceNowObject();
+            obj.setId((String) ServiceNowObject.getJSONValue(json, "sys_id"));
+            obj.setUpdatedOn((String) ServiceNowObject.getJSONValue(json, "sys_updated_on"));
+            return obj;
+        }, obj -> updatedOn[0] = obj.getUpdatedOn());
+        return updatedOn[0];
+    }
+
+    /**
+     * Get the sys_id and raw (UTC) sys_updated_on of the records of a table updated at or after a
+     * watermark, in sys_updated_on then sys_id order. Raw values are used because display values are in the
+     * user's time zone and format. Records updated at the watermark itself are only read past afterId, so the
+     * query stays the same size however many records share the watermark.
+     *
+     * @param table  the table to query
+     * @param watermark  the raw sys_updated_on to start from, e.g. 2016-01-31 23:59:59
+     * @param afterId  the last sys_id already read at the watermark, null if none has been read
+     * @param limit  the maximum number of records to return
+     * @return the raw sys_updated_on by sys_id, in sys_updated_on order
+     * @throws ServiceNowClientException
+     */
+    LinkedHashMap<String, String> fetchUpdatedSince(String table, String watermark, String afterId, int limit) throws ServiceNowClientException {
+        String query;
+        if (afterId == null) {
+            query = "sys_updated_on>=" + watermark;
+        } else {
+            query = "sys_updated_on=" + watermark + "^sys_id>" + afterId + "^NQsys_updated_on>" + watermark;
+        }
+        query += "^ORDERBYsys_updated_on^ORDERBYsys_id";
+        TableQueryOptions options = TableQueryOptions.fields("sys_id", "sys_updated_on").withDisplayValue(false)
+                .withExcludeReferenceLink(true).withNoCount(true);
+        LinkedHashMap<String, String> updated = new LinkedHashMap<>();
+        processGet("/table/" + table, tableParameters(query, null, limit, 0, options), json -> {
+            ServiceNowObject obj = new ServiceNowObject();
+            obj.setId((String) ServiceNowObject.getJSONValue(json, "sys_id"));
+            obj.setUpdatedOn((String) ServiceNowObject.getJSONValue(json, "sys_updated_on"));
+            return obj;
+        }, obj -> updated.put(obj.getId(), obj.getUpdatedOn()));
+        return updated;
+    }
+
+    /**
+     * Fetch complete records by sys_id with one sys_idIN query, streaming them to a consumer.
+     *
+     * @param table  the table to query
+     * @param sysIds  the sys_ids of the records
+     * @param mapper  maps a single JSON record to its domain object
+     * @param consumer  the consumer receiving each record, records that were not found are left out
+     * @return the number of records read
+     * @throws ServiceNowClientException
+     */
+    <T extends ServiceNowObject> int fetchByIds(String table, Collection<String> sysIds, Function<JSONObject, T> mapper,
+                                                Consumer<? super T> consumer) throws ServiceNowClientException {
+        if (sysIds.isEmpty()) {
+            return 0;
+        }
+        String parameters = tableParameters("sys_idIN" + StringUtils.join(sysIds, ','), null, sysIds.size(), 0,
+                TableQueryOptions.DEFAULT.withNoCount(true));
+        return processGet("/table/" + table, parameters, mapper, consumer);
+    }
+
+    private String snowGetById(String tableName, String id, TableQueryOptions options) throws ServiceNowClientException {
         String query = String.format("/table/%s/%s", tableName, id);
-        String parameters = String.format("?sysparm_limit=%d&sysparm_display_value=true&sysparm_fields=%s",
-                1, URLEncoder.encode(SNOW_FIELDS));
+        String parameters = String.format("?sysparm_limit=%d&%s", 1, options.toParameters());
         String queryResponse = processGet(query, parameters);
         logger.debug(queryResponse);
         //System.out.println(queryResponse);
         return queryResponse;
     }
 
-    private String snowGetByNumber(String tableName, String number) throws ServiceNowClientException {
+    private String snowGetByNumber(String tableName, String number, TableQueryOptions options) throws ServiceNowClientException {
         String query = String.format("/table/%s", tableName);
-        String parameters = String.format("?sysparm_limit=%d&sysparm_display_value=true&sysparm_query=%s&sysparm_fields=%s",
-                1, URLEncoder.encode("number=" + number), URLEncoder.encode(SNOW_FIELDS));
+        String parameters = String.format("?sysparm_limit=%d&sysparm_query=%s&%s",
+                1, URLEncoder.encode("number=" + number), options.toParameters());
         String queryResponse = processGet(query, parameters);
         logger.debug(queryResponse);
         //System.out.println(queryResponse);
@@ -646,9 +1215,7 @@ public class ServiceNowClient {
 
     private String snowPutById(String tableName, String id, String body) throws ServiceNowClientException {
         String query = String.format("/table/%s/%s", tableName, id);
-        String parameters = String.format("?sysparm_display_value=true&sysparm_fields=%s",
-                URLEncoder.encode(SNOW_FIELDS));
-        String queryResponse = processPut(query, parameters, body);
+        String queryResponse = processPut(query, writeParameters(), body);
         logger.debug(queryResponse);
         //System.out.println(queryResponse);
         return queryResponse;
@@ -656,14 +1223,125 @@ public class ServiceNowClient {
 
     private String snowPost(String tableName, String body) throws ServiceNowClientException {
         String query = String.format("/table/%s", tableName);
-        String parameters = String.format("?sysparm_display_value=true&sysparm_fields=%s",
-                URLEncoder.encode(SNOW_FIELDS));
-        String queryResponse = processPost(query, parameters, body);
+        String queryResponse = processPost(query, writeParameters(), body);
         logger.debug(queryResponse);
         //System.out.println(queryResponse);
         return queryResponse;
     }
 
+    private String writeParameters() {
+        return "?" + writeOptions.toParameters();
+    }
+
+    private String stateBody(String status) {
+        JSONObject jsonBody = new JSONObject();
+        jsonBody.put("state", status);
+        return jsonBody.toJSONString();
+    }
+
+    private String changeRequestBody(String summary, String description, String type,
+                                     String category, String priority, String risk, String impact) {
+        JSONObject jsonBody = new JSONObject();
+        jsonBody.put("short_description", summary);
+        jsonBody.put("description", description);
+        jsonBody.put("type", type);
+        jsonBody.put("category", category);
+        jsonBody.put("priority", priority);
+        jsonBody.put("risk", risk);
+        jsonBody.put("impact", impact);
+        return jsonBody.toJSONString();
+    }
+
+    private String changeTaskBody(String crId, String summary, String description, String priority, String urgency) {
+        JSONObject jsonBody = new JSONObject();
+        jsonBody.put("short_description", summary);
+        jsonBody.put("description", description);
+        jsonBody.put("parent", crId);
+        jsonBody.put("change_request", crId);
+        jsonBody.put("urgency", urgency);
+        jsonBody.put("priority", priority);
+        return jsonBody.toJSONString();
+    }
+
+    /**
+     * Execute a request on the pooled transport and read the response body.
+     * The response entity is always consumed so the connection is returned to the pool.
+     *
+     * @param request  the request to execute
+     * @param expectedStatus  the status codes that indicate success
+     * @return String containing the response body
+     * @throws ServiceNowClientException
+     */
+    private String executeRequest(HttpRequestBase request, int... expectedStatus) throws ServiceNowClientException {
+        return executeRequest(request, STRING_RESPONSE_READER, expectedStatus);
+    }
+
+    /**
+     * Execute a request on the pooled transport and hand the response body to a reader.
+     * The response entity is always consumed so the connection is returned to the pool.
+     *
+     * @param request  the request to execute
+     * @param responseReader  reads the response body
+     * @param expectedStatus  the status codes that indicate success
+     * @return the result of the response reader
+     * @throws ServiceNowClientException
+     */
+    private <R> R executeRequest(HttpRequestBase request, ResponseReader<R> responseReader, int... expectedStatus) throws ServiceNowClientException {
+        UsernamePasswordCredentials creds = new UsernamePasswordCredentials(getSnowUsername(), getSnowPassword());
+        request.addHeader(BasicScheme.authenticate(creds, "US-ASCII", false) );
+        request.addHeader(HttpHeaders.CONTENT_TYPE, DEFAULT_HTTP_CONTENT_TYPE);
+        request.addHeader(HttpHeaders.ACCEPT, DEFAULT_HTTP_CONTENT_TYPE);
+
+        ServiceNowRateLimiter limiter = getRateLimiter();
+        for (int attempt = 0; ; attempt++) {
+            HttpResponse response = null;
+            try {
+                limiter.acquire();
+                response = getTransport().getHttpClient().execute(request);
+                long retryAfter = limiter.onResponse(response);
+                int statusCode = response.getStatusLine().getStatusCode();
+                if (statusCode == SC_TOO_MANY_REQUESTS && attempt < maxRateLimitRetries) {
+                    logger.debug("ServiceNow request to \"{}\" rate limited, retrying in {} ms", request.getURI(), retryAfter);
+                    continue;
+                }
+                if (!isExpectedStatus(statusCode, expectedStatus)) {
+                    throw createHttpError(response);
+                }
+
+                return responseReader.read(response.getEntity().getContent());
+            } catch (IOException ex) {
+                logger.error(ex.getMessage(), ex);
+                request.abort();
+                throw new ServiceNowClientException("Server not available", ex);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                request.abort();
+                throw new ServiceNowClientException("Interrupted while waiting to send ServiceNow request", ex);
+            } finally {
+                releaseConnection(response);
+            }
+        }
+    }
+
+    private static boolean isExpectedStatus(int statusCode, int... expectedStatus) {
+        for (int status : expectedStatus) {
+            if (statusCode == status) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void releaseConnection(HttpResponse response) {
+        if (response != null) {
+            try {
+                EntityUtils.consume(response.getEntity());
+            } catch (IOException ex) {
+                logger.debug("Error releasing connection - {}", ex.getMessage());
+            }
+        }
+    }
+
     /**
      * Returns a ServiceNow Client specific Client Exception
      * @param response  the exception to throw
@@ -691,6 +1369,8 @@ public class ServiceNowClient {
                 return new ServiceNowClientException("ServiceNow: Request URL not found.");
             } else if (new Integer(HttpStatus.SC_BAD_REQUEST).equals(statusLine.getStatusCode())) {
                 return new ServiceNowClientException("ServiceNow: Bad request. " + responsePayload);
+            } else if (new Integer(SC_TOO_MANY_REQUESTS).equals(statusLine.getStatusCode())) {
+                return new ServiceNowClientException("ServiceNow: Rate limit exceeded. " + responsePayload);
             }
         } catch (IOException e) {
             return new ServiceNowClientException("ServiceNow: Can't read response");
@@ -0,0 +1,269 @@
+/*
+ *
+ * Copyright (c) 2016 SERENA Software, Inc. All Rights Reserved.
+ *
+ * This software is proprietary information of SERENA Software, Inc.
+ * Use is subject to license terms.
+ *
+ * @author Kevin Lee
+ */
+package com.microfocus.sync.servicenow.client;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Adaptive client-side token bucket for outbound ServiceNow requests.
+ * Callers reserve permits in arrival order and sleep until their slot, so a burst of callers is
+ * queued fairly instead of failing. The rate is adjusted at runtime from the responses:
+ * HTTP 429 and Retry-After pause the bucket and halve the rate, X-RateLimit-Remaining and
+ * X-RateLimit-Reset cap the rate to what is left in the current window, and successful
+ * responses let the rate recover towards the configured maximum.
+ * @author klee@serena.com
+ */
+public class ServiceNowRateLimiter {
+    private static final Logger logger = LoggerFactory.getLogger(ServiceNowRateLimiter.class);
+
+    public static double DEFAULT_MAX_RATE = 50.0;
+    public static double DEFAULT_MIN_RATE = 0.5;
+    public static long DEFAULT_RETRY_AFTER = 1000L;
+
+    private static final double RECOVERY_STEP = 0.05;
+
+    private static final ConcurrentMap<String, ServiceNowRateLimiter> INSTANCE_LIMITERS = new ConcurrentHashMap<>();
+
+    private final ReentrantLock lock = new ReentrantLock(true);
+    private final double maxRate;
+    private final double minRate;
+    private final double maxBurst;
+
+    private double rate;
+    private double storedPermits;
+    // nanoTime values have an arbitrary origin, they are only compared by subtraction
+    private long nextFreeNanos = System.nanoTime();
+    private boolean paused;
+    private long pausedUntilNanos;
+
+    private final AtomicInteger waitingCount = new AtomicInteger();
+    private final LongAdder acquiredCount = new LongAdder();
+    private final LongAdder throttledCount = new LongAdder();
+    private final LongAdder totalWaitMillis = new LongAdder();
+
+    public ServiceNowRateLimiter() {
+        this(DEFAULT_MAX_RATE, DEFAULT_MIN_RATE, DEFAULT_MAX_RATE);
+    }
+
+    /**
+     * Create a new rate limiter.
+     *
+     * @param maxRate  the maximum number of requests per second
+     * @param minRate  the rate never drops below this number of requests per second
+     * @param maxBurst  the maximum number of requests that may be sent back to back after an idle period
+     */
+    public ServiceNowRateLimiter(double maxRate, double minRate, double maxBurst) {
+        this.maxRate = maxRate;
+        this.minRate = minRate;
+        this.maxBurst = maxBurst;
+        this.rate = maxRate;
+    }
+
+    /**
+     * Get the limiter shared by all clients of a ServiceNow instance, creating one with default limits
+     * on first use, so the clients of one instance stay within one request budget.
+     *
+     * @param instanceUrl  the instance url, e.g. https://servername
+     * @return the limiter of the instance
+     */
+    public static ServiceNowRateLimiter forInstance(String instanceUrl) {
+        String key = instanceUrl == null ? "" : StringUtils.removeEnd(instanceUrl.trim().toLowerCase(), "/");
+        ServiceNowRateLimiter limiter = INSTANCE_LIMITERS.get(key);
+        if (limiter == null) {
+            ServiceNowRateLimiter created = new ServiceNowRateLimiter();
+            limiter = INSTANCE_LIMITERS.putIfAbsent(key, created);
+            if (limiter == null) {
+                limiter = created;
+            }
+        }
+        return limiter;
+    }
+
+    /**
+     * Wait for a permit to send one request.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void acquire() throws InterruptedException {
+        long waitNanos;
+        lock.lock();
+        try {
+            waitNanos = reserve(System.nanoTime());
+        } finally {
+            lock.unlock();
+        }
+        acquiredCount.increment();
+        if (waitNanos > 0) {
+            waitingCount.incrementAndGet();
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            } finally {
+                waitingCount.decrementAndGet();
+                totalWaitMillis.add(TimeUnit.NANOSECONDS.toMillis(waitNanos));
+            }
+        }
+    }
+
+    /**
+     * Adjust the rate from a ServiceNow response.
+     *
+     * @param response  the response received
+     * @return milliseconds to wait before retrying if the request was rate limited, otherwise 0
+     */
+    public long onResponse(HttpResponse response) {
+        int statusCode = response.getStatusLine().getStatusCode();
+        long now = System.nanoTime();
+        lock.lock();
+        try {
+            if (statusCode == 429) {
+                throttledCount.increment();
+                long retryAfter = parseRetryAfter(response.getFirstHeader("Retry-After"));
+                long until = now + TimeUnit.MILLISECONDS.toNanos(retryAfter);
+                if (!paused || until - pausedUntilNanos > 0) {
+                    pausedUntilNanos = until;
+                    paused = true;
+                }
+                storedPermits = 0;
+                setRate(rate / 2);
+                logger.debug("ServiceNow rate limit hit, pausing for {} ms and lowering rate to {}/s", retryAfter, rate);
+                return retryAfter;
+            }
+
+            Long remaining = parseLong(response.getFirstHeader("X-RateLimit-Remaining"));
+            Long reset = parseLong(response.getFirstHeader("X-RateLimit-Reset"));
+            if (remaining != null && reset != null) {
+                double secondsToReset = Math.max(1.0, reset - System.currentTimeMillis() / 1000.0);
+                double windowRate = remaining / secondsToReset;
+                if (windowRate < rate) {
+                    setRate(windowRate);
+                    return 0;
+                }
+            }
+            setRate(rate + maxRate * RECOVERY_STEP);
+            return 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public double getRate() {
+        lock.lock();
+        try {
+            return rate;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public double getMaxRate() {
+        return maxRate;
+    }
+
+    /**
+     * @return the number of callers currently waiting for a permit
+     */
+    public int getWaitingCount() {
+        return waitingCount.get();
+    }
+
+    public long getAcquiredCount() {
+        return acquiredCount.sum();
+    }
+
+    /**
+     * @return the number of HTTP 429 responses received
+     */
+    public long getThrottledCount() {
+        return throttledCount.sum();
+    }
+
+    /**
+     * @return the total number of milliseconds callers have waited for permits
+     */
+    public long getTotalWaitMillis() {
+        return totalWaitMillis.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "ServiceNowRateLimiter{" + "rate=" + getRate() +
+                ", waiting=" + getWaitingCount() +
+                ", acquired=" + getAcquiredCount() +
+                ", throttled=" + getThrottledCount() +
+                ", totalWaitMillis=" + getTotalWaitMillis() +
+        '}';
+    }
+
+    private long reserve(long now) {
+        long intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        if (now - nextFreeNanos > 0) {
+            storedPermits = Math.min(maxBurst, storedPermits + (double) (now - nextFreeNanos) / intervalNanos);
+            nextFreeNanos = now;
+        }
+        long slot = nextFreeNanos;
+        if (paused) {
+            if (pausedUntilNanos - now <= 0) {
+                paused = false;
+            } else if (pausedUntilNanos - slot > 0) {
+                slot = pausedUntilNanos;
+            }
+        }
+        if (storedPermits >= 1 && slot - now <= 0) {
+            storedPermits -= 1;
+        } else {
+            nextFreeNanos = slot + intervalNanos;
+        }
+        return Math.max(0, slot - now);
+    }
+
+    private void setRate(double newRate) {
+        rate = Math.max(minRate, Math.min(maxRate, newRate));
+    }
+
+    private static long parseRetryAfter(Header header) {
+        if (header == null) {
+            return DEFAULT_RETRY_AFTER;
+        }
+        String value = header.getValue().trim();
+        try {
+            return TimeUnit.SECONDS.toMillis(Long.parseLong(value));
+        } catch (NumberFormatException ex) {
+            try {
+                return Math.max(0, DateUtils.parseDate(value).getTime() - System.currentTimeMillis());
+            } catch (DateParseException dex) {
+                return DEFAULT_RETRY_AFTER;
+            }
+        }
+    }
+
+    private static Long parseLong(Header header) {
+        if (header == null) {
+            return null;
+        }
+        try {
+            return Long.parseLong(header.getValue().trim());
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+    }
+}
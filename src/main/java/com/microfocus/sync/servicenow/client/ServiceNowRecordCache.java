@@ -0,0 +1,237 @@
+/*
+ *
+ * Copyright (c) 2016 SERENA Software, Inc. All Rights Reserved.
+ *
+ * This software is proprietary information of SERENA Software, Inc.
+ * Use is subject to license terms.
+ *
+ * @author Kevin Lee
+ */
+package com.microfocus.sync.servicenow.client;
+
+import com.microfocus.sync.servicenow.domain.ServiceNowObject;
+import com.microfocus.sync.servicenow.exception.ServiceNowClientException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded read-through cache of ServiceNow records, keyed by table and sys_id, with a secondary
+ * table and number to sys_id index so number lookups can be served by the cheaper direct GET.
+ * Entries are evicted least recently used first and expire after a per-table time to live.
+ * In revalidation mode an expired entry is kept if a sys_updated_on-only GET shows it is unchanged.
+ * @author klee@serena.com
+ */
+public class ServiceNowRecordCache {
+    private static final Logger logger = LoggerFactory.getLogger(ServiceNowRecordCache.class);
+
+    public static int DEFAULT_MAX_ENTRIES = 10000;
+    public static long DEFAULT_TTL = 30000L;
+
+    public enum ExpiryMode {
+        /** expired entries are dropped and reloaded */
+        EXPIRE,
+        /** expired entries are revalidated against sys_updated_on and reused if unchanged */
+        REVALIDATE
+    }
+
+    private final int maxEntries;
+    private final long defaultTtl;
+    private final ExpiryMode expiryMode;
+    private final Map<String, Long> tableTtls = new HashMap<>();
+    private final LinkedHashMap<String, CacheEntry> records;
+    private final LinkedHashMap<String, String> numberIndex;
+
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder evictionCount = new LongAdder();
+    private final LongAdder revalidationCount = new LongAdder();
+
+    public ServiceNowRecordCache() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_TTL, ExpiryMode.EXPIRE);
+    }
+
+    /**
+     * Create a new record cache.
+     *
+     * @param maxEntries  the maximum number of records to keep
+     * @param defaultTtl  milliseconds a record stays fresh unless its table has its own time to live
+     * @param expiryMode  what to do with records that are no longer fresh
+     */
+    public ServiceNowRecordCache(final int maxEntries, long defaultTtl, ExpiryMode expiryMode) {
+        this.maxEntries = maxEntries;
+        this.defaultTtl = defaultTtl;
+        this.expiryMode = expiryMode;
+        this.records = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+                if (size() > maxEntries) {
+                    evictionCount.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+        this.numberIndex = new LinkedHashMap<String, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Set the time to live of the records of one table.
+     *
+     * @param table  the table name, e.g. change_request
+     * @param ttl  milliseconds a record of the table stays fresh
+     */
+    public synchronized void setTableTtl(String table, long ttl) {
+        tableTtls.put(table, ttl);
+    }
+
+    /**
+     * Get a cached record.
+     *
+     * @param table  the table of the record
+     * @param sysId  the sys_id of the record
+     * @param type  the expected type of the record
+     * @param client  the client used to revalidate an expired record
+     * @return the cached record, or null if it is not cached or no longer valid
+     */
+    public <T extends ServiceNowObject> T get(String table, String sysId, Class<T> type, ServiceNowClient client) {
+        String key = recordKey(table, sysId);
+        CacheEntry entry;
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            entry = records.get(key);
+            if (entry == null || !type.isInstance(entry.record)) {
+                missCount.increment();
+                return null;
+            }
+            if (now - entry.loadedAt <= ttl(table)) {
+                hitCount.increment();
+                return type.cast(entry.record);
+            }
+            if (expiryMode == ExpiryMode.EXPIRE) {
+                records.remove(key);
+                missCount.increment();
+                return null;
+            }
+        }
+
+        revalidationCount.increment();
+        try {
+            String updatedOn = client.fetchUpdatedOn(table, sysId);
+            if (updatedOn != null && updatedOn.equals(entry.record.getUpdatedOn())) {
+                synchronized (this) {
+                    entry.loadedAt = now;
+                }
+                hitCount.increment();
+                return type.cast(entry.record);
+            }
+        } catch (ServiceNowClientException ex) {
+            logger.debug("Error revalidating {} - {}", key, ex.getMessage());
+        }
+        invalidate(table, sysId);
+        missCount.increment();
+        return null;
+    }
+
+    /**
+     * Get the sys_id of a record by its number, if the record has been cached before.
+     *
+     * @param table  the table of the record
+     * @param number  the number of the record
+     * @return the sys_id, or null if unknown
+     */
+    public synchronized String getSysIdByNumber(String table, String number) {
+        return numberIndex.get(numberKey(table, number));
+    }
+
+    /**
+     * Cache a record and index its number.
+     *
+     * @param table  the table of the record
+     * @param record  the record to cache
+     */
+    public synchronized void put(String table, ServiceNowObject record) {
+        if (record == null || record.getId() == null) {
+            return;
+        }
+        records.put(recordKey(table, record.getId()), new CacheEntry(record, System.currentTimeMillis()));
+        if (record.getNumber() != null) {
+            numberIndex.put(numberKey(table, record.getNumber()), record.getId());
+        }
+    }
+
+    public synchronized void invalidate(String table, String sysId) {
+        records.remove(recordKey(table, sysId));
+    }
+
+    public synchronized void clear() {
+        records.clear();
+        numberIndex.clear();
+    }
+
+    public synchronized int size() {
+        return records.size();
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    public long getMissCount() {
+        return missCount.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.sum();
+    }
+
+    public long getRevalidationCount() {
+        return revalidationCount.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "ServiceNowRecordCache{" + "size=" + size() +
+                ", hits=" + getHitCount() +
+                ", misses=" + getMissCount() +
+                ", evictions=" + getEvictionCount() +
+                ", revalidations=" + getRevalidationCount() +
+        '}';
+    }
+
+    private long ttl(String table) {
+        Long ttl = tableTtls.get(table);
+        return ttl != null ? ttl : defaultTtl;
+    }
+
+    private static String recordKey(String table, String sysId) {
+        return table + "/" + sysId;
+    }
+
+    private static String numberKey(String table, String number) {
+        return table + "?number=" + number;
+    }
+
+    private static class CacheEntry {
+        final ServiceNowObject record;
+        long loadedAt;
+
+        CacheEntry(ServiceNowObject record, long loadedAt) {
+            this.record = record;
+            this.loadedAt = loadedAt;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ *
+ * Copyright (c) 2016 SERENA Software, Inc. All Rights Reserved.
+ *
+ * This software is proprietary information of SERENA Software, Inc.
+ * Use is subject to license terms.
+ *
+ * @author Kevin Lee
+ */
+package com.microfocus.sync.servicenow.client;
+
+import com.microfocus.sync.servicenow.exception.ServiceNowClientException;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Coalesces concurrent identical calls: while a call for a key is in flight, other callers
+ * asking for the same key wait for and share its result instead of issuing their own request.
+ * Coalesced callers receive the same result instance, so results should be treated as read-only.
+ * Bookkeeping is a single lock-free map insert and remove per executed call.
+ * @author klee@serena.com
+ */
+public class SingleFlight {
+
+    private final ConcurrentMap<String, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder executedCount = new LongAdder();
+    private final LongAdder coalescedCount = new LongAdder();
+
+    /**
+     * Execute a call, or join the identical call already in flight.
+     *
+     * @param key  identifies the call, e.g. table and sys_id
+     * @param call  the call to execute if none is in flight for the key
+     * @return the result of the call
+     * @throws ServiceNowClientException
+     */
+    @SuppressWarnings("unchecked")
+    public <V> V execute(String key, ServiceNowCall<V> call) throws ServiceNowClientException {
+        CompletableFuture<Object> mine = new CompletableFuture<>();
+        CompletableFuture<Object> existing = inFlight.putIfAbsent(key, mine);
+        if (existing != null) {
+            coalescedCount.increment();
+            return (V) await(key, existing);
+        }
+
+        executedCount.increment();
+        try {
+            V result = call.call();
+            mine.complete(result);
+            return result;
+        } catch (Throwable ex) {
+            // any failure, errors included, must complete the future or the joined callers wait forever
+            mine.completeExceptionally(ex);
+            throw ex;
+        } finally {
+            inFlight.remove(key, mine);
+        }
+    }
+
+    /**
+     * @return the number of calls that were actually executed
+     */
+    public long getExecutedCount() {
+        return executedCount.sum();
+    }
+
+    /**
+     * @return the number of calls that shared the result of a call already in flight
+     */
+    public long getCoalescedCount() {
+        return coalescedCount.sum();
+    }
+
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    private static Object await(String key, CompletableFuture<Object> future) throws ServiceNowClientException {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new ServiceNowClientException("Interrupted while waiting for " + key, ex);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof ServiceNowClientException) {
+                throw (ServiceNowClientException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new ServiceNowClientException(cause);
+        }
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ *
+ * Copyright (c) 2016 SERENA Software, Inc. All Rights Reserved.
+ *
+ * This software is proprietary information of SERENA Software, Inc.
+ * Use is subject to license terms.
+ *
+ * @author Kevin Lee
+ */
+package com.microfocus.sync.servicenow.client;
+
+import com.microfocus.sync.servicenow.domain.ServiceNowObject;
+import com.microfocus.sync.servicenow.exception.ServiceNowClientException;
+import org.apache.commons.lang3.StringUtils;
+import org.json.simple.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Lazy iterator over a complete ServiceNow table query result.
+ * Pages through the table with sysparm_offset or, for deep scans, with keyset paging on sys_id,
+ * and fetches the next page in the background while the caller consumes the current one.
+ * Only the current and the prefetched page are held in memory. Without an executor pages are
+ * fetched synchronously on the calling thread when they are needed.
+ * Keyset paging orders by sys_id, so it should not be combined with a query that has its own ORDERBY.
+ * @author klee@serena.com
+ */
+public class TablePager<T extends ServiceNowObject> implements Iterator<T>, Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(TablePager.class);
+
+    public enum Mode {
+        /** page with sysparm_offset, cheap for shallow result sets */
+        OFFSET,
+        /** page with "sys_id > last seen sys_id", stable and constant-cost for deep scans */
+        KEYSET
+    }
+
+    private final ServiceNowClient client;
+    private final String table;
+    private final String query;
+    private final String state;
+    private final int pageSize;
+    private final Mode mode;
+    private final Function<JSONObject, T> mapper;
+    private final ExecutorService executor;
+
+    private List<T> currentPage = Collections.emptyList();
+    private int index;
+    private Future<List<T>> nextPage;
+    private boolean lastPage;
+    private int offset;
+    private String lastSysId;
+    private int pageCount;
+
+    TablePager(ServiceNowClient client, String table, String query, String state, int pageSize, Mode mode,
+               Function<JSONObject, T> mapper, ExecutorService executor) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("Page size must be positive: " + pageSize);
+        }
+        this.client = client;
+        this.table = table;
+        this.query = query == null ? "" : query;
+        this.state = state;
+        this.pageSize = pageSize;
+        this.mode = mode;
+        this.mapper = mapper;
+        this.executor = executor;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (index >= currentPage.size()) {
+            if (lastPage) {
+                return false;
+            }
+            advance();
+        }
+        return true;
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return currentPage.get(index++);
+    }
+
+    /**
+     * Get a sequential stream over the remaining records. Closing the stream closes the pager.
+     *
+     * @return a stream of records
+     */
+    public Stream<T> stream() {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(new Runnable() {
+                    @Override
+                    public void run() {
+                        close();
+                    }
+                });
+    }
+
+    public int getPageCount() {
+        return pageCount;
+    }
+
+    /**
+     * Stop iterating and cancel any outstanding prefetch.
+     */
+    @Override
+    public void close() {
+        lastPage = true;
+        currentPage = Collections.emptyList();
+        if (nextPage != null) {
+            nextPage.cancel(true);
+            nextPage = null;
+        }
+    }
+
+    private void advance() {
+        if (nextPage == null) {
+            nextPage = submitFetch();
+        }
+        try {
+            currentPage = nextPage.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            close();
+            throw new IllegalStateException("Interrupted while fetching ServiceNow " + table + " page", ex);
+        } catch (ExecutionException ex) {
+            close();
+            throw new IllegalStateException("Error fetching ServiceNow " + table + " page " + pageCount, ex.getCause());
+        }
+        index = 0;
+        pageCount++;
+        nextPage = null;
+
+        if (currentPage.size() < pageSize) {
+            lastPage = true;
+        } else {
+            offset += currentPage.size();
+            lastSysId = currentPage.get(currentPage.size() - 1).getId();
+            if (executor != null) {
+                nextPage = submitFetch();
+            }
+        }
+    }
+
+    private Future<List<T>> submitFetch() {
+        final String pageQuery = pageQuery();
+        final int pageOffset = mode == Mode.OFFSET ? offset : 0;
+        FutureTask<List<T>> task = new FutureTask<>(new Callable<List<T>>() {
+            @Override
+            public List<T> call() throws ServiceNowClientException {
+                logger.debug("Fetching ServiceNow {} page at offset {} with query \"{}\"", table, pageOffset, pageQuery);
+                List<T> page = new ArrayList<>(pageSize);
+                client.fetchTablePage(table, pageQuery, state, pageSize, pageOffset, mapper, page::add);
+                return page;
+            }
+        });
+        if (executor == null) {
+            task.run();
+        } else {
+            executor.execute(task);
+        }
+        return task;
+    }
+
+    private String pageQuery() {
+        StringBuilder sb = new StringBuilder(query);
+        if (mode == Mode.KEYSET) {
+            if (lastSysId != null) {
+                sb = new StringBuilder(andCondition(query, "sys_id>" + lastSysId));
+            }
+            appendCondition(sb, "ORDERBYsys_id");
+        } else if (!query.contains("ORDERBY")) {
+            // offsets are only stable against a fixed ordering
+            appendCondition(sb, "ORDERBYsys_id");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Add a condition to an encoded query. A query with ^NQ is an OR of several queries, the
+     * condition is added to each of them so it restricts the whole result.
+     *
+     * @param query  the encoded query, may be empty
+     * @param condition  the condition every result record must meet
+     * @return the restricted query
+     */
+    static String andCondition(String query, String condition) {
+        if (StringUtils.isEmpty(query)) {
+            return condition;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (String branch : query.split("\\^NQ", -1)) {
+            if (sb.length() > 0) {
+                sb.append("^NQ");
+            }
+            sb.append(StringUtils.isEmpty(branch) ? condition : branch + "^" + condition);
+        }
+        return sb.toString();
+    }
+
+    private static void appendCondition(StringBuilder sb, String condition) {
+        if (StringUtils.isNotEmpty(sb)) {
+            sb.append('^');
+        }
+        sb.append(condition);
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ *
+ * Copyright (c) 2016 SERENA Software, Inc. All Rights Reserved.
+ *
+ * This software is proprietary information of SERENA Software, Inc.
+ * Use is subject to license terms.
+ *
+ * @author Kevin Lee
+ */
+package com.microfocus.sync.servicenow.client;
+
+import org.apache.commons.lang3.StringUtils;
+
+import java.net.URLEncoder;
+
+/**
+ * Per-call options of a ServiceNow Table API request: which fields are returned (sysparm_fields),
+ * display or raw values (sysparm_display_value), whether reference links are left out
+ * (sysparm_exclude_reference_link) and whether the total count is skipped (sysparm_no_count).
+ * Instances are immutable, the with* methods return a modified copy.
+ * @author klee@serena.com
+ */
+public final class TableQueryOptions {
+
+    /** all fields in ServiceNowClient.SNOW_FIELDS with display values, the behaviour of earlier versions */
+    public static final TableQueryOptions DEFAULT = new TableQueryOptions(null, true, false, false);
+
+    /** only return the sys_id of the written record */
+    public static final TableQueryOptions SYS_ID_ONLY = new TableQueryOptions("sys_id", false, true, true);
+
+    private final String fields;
+    private final boolean displayValue;
+    private final boolean excludeReferenceLink;
+    private final boolean noCount;
+
+    private TableQueryOptions(String fields, boolean displayValue, boolean excludeReferenceLink, boolean noCount) {
+        this.fields = fields;
+        this.displayValue = displayValue;
+        this.excludeReferenceLink = excludeReferenceLink;
+        this.noCount = noCount;
+    }
+
+    /**
+     * Create options that only return the given fields, as display values.
+     *
+     * @param fields  the fields to return, e.g. sys_id, number, approval
+     * @return the options
+     */
+    public static TableQueryOptions fields(String... fields) {
+        return DEFAULT.withFields(fields);
+    }
+
+    public TableQueryOptions withFields(String... fields) {
+        String joined = fields == null || fields.length == 0 ? null : StringUtils.join(fields, ',');
+        return new TableQueryOptions(joined, displayValue, excludeReferenceLink, noCount);
+    }
+
+    public TableQueryOptions withDisplayValue(boolean displayValue) {
+        return new TableQueryOptions(fields, displayValue, excludeReferenceLink, noCount);
+    }
+
+    public TableQueryOptions withExcludeReferenceLink(boolean excludeReferenceLink) {
+        return new TableQueryOptions(fields, displayValue, excludeReferenceLink, noCount);
+    }
+
+    public TableQueryOptions withNoCount(boolean noCount) {
+        return new TableQueryOptions(fields, displayValue, excludeReferenceLink, noCount);
+    }
+
+    /**
+     * @return the comma separated fields to return, or ServiceNowClient.SNOW_FIELDS if none were set
+     */
+    public String getFields() {
+        return fields != null ? fields : ServiceNowClient.SNOW_FIELDS;
+    }
+
+    public boolean isDisplayValue() {
+        return displayValue;
+    }
+
+    public boolean isExcludeReferenceLink() {
+        return excludeReferenceLink;
+    }
+
+    public boolean isNoCount() {
+        return noCount;
+    }
+
+    /**
+     * Whether records returned with these options are complete and may be cached and shared.
+     *
+     * @return true if all SNOW_FIELDS are returned as display values
+     */
+    public boolean isFullRecord() {
+        return fields == null && displayValue;
+    }
+
+    /**
+     * Encode the options as request parameters.
+     *
+     * @return the parameters, e.g. sysparm_display_value=true&amp;sysparm_fields=sys_id
+     */
+    public String toParameters() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("sysparm_display_value=").append(displayValue);
+        sb.append("&sysparm_fields=").append(URLEncoder.encode(getFields()));
+        if (excludeReferenceLink) {
+            sb.append("&sysparm_exclude_reference_link=true");
+        }
+        if (noCount) {
+            sb.append("&sysparm_no_count=true");
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "TableQueryOptions{" + "fields=" + getFields() +
+                ", displayValue=" + displayValue +
+                ", excludeReferenceLink=" + excludeReferenceLink +
+                ", noCount=" + noCount +
+        '}';
+    }
+}
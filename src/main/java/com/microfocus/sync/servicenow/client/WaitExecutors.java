@@ -0,0 +1,143 @@
+/*
+ *
+ * Copyright (c) 2016 SERENA Software, Inc. All Rights Reserved.
+ *
+ * This software is proprietary information of SERENA Software, Inc.
+ * Use is subject to license terms.
+ *
+ * @author Kevin Lee
+ */
+package com.microfocus.sync.servicenow.client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates the executors that run blocking waits (ApprovalWaiter.run(), prefetches and other
+ * ServiceNow calls) with one thread per task.
+ * The tool is built for Java 8, where every such task costs a platform thread. On Java 21 or later
+ * virtual threads can be switched on with -Dsnow.virtualThreads=true, or with setMode: the tasks then
+ * run on virtual threads, which are looked up by reflection so the same build runs on both.
+ * The waits only block in Thread.sleep, socket I/O and java.util.concurrent locks, none of which pin
+ * the carrier thread, and stop when their thread is interrupted.
+ * @author klee@serena.com
+ */
+public final class WaitExecutors {
+    private static final Logger logger = LoggerFactory.getLogger(WaitExecutors.class);
+
+    public static final String VIRTUAL_THREADS_PROPERTY = "snow.virtualThreads";
+
+    /**
+     * The kind of thread blocking tasks run on.
+     */
+    public enum Mode {
+        PLATFORM, VIRTUAL
+    }
+
+    private static final Method OF_VIRTUAL = method(Thread.class, "ofVirtual");
+    private static final Method NEW_THREAD_PER_TASK_EXECUTOR = method(Executors.class, "newThreadPerTaskExecutor", ThreadFactory.class);
+    private static final Method BUILDER_NAME = method("java.lang.Thread$Builder", "name", String.class, long.class);
+    private static final Method BUILDER_FACTORY = method("java.lang.Thread$Builder", "factory");
+
+    private static volatile Mode mode = Boolean.getBoolean(VIRTUAL_THREADS_PROPERTY) ? Mode.VIRTUAL : Mode.PLATFORM;
+
+    private WaitExecutors() {
+    }
+
+    /**
+     * @return true if the running JVM has virtual threads
+     */
+    public static boolean isVirtualThreadSupported() {
+        return OF_VIRTUAL != null && NEW_THREAD_PER_TASK_EXECUTOR != null && BUILDER_NAME != null && BUILDER_FACTORY != null;
+    }
+
+    /**
+     * @return the mode executors are created in from now on
+     */
+    public static Mode getMode() {
+        return mode == Mode.VIRTUAL && isVirtualThreadSupported() ? Mode.VIRTUAL : Mode.PLATFORM;
+    }
+
+    /**
+     * Set the mode of the executors created from now on. VIRTUAL falls back to PLATFORM, with a
+     * warning, on a JVM without virtual threads.
+     *
+     * @param mode  the mode
+     */
+    public static void setMode(Mode mode) {
+        if (mode == Mode.VIRTUAL && !isVirtualThreadSupported()) {
+            logger.warn("Virtual threads need Java 21 or later, running waits on platform threads (java.version={})",
+                    System.getProperty("java.version"));
+        }
+        WaitExecutors.mode = mode;
+    }
+
+    /**
+     * Create an executor starting a new thread for each task, in the current mode.
+     *
+     * @param namePrefix  the prefix of the thread names
+     * @return the executor
+     */
+    public static ExecutorService newWaitExecutor(String namePrefix) {
+        return newWaitExecutor(namePrefix, getMode());
+    }
+
+    /**
+     * Create an executor starting a new thread for each task.
+     *
+     * @param namePrefix  the prefix of the thread names
+     * @param mode  the kind of thread, VIRTUAL falls back to PLATFORM on a JVM without virtual threads
+     * @return the executor, platform threads are daemon threads and are reused for 60 seconds
+     */
+    public static ExecutorService newWaitExecutor(String namePrefix, Mode mode) {
+        if (mode == Mode.VIRTUAL && isVirtualThreadSupported()) {
+            try {
+                return (ExecutorService) NEW_THREAD_PER_TASK_EXECUTOR.invoke(null, newThreadFactory(namePrefix, mode));
+            } catch (ReflectiveOperationException ex) {
+                logger.warn("Error creating virtual thread executor, using platform threads - {}", ex.toString());
+            }
+        }
+        return Executors.newCachedThreadPool(new DaemonThreadFactory(namePrefix));
+    }
+
+    /**
+     * Create a thread factory.
+     *
+     * @param namePrefix  the prefix of the thread names
+     * @param mode  the kind of thread, VIRTUAL falls back to PLATFORM on a JVM without virtual threads
+     * @return the thread factory
+     */
+    public static ThreadFactory newThreadFactory(String namePrefix, Mode mode) {
+        if (mode == Mode.VIRTUAL && isVirtualThreadSupported()) {
+            try {
+                // Thread.ofVirtual().name(namePrefix + "-", 1).factory()
+                Object builder = BUILDER_NAME.invoke(OF_VIRTUAL.invoke(null), namePrefix + "-", 1L);
+                return (ThreadFactory) BUILDER_FACTORY.invoke(builder);
+            } catch (ReflectiveOperationException | RuntimeException ex) {
+                logger.warn("Error creating virtual thread factory, using platform threads - {}", ex.toString());
+            }
+        }
+        return new DaemonThreadFactory(namePrefix);
+    }
+
+    private static Method method(Class<?> type, String name, Class<?>... parameterTypes) {
+        try {
+            return type.getMethod(name, parameterTypes);
+        } catch (NoSuchMethodException ex) {
+            return null;
+        }
+    }
+
+    private static Method method(String className, String name, Class<?>... parameterTypes) {
+        try {
+            return method(Class.forName(className), name, parameterTypes);
+        } catch (ClassNotFoundException ex) {
+            return null;
+        }
+    }
+}
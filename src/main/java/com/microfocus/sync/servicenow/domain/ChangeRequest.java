@@ -16,6 +16,7 @@ import org.json.simple.parser.ParseException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.Reader;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -33,6 +34,7 @@ public class ChangeRequest extends ServiceNowObject {
     private String urgency;
     private String priority;
     private String approval;
+    private String risk;
 
     public ChangeRequest() {
 
@@ -78,6 +80,14 @@ public class ChangeRequest extends ServiceNowObject {
         this.approval = approval;
     }
 
+    public String getRisk() {
+        return risk;
+    }
+
+    public void setRisk(String risk) {
+        this.risk = risk;
+    }
+
     public static ChangeRequest parseSingle(String options) {
         JSONParser parser = new JSONParser();
         try {
@@ -106,6 +116,10 @@ public class ChangeRequest extends ServiceNowObject {
         return crList;
     }
 
+    public static ServiceNowObjectReader<ChangeRequest> reader(Reader reader) {
+        return new ServiceNowObjectReader<>(reader, ChangeRequest::parseSingle);
+    }
+
     public static ChangeRequest parseSingle(JSONObject jsonObject) {
         ChangeRequest crObj = new ChangeRequest((String) getJSONValue(jsonObject, "sys_id"),
                 (String) getJSONValue(jsonObject, "short_description"),
@@ -120,6 +134,7 @@ public class ChangeRequest extends ServiceNowObject {
         crObj.setUrgency((String) getJSONValue(jsonObject, "urgency"));
         crObj.setPriority((String) getJSONValue(jsonObject, "priority"));
         crObj.setApproval((String) getJSONValue(jsonObject, "approval"));
+        crObj.setRisk((String) getJSONValue(jsonObject, "risk"));
         crObj.setCreatedOn((String) getJSONValue(jsonObject, "sys_created_on"));
         crObj.setCreatedBy((String) getJSONValue(jsonObject, "sys_created_by"));
         crObj.setUpdatedOn((String) getJSONValue(jsonObject, "sys_updated_on"));
@@ -16,6 +16,7 @@ import org.json.simple.parser.ParseException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.Reader;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -106,6 +107,10 @@ public class ChangeTask extends ServiceNowObject {
         return ctList;
     }
 
+    public static ServiceNowObjectReader<ChangeTask> reader(Reader reader) {
+        return new ServiceNowObjectReader<>(reader, ChangeTask::parseSingle);
+    }
+
     public static ChangeTask parseSingle(JSONObject jsonObject) {
         ChangeTask ctObj = new ChangeTask((String) getJSONValue(jsonObject, "sys_id"),
                 (String) getJSONValue(jsonObject, "short_description"),
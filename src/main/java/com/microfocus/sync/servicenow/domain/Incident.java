@@ -16,6 +16,7 @@ import org.json.simple.parser.ParseException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.Reader;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -106,6 +107,10 @@ public class Incident extends ServiceNowObject {
         return crList;
     }
 
+    public static ServiceNowObjectReader<Incident> reader(Reader reader) {
+        return new ServiceNowObjectReader<>(reader, Incident::parseSingle);
+    }
+
     public static Incident parseSingle(JSONObject jsonObject) {
         Incident iObj = new Incident((String) getJSONValue(jsonObject, "sys_id"),
                 (String) getJSONValue(jsonObject, "short_description"),
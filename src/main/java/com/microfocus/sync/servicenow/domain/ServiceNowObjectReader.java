@@ -0,0 +1,180 @@
+/*
+ *
+ * Copyright (c) 2016 SERENA Software, Inc. All Rights Reserved.
+ *
+ * This software is proprietary information of SERENA Software, Inc.
+ * Use is subject to license terms.
+ *
+ * @author Kevin Lee
+ */
+package com.microfocus.sync.servicenow.domain;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.ContentHandler;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.function.Function;
+
+/**
+ * Streaming reader of ServiceNow Table API responses.
+ * Pulls one record at a time out of the "result" element without building the whole
+ * document, so memory use is bounded by a single record rather than by the page size.
+ * Works for both list responses ("result": [...]) and single record responses ("result": {...}).
+ * @author klee@serena.com
+ */
+public class ServiceNowObjectReader<T extends ServiceNowObject> implements Closeable {
+
+    private final Reader reader;
+    private final Function<JSONObject, T> mapper;
+    private final JSONParser parser = new JSONParser();
+    private final RecordHandler handler = new RecordHandler();
+    private boolean started;
+    private boolean finished;
+
+    public ServiceNowObjectReader(Reader reader, Function<JSONObject, T> mapper) {
+        this.reader = reader;
+        this.mapper = mapper;
+    }
+
+    /**
+     * Read the next record from the response.
+     *
+     * @return the next mapped record, or null if there are no more records
+     * @throws IOException
+     * @throws ParseException
+     */
+    public T read() throws IOException, ParseException {
+        if (finished) {
+            return null;
+        }
+        handler.record = null;
+        parser.parse(reader, handler, started);
+        started = true;
+        if (handler.record == null) {
+            finished = true;
+            return null;
+        }
+        return mapper.apply(handler.record);
+    }
+
+    @Override
+    public void close() throws IOException {
+        finished = true;
+        reader.close();
+    }
+
+    /**
+     * Content handler that assembles records found under the top-level "result" element
+     * and pauses the parser after each one.
+     */
+    private static class RecordHandler implements ContentHandler {
+        private final Deque<Object> containers = new ArrayDeque<>();
+        private final Deque<String> keys = new ArrayDeque<>();
+        private int level;
+        private boolean inResultEntry;
+        private boolean inResultArray;
+        JSONObject record;
+
+        @Override
+        public void startJSON() {
+        }
+
+        @Override
+        public void endJSON() {
+        }
+
+        @Override
+        public boolean startObject() {
+            if (!containers.isEmpty()) {
+                JSONObject child = new JSONObject();
+                attach(child);
+                containers.push(child);
+            } else if ((level == 1 && inResultEntry && !inResultArray) || (level == 2 && inResultArray)) {
+                containers.push(new JSONObject());
+            }
+            level++;
+            return true;
+        }
+
+        @Override
+        public boolean endObject() {
+            level--;
+            if (!containers.isEmpty()) {
+                Object done = containers.pop();
+                if (containers.isEmpty()) {
+                    record = (JSONObject) done;
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public boolean startObjectEntry(String key) {
+            if (!containers.isEmpty()) {
+                keys.push(key);
+            } else if (level == 1) {
+                inResultEntry = "result".equals(key);
+            }
+            return true;
+        }
+
+        @Override
+        public boolean endObjectEntry() {
+            if (!containers.isEmpty()) {
+                keys.pop();
+            } else if (level == 1) {
+                inResultEntry = false;
+                inResultArray = false;
+            }
+            return true;
+        }
+
+        @Override
+        public boolean startArray() {
+            if (!containers.isEmpty()) {
+                JSONArray child = new JSONArray();
+                attach(child);
+                containers.push(child);
+            } else if (level == 1 && inResultEntry) {
+                inResultArray = true;
+            }
+            level++;
+            return true;
+        }
+
+        @Override
+        public boolean endArray() {
+            level--;
+            if (!containers.isEmpty()) {
+                containers.pop();
+            }
+            return true;
+        }
+
+        @Override
+        public boolean primitive(Object value) {
+            if (!containers.isEmpty()) {
+                attach(value);
+            }
+            return true;
+        }
+
+        @SuppressWarnings("unchecked")
+        private void attach(Object value) {
+            Object parent = containers.peek();
+            if (parent instanceof JSONObject) {
+                ((JSONObject) parent).put(keys.peek(), value);
+            } else {
+                ((JSONArray) parent).add(value);
+            }
+        }
+    }
+}